@@ -17,6 +17,8 @@ package org.springframework.xd.code;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Function;
 
 import org.springframework.integration.annotation.MessageEndpoint;
@@ -29,19 +31,52 @@ import org.springframework.integration.annotation.MessageEndpoint;
 public abstract class CodeDrivenProcessor {
 
 	protected Function fn;
+
+	private boolean batchFunction;
 	
 	public CodeDrivenProcessor() {
 		try {
+			ClassLoader classLoader = this.getClass().getClassLoader();
+			InputStream is = classLoader.getResourceAsStream("lambda.cap");
+			if (is != null) {
+				// Compact capture form, read by the LambdaCapture class packaged with the lambda
+				fn = (Function) Class.forName("org.springframework.xd.dsl.domain.LambdaCapture", true, classLoader)
+						.getMethod("read", InputStream.class, ClassLoader.class).invoke(null, is, classLoader);
+				is.close();
+				return;
+			}
 //			InputStream is = new FileInputStream(new File("/tmp/bytes"));//
-			InputStream is = this.getClass().getClassLoader().getResourceAsStream("lambda.ser");
+			is = classLoader.getResourceAsStream("lambda.ser");
 			ObjectInputStream ois = new ObjectInputStream(is);
 			fn = (Function)ois.readObject();
 			ois.close();
 		} catch (IOException e) {
 			e.printStackTrace();
-		} catch (ClassNotFoundException e) {
+		} catch (ReflectiveOperationException e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * @param batchFunction true if the function takes the whole batch, rather than each payload in it
+	 */
+	public void setBatchFunction(boolean batchFunction) {
+		this.batchFunction = batchFunction;
+	}
+
+	/**
+	 * Process the payloads of an aggregated batch, one message is then sent per result (or one for the list).
+	 */
+	@SuppressWarnings("unchecked")
+	public List transformBatch(List payloads) {
+		if (batchFunction) {
+			return (List) fn.apply(payloads);
+		}
+		List results = new ArrayList(payloads.size());
+		for (int i = 0, max = payloads.size(); i < max; i++) {
+			results.add(fn.apply(payloads.get(i)));
+		}
+		return results;
+	}
+
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2015 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.xd.code;
+
+import javax.validation.constraints.Min;
+
+import org.springframework.xd.module.options.spi.ModuleOption;
+import org.springframework.xd.module.options.spi.ProfileNamesProvider;
+
+/**
+ * Documents the options of the lambda processor module. With a batch size above one (or a function that takes a
+ * batch) the 'batch' profile is activated: messages are aggregated and the function applied to each batch, otherwise
+ * the 'single' profile applies the function to each message as it arrives.
+ *
+ * @author Andy Clement
+ */
+public class LambdaProcessorOptionsMetadata implements ProfileNamesProvider {
+
+	private int batchSize = 1;
+
+	private long batchTimeoutMs = 1000L;
+
+	private boolean batchFunction = false;
+
+	private boolean splitBatch = true;
+
+	@Min(1)
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	@ModuleOption("how many messages to collect before applying the function to them, 1 to apply it to each message")
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	@Min(1)
+	public long getBatchTimeoutMs() {
+		return batchTimeoutMs;
+	}
+
+	@ModuleOption("how long to wait for a batch to fill before processing what has arrived")
+	public void setBatchTimeoutMs(long batchTimeoutMs) {
+		this.batchTimeoutMs = batchTimeoutMs;
+	}
+
+	public boolean isBatchFunction() {
+		return batchFunction;
+	}
+
+	@ModuleOption("whether the function takes the whole batch (a list) rather than one payload at a time")
+	public void setBatchFunction(boolean batchFunction) {
+		this.batchFunction = batchFunction;
+	}
+
+	public boolean isSplitBatch() {
+		return splitBatch;
+	}
+
+	@ModuleOption("whether each result of a batch is sent as its own message, rather than sending one list")
+	public void setSplitBatch(boolean splitBatch) {
+		this.splitBatch = splitBatch;
+	}
+
+	@Override
+	public String[] profilesToActivate() {
+		return (batchSize > 1 || batchFunction) ? new String[] { "batch" } : new String[] { "single" };
+	}
+}
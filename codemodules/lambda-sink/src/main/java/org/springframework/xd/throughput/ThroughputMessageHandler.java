@@ -19,11 +19,15 @@ package org.springframework.xd.throughput;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.util.concurrent.ExecutorService;
+import java.lang.management.ManagementFactory;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
-import java.util.function.Function;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,168 +38,317 @@ import org.springframework.messaging.MessageHandler;
 import org.springframework.messaging.MessagingException;
 
 /**
- * A simple handler that will count messages and log witnessed throughput at some interval.
+ * A handler that passes each message to the lambda packaged with the module (if there is one), counts messages and
+ * logs witnessed throughput at some interval.
+ * <p>
+ * Counters are striped ({@link LongAdder}) so that many threads delivering messages do not contend on them. When
+ * <tt>latency</tt> is set, payloads are expected to be <tt>byte[]</tt> starting with an int sequence number and the
+ * long {@link System#nanoTime()} they were produced at (as the lambda source load generator writes them), and the
+ * time since then is recorded in a latency histogram. That is only meaningful when producer and sink run in the same
+ * JVM, since nanoTime has no common origin across processes.
+ * <p>
+ * Reports are logged from a dedicated thread every <tt>reportEveryMs</tt>, and the totals are available over JMX (see
+ * {@link ThroughputMessageHandlerMBean}).
  *
  * @author Eric Bottard
  * @author Marius Bogoevici
  */
-public class ThroughputMessageHandler implements MessageHandler, Lifecycle {
+@SuppressWarnings("rawtypes")
+public class ThroughputMessageHandler implements MessageHandler, Lifecycle, ThroughputMessageHandlerMBean {
+
+	/** Length of the sequence number and timestamp at the start of a latency measuring payload */
+	static final int TIMESTAMP_HEADER_LENGTH = 12;
 
 	protected Consumer consumer;
-	
+
+	private Logger logger = LoggerFactory.getLogger("xd.sink.throughput");
+
+	private String loggerName = "throughput";
+
+	private final LongAdder counter = new LongAdder();
+
+	private final LongAdder bytes = new LongAdder();
+
+	private final AtomicLong start = new AtomicLong(-1);
+
+	private final LatencyHistogram latencies = new LatencyHistogram();
+
+	private long reportEveryMs = 1000L;
+
+	private TimeUnit timeUnit = TimeUnit.s;
+
+	private SizeUnit sizeUnit = SizeUnit.MB;
+
+	private boolean latency = false;
+
+	private Clock clock = new Clock();
+
+	private volatile boolean running;
+
+	private ScheduledExecutorService reporter;
+
+	private ObjectName objectName;
+
 	public ThroughputMessageHandler() {
 		// 1. load the resource
 		// 2. deserialize the lambda
 		try {
-//			InputStream is = new FileInputStream(new File("/tmp/bytes"));
-			InputStream is = this.getClass().getClassLoader().getResourceAsStream("lambda.ser");
+			ClassLoader classLoader = this.getClass().getClassLoader();
+			InputStream is = classLoader.getResourceAsStream("lambda.cap");
+			if (is != null) {
+				// Compact capture form, read by the LambdaCapture class packaged with the lambda
+				consumer = (Consumer) Class.forName("org.springframework.xd.dsl.domain.LambdaCapture", true,
+						classLoader).getMethod("read", InputStream.class, ClassLoader.class).invoke(null, is,
+						classLoader);
+				is.close();
+				return;
+			}
+			is = classLoader.getResourceAsStream("lambda.ser");
+			if (is == null) {
+				// Nothing to run, just measure
+				return;
+			}
 			ObjectInputStream ois = new ObjectInputStream(is);
-			fn = (Consumer)ois.readObject();
+			consumer = (Consumer) ois.readObject();
 			ois.close();
-		} catch (IOException e) {
+		}
+		catch (IOException e) {
 			e.printStackTrace();
-		} catch (ClassNotFoundException e) {
+		}
+		catch (ReflectiveOperationException e) {
 			e.printStackTrace();
 		}
 	}
-//	private Logger logger;
-//
-//	private final AtomicLong counter = new AtomicLong();
-//
-//	private final AtomicLong start = new AtomicLong(-1);
-//
-//	private final AtomicLong bytes = new AtomicLong(-1);
-//
-//	private final AtomicLong intermediateCounter = new AtomicLong();
-//
-//	private final AtomicLong intermediateBytes = new AtomicLong();
-//
-//	private long reportEveryMs;
-//
-//	private TimeUnit timeUnit = TimeUnit.s;
-//
-//	private Clock clock = new Clock();
-//
-//	private volatile boolean running;
-//
-//	private ExecutorService executorService;
-//
-//	private boolean reportBytes = false;
-//
-//	public ThroughputMessageHandler() {
-//
-//	}
-
-//	@Override
-//	public void start() {
-//		if (executorService == null) {
-//			executorService = Executors.newFixedThreadPool(1);
-//		}
-//		this.running = true;
-//	}
-//
-//	@Override
-//	public void stop() {
-//		this.running = false;
-//	}
-//
-//	@Override
-//	public boolean isRunning() {
-//		return running;
-//	}
 
 	@Override
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		if (reportEveryMs > 0) {
+			reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "throughput-reporter-" + loggerName);
+				thread.setDaemon(true);
+				return thread;
+			});
+			reporter.scheduleAtFixedRate(new ReportStats(), reportEveryMs, reportEveryMs,
+					java.util.concurrent.TimeUnit.MILLISECONDS);
+		}
+		registerMBean();
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		if (reporter != null) {
+			reporter.shutdownNow();
+			reporter = null;
+		}
+		unregisterMBean();
+	}
+
+	@Override
+	public boolean isRunning() {
+		return running;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
 	public void handleMessage(Message<?> message) throws MessagingException {
-		consumer.accept(message);
-//		if (start.get() == -1L) {
-//			synchronized (start) {
-//				if (start.get() == -1L) {
-//					// assume a homogeneous message structure - this is intended for perf tests so we can safely assume
-//					// that the messages are similar,  Therefore we'll do our reporting based on the first message
-//					Object payload = message.getPayload();
-//					if (payload instanceof byte[] || payload instanceof String) {
-//						reportBytes = true;
-//					}
-//					start.set(clock.now());
-//					executorService.execute(new ReportStats());
-//				}
-//			}
-//		}
-//		intermediateCounter.incrementAndGet();
-//		if (reportBytes) {
-//			Object payload = message.getPayload();
-//			if (payload instanceof byte[]) {
-//				intermediateBytes.addAndGet(((byte[]) payload).length);
-//			}
-//			else if (payload instanceof String) {
-//				intermediateBytes.addAndGet((((String) payload).getBytes()).length);
-//			}
-//		}
-	}
-
-//	/**
-//	 * As a strategy class to ease unit testing.
-//	 */
-//	public static class Clock {
-//		public long now() {
-//			return System.currentTimeMillis();
-//		}
-//	}
-//
-//	public void setReportEveryMs(long reportEveryMs) {
-//		this.reportEveryMs = reportEveryMs;
-//	}
-//
-//	public void setTimeUnit(TimeUnit timeUnit) {
-//		this.timeUnit = timeUnit;
-//	}
-//
-//	public void setLogger(String name) {
-//		this.logger = LoggerFactory.getLogger("xd.sink.throughput." + name);
-//	}
-//
-//	private class ReportStats implements Runnable {
-//		@Override
-//		public void run() {
-//			while (isRunning()) {
-//				intermediateCounter.set(0L);
-//				intermediateBytes.set(0L);
-//				long intervalStart = clock.now();
-//				try {
-//					Thread.sleep(reportEveryMs);
-//					long timeNow = clock.now();
-//					long currentCounter = intermediateCounter.get();
-//					long currentBytes = intermediateBytes.get();
-//					long totalCounter = counter.addAndGet(currentCounter);
-//					long totalBytes = bytes.addAndGet(currentBytes);
-//
-//					logger.info(
-//							String.format("Messages: %10d in %5.2f%s = %11.2f/s",
-//									currentCounter,
-//									(timeNow - intervalStart)/ 1000.0, timeUnit, ((double) currentCounter * 1000 / reportEveryMs)));
-//					logger.info(
-//							String.format("Messages: %10d in %5.2f%s = %11.2f/s",
-//									totalCounter, (timeNow - start.get()) / 1000.0, timeUnit,
-//									((double) totalCounter * 1000 / (timeNow - start.get()))));
-//					if (reportBytes) {
-//						logger.info(
-//								String.format("Throughput: %12d in %5.2f%s = %11.2fMB/s, ",
-//										currentBytes,
-//										(timeNow - intervalStart)/ 1000.0, timeUnit,
-//										(((double) currentBytes / (1024.0 * 1024)) * 1000 / reportEveryMs)));
-//						logger.info(
-//								String.format("Throughput: %12d in %5.2f%s = %11.2fMB/s",
-//										totalBytes, (timeNow - start.get()) / 1000.0, timeUnit,
-//										(((double) totalBytes / (1024.0 * 1024)) * 1000 / (timeNow - start.get()))));
-//					}
-//				}
-//				catch (InterruptedException e) {
-//					if (!isRunning()) {
-//						Thread.currentThread().interrupt();
-//					}
-//				}
-//			}
-//		}
-//	}
-}
+		if (consumer != null) {
+			consumer.accept(message);
+		}
+		if (start.get() == -1L) {
+			start.compareAndSet(-1L, clock.now());
+		}
+		counter.increment();
+		Object payload = message.getPayload();
+		if (payload instanceof byte[]) {
+			byte[] data = (byte[]) payload;
+			bytes.add(data.length);
+			if (latency && data.length >= TIMESTAMP_HEADER_LENGTH) {
+				latencies.record((clock.nanoTime() - readLong(data, 4)) / 1000);
+			}
+		}
+		else if (payload instanceof String) {
+			// Characters rather than encoded bytes, to avoid encoding every payload
+			bytes.add(((String) payload).length());
+		}
+	}
 
+	private static long readLong(byte[] data, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 8; i++) {
+			value = (value << 8) | (data[i] & 0xff);
+		}
+		return value;
+	}
+
+	private void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			objectName = new ObjectName("xd.sink.throughput:type=ThroughputMessageHandler,name="
+					+ ObjectName.quote(loggerName));
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(this, objectName);
+		}
+		catch (Exception e) {
+			logger.warn("Unable to register throughput metrics with JMX: " + e.getMessage());
+			objectName = null;
+		}
+	}
+
+	private void unregisterMBean() {
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			}
+			catch (Exception e) {
+				// Already gone
+			}
+			objectName = null;
+		}
+	}
+
+	/**
+	 * As a strategy class to ease unit testing.
+	 */
+	public static class Clock {
+
+		public long now() {
+			return System.currentTimeMillis();
+		}
+
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+	}
+
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
+
+	public void setReportEveryMs(long reportEveryMs) {
+		this.reportEveryMs = reportEveryMs;
+	}
+
+	public void setTimeUnit(TimeUnit timeUnit) {
+		this.timeUnit = timeUnit;
+	}
+
+	public void setSizeUnit(SizeUnit sizeUnit) {
+		this.sizeUnit = sizeUnit;
+	}
+
+	public void setLatency(boolean latency) {
+		this.latency = latency;
+	}
+
+	public void setLogger(String name) {
+		this.loggerName = name;
+		this.logger = LoggerFactory.getLogger("xd.sink.throughput." + name);
+	}
+
+	@Override
+	public long getMessageCount() {
+		return counter.sum();
+	}
+
+	@Override
+	public long getByteCount() {
+		return bytes.sum();
+	}
+
+	@Override
+	public double getMessageRate() {
+		long started = start.get();
+		return started == -1L ? 0 : TimeUnit.s.rate(counter.sum(), clock.now() - started);
+	}
+
+	@Override
+	public long getLatencyCount() {
+		return latencies.getCount();
+	}
+
+	@Override
+	public double getLatencyMeanMicros() {
+		return latencies.getMean();
+	}
+
+	@Override
+	public long getLatencyP50Micros() {
+		return latencies.getPercentile(50);
+	}
+
+	@Override
+	public long getLatencyP99Micros() {
+		return latencies.getPercentile(99);
+	}
+
+	@Override
+	public long getLatencyMaxMicros() {
+		return latencies.getMax();
+	}
+
+	@Override
+	public void reset() {
+		counter.reset();
+		bytes.reset();
+		latencies.reset();
+		start.set(-1L);
+	}
+
+	private class ReportStats implements Runnable {
+
+		private long lastTime = -1;
+
+		private long lastCounter;
+
+		private long lastBytes;
+
+		@Override
+		public void run() {
+			long started = start.get();
+			if (started == -1L) {
+				// Nothing received yet
+				return;
+			}
+			long timeNow = clock.now();
+			long totalCounter = counter.sum();
+			long totalBytes = bytes.sum();
+			if (lastTime == -1 || lastTime < started) {
+				// First report (or first since a reset)
+				lastTime = started;
+				lastCounter = 0;
+				lastBytes = 0;
+			}
+			long currentCounter = totalCounter - lastCounter;
+			long currentBytes = totalBytes - lastBytes;
+			long interval = timeNow - lastTime;
+			long elapsed = timeNow - started;
+			logger.info(String.format("Messages: %10d in %8.2fs = %11.2f/%s", currentCounter, interval / 1000.0,
+					timeUnit.rate(currentCounter, interval), timeUnit));
+			logger.info(String.format("Messages: %10d in %8.2fs = %11.2f/%s", totalCounter, elapsed / 1000.0,
+					timeUnit.rate(totalCounter, elapsed), timeUnit));
+			if (totalBytes > 0) {
+				logger.info(String.format("Throughput: %12d in %8.2fs = %11.2f%s/%s", currentBytes,
+						interval / 1000.0, timeUnit.rate(sizeUnit.convert(currentBytes, SizeUnit.B), interval),
+						sizeUnit, timeUnit));
+				logger.info(String.format("Throughput: %12d in %8.2fs = %11.2f%s/%s", totalBytes, elapsed / 1000.0,
+						timeUnit.rate(sizeUnit.convert(totalBytes, SizeUnit.B), elapsed), sizeUnit, timeUnit));
+			}
+			if (latency) {
+				logger.info("Latency: " + latencies);
+			}
+			lastTime = timeNow;
+			lastCounter = totalCounter;
+			lastBytes = totalBytes;
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.springframework.xd.throughput;
+
+/**
+ * What {@link ThroughputMessageHandler} exposes over JMX, registered as
+ * <tt>xd.sink.throughput:type=ThroughputMessageHandler,name=&lt;logger&gt;</tt>.
+ *
+ * @author aclement
+ */
+public interface ThroughputMessageHandlerMBean {
+
+	long getMessageCount();
+
+	long getByteCount();
+
+	/**
+	 * @return messages per second since the first message arrived
+	 */
+	double getMessageRate();
+
+	long getLatencyCount();
+
+	double getLatencyMeanMicros();
+
+	long getLatencyP50Micros();
+
+	long getLatencyP99Micros();
+
+	long getLatencyMaxMicros();
+
+	/**
+	 * Start counting (and timing) again from the next message.
+	 */
+	void reset();
+
+}
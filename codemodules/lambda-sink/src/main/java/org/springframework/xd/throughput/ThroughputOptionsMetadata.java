@@ -21,6 +21,10 @@ public class ThroughputOptionsMetadata {
 
 	private String logger = ModulePlaceholders.XD_STREAM_NAME;
 
+	private SizeUnit sizeUnit = SizeUnit.MB;
+
+	private boolean latency = false;
+
 	@NotBlank
 	public String getLogger() {
 		return logger;
@@ -52,4 +56,23 @@ public class ThroughputOptionsMetadata {
 		this.timeUnit = timeUnit;
 	}
 
+	@NotNull
+	public SizeUnit getSizeUnit() {
+		return sizeUnit;
+	}
+
+	@ModuleOption("the size unit to use when reporting byte throughput")
+	public void setSizeUnit(SizeUnit sizeUnit) {
+		this.sizeUnit = sizeUnit;
+	}
+
+	public boolean isLatency() {
+		return latency;
+	}
+
+	@ModuleOption("whether to report latency from the sequence number and nanoTime at the start of byte[] payloads")
+	public void setLatency(boolean latency) {
+		this.latency = latency;
+	}
+
 }
@@ -8,10 +8,10 @@ package org.springframework.xd.throughput;
  */
 public enum TimeUnit {
 	ns(1),
-	ms(1000),
-	s(1000L * 1000),
-	m(1000L * 1000 * 60),
-	h(1000L * 1000 * 60 * 60)
+	ms(1000L * 1000),
+	s(1000L * 1000 * 1000),
+	m(1000L * 1000 * 1000 * 60),
+	h(1000L * 1000 * 1000 * 60 * 60)
 	;
 
 	private long nanos;
@@ -25,6 +25,14 @@ public enum TimeUnit {
 
 	}
 
+	/**
+	 * @return how many of {@code howMany} happen per <em>this</em> unit, if they happened in {@code elapsedMs}
+	 *         milliseconds
+	 */
+	public double rate(double howMany, long elapsedMs) {
+		return elapsedMs == 0 ? 0 : howMany * this.nanos / (elapsedMs * ms.nanos);
+	}
+
 	public static void main(String[] args) {
 		System.out.println(String.format("%7.2f%n", 123.44));
 	}
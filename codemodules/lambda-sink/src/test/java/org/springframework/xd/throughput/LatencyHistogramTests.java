@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.springframework.xd.throughput;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * @author aclement
+ */
+public class LatencyHistogramTests {
+
+	@Test
+	public void empty() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getMean(), 0);
+		assertEquals(0, histogram.getPercentile(50));
+		assertEquals(0, histogram.getPercentile(99.9));
+	}
+
+	@Test
+	public void bucketBoundaries() {
+		// Bucket n holds values below 2^n, a percentile is reported as the top of its bucket (capped at the max)
+		assertEquals(0, single(0));
+		assertEquals(1, single(1));
+		// Negative (e.g. clocks on different hosts) counts as 0
+		assertEquals(0, single(-5));
+		assertEquals(3, percentileWithMax(2, 1000));
+		assertEquals(3, percentileWithMax(3, 1000));
+		assertEquals(7, percentileWithMax(4, 1000));
+		assertEquals(1023, percentileWithMax(1000, 5000));
+		assertEquals(1023, percentileWithMax(1023, 5000));
+		assertEquals(2047, percentileWithMax(1024, 5000));
+		assertEquals(Long.MAX_VALUE, single(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void percentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		// 90 fast (bucket 4, 8-15us), 9 slower (bucket 7, 64-127us) and one slow (bucket 11, 1024-2047us)
+		for (int i = 0; i < 90; i++) {
+			histogram.record(10);
+		}
+		for (int i = 0; i < 9; i++) {
+			histogram.record(100);
+		}
+		histogram.record(1500);
+		assertEquals(100, histogram.getCount());
+		assertEquals(1500, histogram.getMax());
+		assertEquals((90 * 10 + 9 * 100 + 1500) / 100.0, histogram.getMean(), 0.0001);
+		assertEquals(15, histogram.getPercentile(50));
+		assertEquals(15, histogram.getPercentile(90));
+		assertEquals(127, histogram.getPercentile(90.1));
+		assertEquals(127, histogram.getPercentile(99));
+		// The top bucket is capped at the largest value recorded
+		assertEquals(1500, histogram.getPercentile(99.9));
+		assertEquals(1500, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void reset() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(100);
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getPercentile(50));
+		histogram.record(3);
+		assertEquals(3, histogram.getPercentile(50));
+	}
+
+	private static long single(long micros) {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(micros);
+		return histogram.getPercentile(50);
+	}
+
+	// The percentile of a value alongside a much larger one, so the bucket bound is not capped by the max
+	private static long percentileWithMax(long micros, long max) {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(micros);
+		histogram.record(micros);
+		histogram.record(max);
+		return histogram.getPercentile(50);
+	}
+
+}
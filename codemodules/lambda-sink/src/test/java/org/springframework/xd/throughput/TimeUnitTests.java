@@ -0,0 +1,48 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.springframework.xd.throughput;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * @author aclement
+ */
+public class TimeUnitTests {
+
+	@Test
+	public void units() {
+		assertEquals("ns", TimeUnit.valueOf("ns").name());
+		assertEquals(1000 * 1000, TimeUnit.ns.convert(1, TimeUnit.ms), 0);
+		assertEquals(1000, TimeUnit.ms.convert(1, TimeUnit.s), 0);
+		assertEquals(60, TimeUnit.s.convert(1, TimeUnit.m), 0);
+		assertEquals(60, TimeUnit.m.convert(1, TimeUnit.h), 0);
+		assertEquals(0.5, TimeUnit.s.convert(500, TimeUnit.ms), 0);
+	}
+
+	@Test
+	public void rates() {
+		// 3000 in 1.5 seconds
+		assertEquals(2000, TimeUnit.s.rate(3000, 1500), 0.0001);
+		assertEquals(2, TimeUnit.ms.rate(3000, 1500), 0.0001);
+		assertEquals(120000, TimeUnit.m.rate(3000, 1500), 0.0001);
+		assertEquals(2e-6, TimeUnit.ns.rate(3000, 1500), 1e-12);
+		assertEquals(0, TimeUnit.s.rate(3000, 0), 0);
+	}
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.codemodule;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * How the threads that run a code module's producers are provided.
+ * <ul>
+ * <li><tt>platform</tt>: a thread per producer, created when the module starts and ended when it stops.
+ * <li><tt>shared</tt>: a fixed pool (of <tt>xd.codemodule.sharedPoolSize</tt> threads, default one per core) shared by
+ * the running modules whose classes come from the same class loader. It is created when the first of them starts and
+ * shut down when the last of them stops, so no threads (or class loader) are kept once they have all stopped.
+ * Producers hand their thread back after each slice of messages, so there can be more producers than threads, but a
+ * supplier that blocks still holds its thread while it does.
+ * <li><tt>virtual</tt>: a virtual thread per producer, so a supplier blocked on I/O or sleeping does not hold a
+ * platform thread. Falls back to <tt>platform</tt> on a JVM without virtual threads.
+ * </ul>
+ */
+public enum ExecutorStrategy {
+
+	platform,
+
+	shared,
+
+	virtual;
+
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	private static ExecutorService sharedPool;
+
+	// How many modules are using the shared pool, guarded by the class lock
+	private static int sharedPoolUsers;
+
+	/**
+	 * @param threads how many threads the module needs
+	 * @param name used to name the threads
+	 * @return an executor to run the module's producers, to be given back with {@link #releaseExecutor} rather than
+	 *         shut down directly
+	 */
+	public ExecutorService createExecutor(int threads, String name) {
+		switch (this) {
+		case shared:
+			return acquireSharedPool();
+		case virtual:
+			ExecutorService executor = newVirtualThreadPerTaskExecutor();
+			if (executor != null) {
+				return executor;
+			}
+			return Executors.newFixedThreadPool(threads, threadFactory(name));
+		default:
+			return Executors.newFixedThreadPool(threads, threadFactory(name));
+		}
+	}
+
+	/**
+	 * Give back an executor from {@link #createExecutor}, when the module stops. The shared pool is only shut down
+	 * once every module using it has given it back, any other executor is shut down now.
+	 */
+	public void releaseExecutor(ExecutorService executor) {
+		if (this == shared) {
+			releaseSharedPool(executor);
+		}
+		else {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return true if producers should give their thread back between slices of work, so that others can use it
+	 */
+	public boolean isShared() {
+		return this == shared;
+	}
+
+	private static synchronized ExecutorService acquireSharedPool() {
+		if (sharedPool == null) {
+			int size = Integer.getInteger("xd.codemodule.sharedPoolSize", Runtime.getRuntime().availableProcessors());
+			sharedPool = Executors.newFixedThreadPool(size, threadFactory("codemodule-shared"));
+		}
+		sharedPoolUsers++;
+		return sharedPool;
+	}
+
+	private static synchronized void releaseSharedPool(ExecutorService executor) {
+		if (executor != sharedPool) {
+			// Already shut down
+			return;
+		}
+		if (--sharedPoolUsers == 0) {
+			sharedPool.shutdownNow();
+			sharedPool = null;
+		}
+	}
+
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		}
+		catch (ReflectiveOperationException e) {
+			// Pre Java 21
+			return null;
+		}
+	}
+
+	private static ThreadFactory threadFactory(String name) {
+		return runnable -> {
+			Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+}
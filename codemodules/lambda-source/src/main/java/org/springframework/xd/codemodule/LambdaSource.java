@@ -19,42 +19,113 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Supplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.integration.channel.DirectChannel;
+import org.springframework.integration.channel.QueueChannel;
 import org.springframework.integration.endpoint.MessageProducerSupport;
 import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageDeliveryException;
 import org.springframework.messaging.MessageHeaders;
 
 /**
+ * Source that repeatedly calls a supplier lambda and sends each value it returns, until it returns null. Values can
+ * be produced by several threads at once (the supplier must then be thread safe), at a limited rate, and producers
+ * hold back when the output channel cannot keep up: when <tt>maxInFlight</tt> messages are already in flight (held
+ * by a queue based output channel, or for any other channel being sent, which for a direct channel includes their
+ * handling downstream), or when a send is refused, producers pause and retry rather than dropping or flooding.
+ * <p>
+ * With a <tt>messageSize</tt> the source is instead a load generator: each producer sends <tt>byte[]</tt> payloads of
+ * that size, optionally starting with an int sequence number and the long {@link System#nanoTime()} they were
+ * created at, which the throughput sink can read to report latency.
  */
 public class LambdaSource extends MessageProducerSupport {
 
 	protected Supplier<?> supplier;
     
-//    private int producers;
-//
-//    private int messageSize;
-//
-//    private int messageCount;
-//
-//    private boolean generateTimestamp;
+    /** Length of the sequence number and timestamp written at the start of generated payloads */
+    static final int TIMESTAMP_HEADER_LENGTH = 12;
+
+    /** Messages a producer sends before giving up a shared thread */
+    private static final int SLICE_SIZE = 1000;
+
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Headers shared by every message the source sends. MessageHeaders cannot be modified, and without an id or
+     * timestamp every message's headers are the same, so there is no need to build (and copy a map for) each one.
+     */
+    private static final MessageHeaders EMPTY_HEADERS = new TestMessageHeaders(null);
+
+    private int producers = 1;
+
+    private int rate = 0;
+
+    private int maxInFlight = 0;
+
+    private volatile boolean paused;
+
+    private TokenBucket tokenBucket;
+
+    // Limits the sends under way at once when maxInFlight applies to an output that is not a queue
+    private Semaphore sendPermits;
+
+    private MessageChannel outputChannel;
+
+    private int messageSize = 0;
+
+    private int messageCount = 0;
+
+    private boolean generateTimestamp = false;
+
+    private boolean reuseMessages = false;
+
+    private ExecutorStrategy executorStrategy = ExecutorStrategy.platform;
+
+    private long stopTimeoutMs = 5000;
+
+    private Producer[] activeProducers;
+
+    private CountDownLatch producersFinished;
+
+    // Whether reuseMessages applies to the current output channel
+    private boolean reusing;
 
     private final AtomicBoolean running = new AtomicBoolean(false);
 
+    // Incremented by each start, producers from an earlier start (e.g. queued again just before a stop) then exit
+    private volatile int generation;
+
     private ExecutorService executorService;
 
     Logger logger = LoggerFactory.getLogger(LambdaSource.class);
 
     public LambdaSource() {
         try {
-            InputStream is = this.getClass().getClassLoader().getResourceAsStream("lambda.ser");
+            ClassLoader classLoader = this.getClass().getClassLoader();
+            InputStream is = classLoader.getResourceAsStream("lambda.cap");
+            if (is != null) {
+                // Compact capture form, read by the LambdaCapture class packaged with the lambda
+                supplier = (Supplier<?>) Class.forName("org.springframework.xd.dsl.domain.LambdaCapture", true,
+                        classLoader).getMethod("read", InputStream.class, ClassLoader.class).invoke(null, is,
+                        classLoader);
+                is.close();
+                return;
+            }
+            is = classLoader.getResourceAsStream("lambda.ser");
             if (is == null) {
-	            	logger.error("LambdaSource unable to find 'lambda.ser' resource");
+	            	logger.info("LambdaSource has no 'lambda.cap' or 'lambda.ser' resource, it can only generate payloads");
 	            	return;
             }
             ObjectInputStream ois = new ObjectInputStream(is);
@@ -62,99 +133,448 @@ public class LambdaSource extends MessageProducerSupport {
             ois.close();
 	    } catch (IOException e) {
 	            e.printStackTrace();
-	    } catch (ClassNotFoundException e) {
+	    } catch (ReflectiveOperationException e) {
 	            e.printStackTrace();
 	    }
         
     }
 
+    /**
+     * @param producers how many threads call the supplier concurrently
+     */
+    public void setProducers(int producers) {
+        if (producers < 1) {
+            throw new IllegalArgumentException("producers must be at least 1: " + producers);
+        }
+        this.producers = producers;
+    }
+
+    /**
+     * @param rate the most messages to send per second across all producers, 0 for no limit
+     */
+    public void setRate(int rate) {
+        if (rate < 0) {
+            throw new IllegalArgumentException("rate must not be negative: " + rate);
+        }
+        this.rate = rate;
+    }
+
+    /**
+     * @param maxInFlight the most messages in flight before producers wait, 0 for no limit. When the output channel is
+     *            a queue these are the messages it holds, otherwise the sends under way at once (for a direct
+     *            channel a send returns once the message has been handled downstream, so this limits how many
+     *            messages the stream handles at the same time).
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 0) {
+            throw new IllegalArgumentException("maxInFlight must not be negative: " + maxInFlight);
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @param messageSize if positive, send generated payloads of this many bytes rather than calling the supplier
+     */
+    public void setMessageSize(int messageSize) {
+        if (messageSize < 0) {
+            throw new IllegalArgumentException("messageSize must not be negative: " + messageSize);
+        }
+        this.messageSize = messageSize;
+    }
+
+    /**
+     * @param messageCount how many messages each producer sends, 0 for no limit
+     */
+    public void setMessageCount(int messageCount) {
+        if (messageCount < 0) {
+            throw new IllegalArgumentException("messageCount must not be negative: " + messageCount);
+        }
+        this.messageCount = messageCount;
+    }
+
+    /**
+     * @param generateTimestamp whether generated payloads start with a sequence number and creation time
+     */
+    public void setGenerateTimestamp(boolean generateTimestamp) {
+        this.generateTimestamp = generateTimestamp;
+    }
+
+    /**
+     * @param reuseMessages whether each producer sends the same message object every time, changing only its
+     *            payload. Only safe for a synchronous pipeline: everything downstream must finish with the message on
+     *            the sending thread before send returns and keep no reference to it, e.g. a consumer in the same
+     *            module or a message bus that serializes the message as it is sent. It is not safe with the local
+     *            message bus, or if anything downstream queues, aggregates or hands the message to another thread.
+     *            The source can only check the first hop, so it is honoured when the output is a
+     *            {@link DirectChannel} and the rest is up to whoever enables it.
+     */
+    public void setReuseMessages(boolean reuseMessages) {
+        this.reuseMessages = reuseMessages;
+    }
+
+    /**
+     * @param executorStrategy how producer threads are provided
+     */
+    public void setExecutorStrategy(ExecutorStrategy executorStrategy) {
+        this.executorStrategy = executorStrategy;
+    }
+
+    /**
+     * @param stopTimeoutMs how long stopping waits for producers to finish
+     */
+    public void setStopTimeoutMs(long stopTimeoutMs) {
+        this.stopTimeoutMs = stopTimeoutMs;
+    }
+
+    @Override
+    public void setOutputChannel(MessageChannel outputChannel) {
+        super.setOutputChannel(outputChannel);
+        this.outputChannel = outputChannel;
+    }
+
+    /**
+     * Stop producing until {@link #resume()} is called, producers finish the send they are in.
+     */
+    public void pause() {
+        paused = true;
+    }
+
+    public void resume() {
+        paused = false;
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
     @Override
     protected void doStart() {
-        executorService = Executors.newFixedThreadPool(1);
+        if (supplier == null && messageSize == 0) {
+            logger.error("LambdaSource has no supplier to call and no messageSize to generate, not starting");
+            return;
+        }
         if (running.compareAndSet(false, true)) {
-            executorService.execute(new Producer());
+            reusing = reuseMessages && outputChannel instanceof DirectChannel;
+            if (reuseMessages && !reusing) {
+                logger.info("LambdaSource output is not a direct channel, messages will not be reused");
+            }
+            else if (reusing) {
+                logger.warn("LambdaSource is reusing message objects, this is only safe if everything downstream "
+                        + "handles each message on the sending thread and keeps no reference to it");
+            }
+            tokenBucket = rate > 0 ? new TokenBucket(rate) : null;
+            // A queue channel is limited by the messages it holds (see isOutputFull), anything else by counting sends
+            sendPermits = maxInFlight > 0 && !(outputChannel instanceof QueueChannel) ? new Semaphore(maxInFlight)
+                    : null;
+            generation++;
+            executorService = executorStrategy.createExecutor(producers, "lambda-source");
+            activeProducers = new Producer[producers];
+            producersFinished = new CountDownLatch(producers);
+            for (int i = 0; i < producers; i++) {
+                activeProducers[i] = new Producer(i);
+                executorService.execute(activeProducers[i]);
+            }
         }
     }
 
+    /**
+     * Producers check between messages whether the source is still running, and their threads are interrupted so
+     * that one blocked in the supplier (or waiting for the output) notices promptly. Waits up to
+     * <tt>stopTimeoutMs</tt> for the producers to finish, then gives back the executor (the shared pool is shut down
+     * when the last source using it stops).
+     */
     @Override
     protected void doStop() {
         if (running.compareAndSet(true, false)) {
-            executorService.shutdown();
+            for (Producer producer : activeProducers) {
+                producer.interrupt();
+            }
+            try {
+                if (!producersFinished.await(stopTimeoutMs, TimeUnit.MILLISECONDS)) {
+                    logger.warn("LambdaSource producers still running " + stopTimeoutMs + "ms after stop");
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executorStrategy.releaseExecutor(executorService);
+            executorService = null;
+            activeProducers = null;
         }
     }
 
     protected class Producer implements Runnable {
 
-        public Producer() {
-        }
-
-//        private void send() {
-////            logger.info("Producer " + producerId + " sending " + messageCount + " messages");
-//            for (int x = 0; x < messageCount; x++) {
-//                final byte[] message = createPayload(x);
-//                sendMessage(new TestMessage(message));
-//            }
-//            logger.info("All Messages Dispatched");
-//        }
-
-//        private byte[] createPayload(int sequenceNumber) {
-//            byte message[] = new byte[messageSize];
-//            if (generateTimestamp) {
-//                try {
-//                    ByteArrayOutputStream acc = new ByteArrayOutputStream();
-//                    DataOutputStream d = new DataOutputStream(acc);
-//                    long nano = System.nanoTime();
-//                    d.writeInt(sequenceNumber);
-//                    d.writeLong(nano);
-//                    d.flush();
-//                    acc.flush();
-//                    byte[] m = acc.toByteArray();
-//                    if (m.length <= messageSize) {
-//                        System.arraycopy(m, 0, message, 0, m.length);
-//                        return message;
-//                    } else {
-//                        return m;
-//                    }
-//                } catch (IOException ioe) {
-//                    throw new IllegalStateException(ioe);
-//                }
-//            } else {
-//                return message;
-//            }
-//        }
+        private final int producerId;
+
+        private final ReusableMessage reusableMessage = reusing ? new ReusableMessage() : null;
+
+        // The start this producer belongs to, and what it was given by it
+        private final int producerGeneration = generation;
+
+        private final ExecutorService executor = executorService;
+
+        private final CountDownLatch finished = producersFinished;
+
+        private final TokenBucket bucket = tokenBucket;
+
+        private final Semaphore permits = sendPermits;
 
+        private int sent;
+
+        // The thread running the producer, so that stop can interrupt it
+        private Thread thread;
+
+        public Producer(int producerId) {
+            this.producerId = producerId;
+        }
+
+        synchronized void interrupt() {
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+
+        /**
+         * @return true while the source is running and has not been restarted since this producer was created
+         */
+        private boolean isCurrent() {
+            return running.get() && producerGeneration == generation;
+        }
+
+        private Message<?> wrap(Object payload) {
+            return reusableMessage != null ? reusableMessage.with(payload) : new TestMessage(payload);
+        }
+
+        /**
+         * With a shared executor the producer sends a slice of messages and then queues itself up again, so other
+         * producers get a turn on the pool's threads. Otherwise it runs until it is done.
+         */
         public void run() {
-        		Object message;
-            while ((message=supplier.get())!=null) {
-            		sendMessage(new TestMessage(message));
+            synchronized (this) {
+                thread = Thread.currentThread();
+            }
+            boolean done = true;
+            try {
+                if (sent == 0 && messageSize > 0) {
+                    logger.info("Producer " + producerId + " sending " + (messageCount == 0 ? "unlimited" : messageCount)
+                            + " messages of " + messageSize + " bytes");
+                }
+                done = produce(executorStrategy.isShared() ? SLICE_SIZE : Integer.MAX_VALUE);
+            }
+            catch (RuntimeException e) {
+                if (isCurrent()) {
+                    logger.error("Producer " + producerId + " failed: " + e);
+                }
+            }
+            finally {
+                synchronized (this) {
+                    thread = null;
+                    // Clear an interrupt from stop, it must not leak into whatever the thread runs next
+                    Thread.interrupted();
+                }
             }
+            if (!done && isCurrent()) {
+                try {
+                    executor.execute(this);
+                    return;
+                }
+                catch (RejectedExecutionException e) {
+                    // Shutting down
+                }
+            }
+            if (messageSize > 0) {
+                logger.info("Producer " + producerId + " dispatched " + sent + " messages");
+            }
+            finished.countDown();
         }
 
-        private class TestMessage implements Message<Object> {
-            private final Object message;
+        /**
+         * @return true if the producer is done (stopped, sent messageCount or the supplier returned null), false if
+         *         it sent <tt>limit</tt> messages and has more to send
+         */
+        private boolean produce(int limit) {
+            for (int i = 0; i < limit; i++) {
+                if ((messageCount != 0 && sent >= messageCount) || !awaitCapacity()) {
+                    return true;
+                }
+                Object message = messageSize > 0 ? createPayload(sent) : supplier.get();
+                if (message == null) {
+                    return true;
+                }
+                send(wrap(message));
+                sent++;
+            }
+            return false;
+        }
 
-            private final TestMessageHeaders headers;
+        /**
+         * The payload is handed on to the output channel, which may still hold it while the next one is built, so
+         * each message gets its own array. The header is written straight into it, big endian as DataOutputStream
+         * would write it.
+         */
+        private byte[] createPayload(int sequenceNumber) {
+            byte[] message = new byte[generateTimestamp ? Math.max(messageSize, TIMESTAMP_HEADER_LENGTH) : messageSize];
+            if (generateTimestamp) {
+                message[0] = (byte) (sequenceNumber >>> 24);
+                message[1] = (byte) (sequenceNumber >>> 16);
+                message[2] = (byte) (sequenceNumber >>> 8);
+                message[3] = (byte) sequenceNumber;
+                long nano = System.nanoTime();
+                for (int i = 11; i >= 4; i--) {
+                    message[i] = (byte) nano;
+                    nano >>>= 8;
+                }
+            }
+            return message;
+        }
 
-            public TestMessage(Object message) {
-                this.message = message;
-                this.headers = new TestMessageHeaders(null);
+        /**
+         * Wait while paused, rate limited or the output queue is full.
+         * @return false if the source was stopped while waiting
+         */
+        private boolean awaitCapacity() {
+            long backoff = 1000;
+            while (isCurrent() && (paused || isOutputFull())) {
+                LockSupport.parkNanos(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_NANOS);
             }
+            if (bucket != null) {
+                bucket.acquire();
+            }
+            return isCurrent();
+        }
 
-            @Override
-            public Object getPayload() {
-                return message;
+        private boolean isOutputFull() {
+            if (maxInFlight == 0) {
+                return false;
             }
+            return outputChannel instanceof QueueChannel
+                    && ((QueueChannel) outputChannel).getQueueSize() >= maxInFlight;
+        }
 
-            @Override
-            public MessageHeaders getHeaders() {
-                return headers;
+        /**
+         * Send the message, backing off and retrying for as long as the output channel refuses it.
+         */
+        private void send(Message<?> message) {
+            if (permits != null && !acquirePermit()) {
+                return;
+            }
+            try {
+                long backoff = 1000;
+                while (isCurrent()) {
+                    try {
+                        sendMessage(message);
+                        return;
+                    }
+                    catch (MessageDeliveryException e) {
+                        LockSupport.parkNanos(backoff);
+                        if (backoff < MAX_BACKOFF_NANOS && backoff * 2 >= MAX_BACKOFF_NANOS) {
+                            logger.warn("LambdaSource output is refusing messages, still retrying: " + e.getMessage());
+                        }
+                        backoff = Math.min(backoff * 2, MAX_BACKOFF_NANOS);
+                    }
+                }
             }
+            finally {
+                if (permits != null) {
+                    permits.release();
+                }
+            }
+        }
+
+        /**
+         * Wait until fewer than <tt>maxInFlight</tt> sends are under way.
+         * @return false if the source was stopped while waiting
+         */
+        private boolean acquirePermit() {
+            try {
+                while (isCurrent()) {
+                    if (permits.tryAcquire(MAX_BACKOFF_NANOS, TimeUnit.NANOSECONDS)) {
+                        return true;
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                // Stopping, the interrupt is cleared when the producer finishes
+            }
+            return false;
+        }
+    }
+
+    private static class TestMessage implements Message<Object> {
+
+        protected Object message;
+
+        public TestMessage(Object message) {
+            this.message = message;
+        }
+
+        @Override
+        public Object getPayload() {
+            return message;
+        }
+
+        @Override
+        public MessageHeaders getHeaders() {
+            return EMPTY_HEADERS;
+        }
+    }
 
-            class TestMessageHeaders extends MessageHeaders {
-				private static final long serialVersionUID = 1L;
+    /**
+     * A message a producer sends again and again with a different payload, only used when the output channel
+     * delivers synchronously on the sending thread so the previous payload has been consumed when send returns.
+     */
+    private static class ReusableMessage extends TestMessage {
+
+        ReusableMessage() {
+            super(null);
+        }
+
+        ReusableMessage with(Object payload) {
+            this.message = payload;
+            return this;
+        }
+    }
+
+    private static class TestMessageHeaders extends MessageHeaders {
+
+        private static final long serialVersionUID = 1L;
+
+        public TestMessageHeaders(Map<String, Object> headers) {
+            super(headers, ID_VALUE_NONE, -1L);
+        }
+    }
+
+    /**
+     * Shared by the producers to limit the overall send rate. Permits accrue at <tt>rate</tt> per second and up to a
+     * second's worth can be saved up, so short stalls are caught up with a burst rather than lost.
+     */
+    private class TokenBucket {
+
+        private final long intervalNanos;
+
+        private final long burstNanos;
+
+        // When the next permit is available
+        private final AtomicLong next = new AtomicLong(System.nanoTime());
+
+        TokenBucket(int rate) {
+            this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+            this.burstNanos = TimeUnit.SECONDS.toNanos(1);
+        }
 
-				public TestMessageHeaders(Map<String, Object> headers) {
-                    super(headers, ID_VALUE_NONE, -1L);
+        void acquire() {
+            while (true) {
+                long now = System.nanoTime();
+                long current = next.get();
+                long permitAt = Math.max(current, now - burstNanos);
+                if (next.compareAndSet(current, permitAt + intervalNanos)) {
+                    long wait;
+                    while ((wait = permitAt - System.nanoTime()) > 0 && running.get()) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    return;
                 }
             }
         }
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.codemodule;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import org.springframework.xd.module.options.spi.ModuleOption;
+
+/**
+ * Documents the options of the lambda source module.
+ */
+public class LambdaSourceOptionsMetadata {
+
+	private int producers = 1;
+
+	private int rate = 0;
+
+	private int maxInFlight = 0;
+
+	private int messageSize = 0;
+
+	private int messageCount = 0;
+
+	private boolean generateTimestamp = false;
+
+	private boolean reuseMessages = false;
+
+	private ExecutorStrategy executorStrategy = ExecutorStrategy.platform;
+
+	private long stopTimeoutMs = 5000;
+
+	@Min(1)
+	public int getProducers() {
+		return producers;
+	}
+
+	@ModuleOption("the number of threads calling the supplier, which must be thread safe if more than 1")
+	public void setProducers(int producers) {
+		this.producers = producers;
+	}
+
+	@Min(0)
+	public int getRate() {
+		return rate;
+	}
+
+	@ModuleOption("the most messages to send per second across all producers, 0 for no limit")
+	public void setRate(int rate) {
+		this.rate = rate;
+	}
+
+	@Min(0)
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	@ModuleOption("how many messages may be in flight before producers wait (held by a queue channel, otherwise being sent and handled), 0 for no limit")
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+
+	@Min(0)
+	public int getMessageSize() {
+		return messageSize;
+	}
+
+	@ModuleOption("if positive, send generated byte[] payloads of this size instead of calling the supplier")
+	public void setMessageSize(int messageSize) {
+		this.messageSize = messageSize;
+	}
+
+	@Min(0)
+	public int getMessageCount() {
+		return messageCount;
+	}
+
+	@ModuleOption("the number of messages each producer sends, 0 for no limit")
+	public void setMessageCount(int messageCount) {
+		this.messageCount = messageCount;
+	}
+
+	public boolean isGenerateTimestamp() {
+		return generateTimestamp;
+	}
+
+	@ModuleOption("whether generated payloads start with a sequence number and nanoTime, for measuring latency")
+	public void setGenerateTimestamp(boolean generateTimestamp) {
+		this.generateTimestamp = generateTimestamp;
+	}
+
+	public boolean isReuseMessages() {
+		return reuseMessages;
+	}
+
+	@ModuleOption("whether to send the same message object each time, only safe if everything downstream handles messages synchronously and keeps none (not with the local message bus)")
+	public void setReuseMessages(boolean reuseMessages) {
+		this.reuseMessages = reuseMessages;
+	}
+
+	@NotNull
+	public ExecutorStrategy getExecutorStrategy() {
+		return executorStrategy;
+	}
+
+	@ModuleOption("how producer threads are provided: platform (one per producer), shared (a pool shared between modules) or virtual")
+	public void setExecutorStrategy(ExecutorStrategy executorStrategy) {
+		this.executorStrategy = executorStrategy;
+	}
+
+	@Min(0)
+	public long getStopTimeoutMs() {
+		return stopTimeoutMs;
+	}
+
+	@ModuleOption("how long stopping the module waits for producers to finish")
+	public void setStopTimeoutMs(long stopTimeoutMs) {
+		this.stopTimeoutMs = stopTimeoutMs;
+	}
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2015 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.codemodule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.integration.channel.DirectChannel;
+import org.springframework.integration.channel.QueueChannel;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+
+/**
+ * @author Andy Clement
+ */
+public class LambdaSourceTests {
+
+	private LambdaSource source;
+
+	@After
+	public void stop() {
+		if (source != null) {
+			source.stop();
+		}
+	}
+
+	@Test
+	public void rate() throws Exception {
+		QueueChannel output = new QueueChannel();
+		source = source(output, () -> "tick");
+		source.setProducers(4);
+		source.setRate(100);
+		source.start();
+		Thread.sleep(1000);
+		source.stop();
+		// Shared by all the producers, and nothing saved up before the start to send in a burst
+		int sent = drain(output).size();
+		assertTrue("sent " + sent, sent >= 80 && sent <= 120);
+	}
+
+	@Test
+	public void maxInFlightOnDirectChannel() throws Exception {
+		DirectChannel output = new DirectChannel();
+		AtomicInteger handling = new AtomicInteger();
+		AtomicInteger mostHandling = new AtomicInteger();
+		CountDownLatch release = new CountDownLatch(1);
+		output.subscribe(message -> {
+			mostHandling.accumulateAndGet(handling.incrementAndGet(), Integer::max);
+			try {
+				release.await();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			handling.decrementAndGet();
+		});
+		source = source(output, () -> "x");
+		source.setProducers(6);
+		source.setMaxInFlight(2);
+		source.start();
+		assertTrue(await(() -> handling.get() == 2));
+		// The other producers wait rather than sending into the blocked handler
+		Thread.sleep(200);
+		assertEquals(2, mostHandling.get());
+		release.countDown();
+		Thread.sleep(100);
+		source.stop();
+		assertEquals(2, mostHandling.get());
+	}
+
+	@Test
+	public void retriesRefusedSends() throws Exception {
+		// No subscriber yet, so sends are refused with a MessageDeliveryException
+		DirectChannel output = new DirectChannel();
+		source = source(output, () -> "x");
+		source.setMessageCount(3);
+		source.start();
+		Thread.sleep(100);
+		List<Object> received = Collections.synchronizedList(new ArrayList<>());
+		output.subscribe(message -> received.add(message.getPayload()));
+		assertTrue(await(() -> received.size() == 3));
+		Thread.sleep(100);
+		assertEquals(3, received.size());
+	}
+
+	@Test
+	public void restartRetiresEarlierProducers() throws Exception {
+		QueueChannel output = new QueueChannel();
+		CountDownLatch blocked = new CountDownLatch(1);
+		AtomicBoolean restarted = new AtomicBoolean();
+		source = source(output, () -> {
+			if (restarted.get()) {
+				return "new";
+			}
+			blocked.countDown();
+			// Ignore the interrupt from stop, so that stop gives up waiting for this producer
+			long until = System.currentTimeMillis() + 500;
+			while (System.currentTimeMillis() < until) {
+				try {
+					Thread.sleep(10);
+				}
+				catch (InterruptedException e) {
+					// keep going
+				}
+			}
+			return "old";
+		});
+		source.setMessageCount(10);
+		source.setStopTimeoutMs(50);
+		source.start();
+		assertTrue(blocked.await(5, TimeUnit.SECONDS));
+		source.stop();
+		restarted.set(true);
+		source.start();
+		// Long enough for the producer from the first start to return from the supplier
+		Thread.sleep(1000);
+		source.stop();
+		List<Object> payloads = drain(output);
+		assertFalse(payloads.contains("old"));
+		assertEquals(Collections.nCopies(10, "new"), payloads);
+	}
+
+	private LambdaSource source(MessageChannel output, Supplier<?> supplier) {
+		LambdaSource source = new LambdaSource();
+		source.supplier = supplier;
+		source.setOutputChannel(output);
+		return source;
+	}
+
+	private List<Object> drain(QueueChannel channel) {
+		List<Object> payloads = new ArrayList<>();
+		Message<?> message;
+		while ((message = channel.receive(0)) != null) {
+			payloads.add(message.getPayload());
+		}
+		return payloads;
+	}
+
+	private boolean await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.acme;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rx.Observable;
+import rx.Producer;
+import rx.Subscriber;
+import rx.exceptions.MissingBackpressureException;
+
+/**
+ * Puts a bounded queue between the messages arriving at the module and the user's Rx pipeline. Payloads are queued
+ * as they arrive, applying the {@link OverflowPolicy} when the queue is full, and a dedicated thread drains the queue
+ * into the pipeline only as fast as the pipeline requests them (<tt>request(n)</tt>). A slow pipeline then fills the
+ * queue, rather than memory, and the overflow policy decides what gives.
+ * <p>
+ * The returned Observable supports a single subscriber, which is how the module's message handler uses it.
+ *
+ * @author Andy Clement
+ */
+public class BoundedIngress<T> implements BoundedIngressMBean {
+
+	private final BlockingQueue<T> queue;
+
+	private final int capacity;
+
+	private final OverflowPolicy overflowPolicy;
+
+	private final AtomicLong received = new AtomicLong();
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final AtomicLong requested = new AtomicLong();
+
+	private final AtomicInteger highWaterMark = new AtomicInteger();
+
+	private volatile boolean done;
+
+	private volatile Throwable error;
+
+	private volatile Thread drainer;
+
+	public BoundedIngress(int capacity, OverflowPolicy overflowPolicy) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Queue capacity must be at least 1: " + capacity);
+		}
+		this.capacity = capacity;
+		this.overflowPolicy = overflowPolicy;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+	}
+
+	/**
+	 * @param input the payloads arriving at the module, subscribed to straight away
+	 * @return the same payloads, taken from the queue as they are requested
+	 */
+	public Observable<T> connect(Observable<T> input) {
+		// unsafeSubscribe so that a failure to queue is thrown back to the sender rather than ending the subscription
+		input.unsafeSubscribe(new Subscriber<T>() {
+
+			@Override
+			public void onNext(T item) {
+				offer(item);
+			}
+
+			@Override
+			public void onError(Throwable e) {
+				error = e;
+				done = true;
+				wakeDrainer();
+			}
+
+			@Override
+			public void onCompleted() {
+				done = true;
+				wakeDrainer();
+			}
+		});
+		return Observable.create(subscriber -> subscriber.setProducer(new Drain(subscriber)));
+	}
+
+	void offer(T item) {
+		received.incrementAndGet();
+		switch (overflowPolicy) {
+		case block:
+			try {
+				queue.put(item);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				dropped.incrementAndGet();
+				return;
+			}
+			break;
+		case dropOldest:
+			while (!queue.offer(item)) {
+				if (queue.poll() != null) {
+					dropped.incrementAndGet();
+				}
+			}
+			break;
+		case dropNewest:
+			if (!queue.offer(item)) {
+				dropped.incrementAndGet();
+				return;
+			}
+			break;
+		default:
+			if (!queue.offer(item)) {
+				dropped.incrementAndGet();
+				throw new IllegalStateException(
+						new MissingBackpressureException("rx-processor queue is full (" + capacity + " payloads)"));
+			}
+		}
+		// Integer::max rather than Math::max, com.acme.Math hides java.lang.Math in this package
+		highWaterMark.accumulateAndGet(queue.size(), Integer::max);
+	}
+
+	private synchronized void wakeDrainer() {
+		notifyAll();
+	}
+
+	/**
+	 * Stop draining, e.g. because the module is being undeployed.
+	 */
+	public void shutdown() {
+		Thread thread = drainer;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	@Override
+	public int getQueueCapacity() {
+		return capacity;
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	@Override
+	public int getQueueHighWaterMark() {
+		return highWaterMark.get();
+	}
+
+	@Override
+	public String getOverflowPolicy() {
+		return overflowPolicy.name();
+	}
+
+	@Override
+	public long getReceivedCount() {
+		return received.get();
+	}
+
+	@Override
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	@Override
+	public long getOutstandingRequests() {
+		return requested.get();
+	}
+
+	private class Drain implements Producer, Runnable {
+
+		private final Subscriber<? super T> subscriber;
+
+		Drain(Subscriber<? super T> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				return;
+			}
+			long current, next;
+			do {
+				current = requested.get();
+				if (current == Long.MAX_VALUE) {
+					break;
+				}
+				next = current + n;
+				if (next < 0) {
+					next = Long.MAX_VALUE;
+				}
+			}
+			while (!requested.compareAndSet(current, next));
+			synchronized (BoundedIngress.this) {
+				if (drainer == null) {
+					drainer = new Thread(this, "rx-processor-drain");
+					drainer.setDaemon(true);
+					drainer.start();
+				}
+				BoundedIngress.this.notifyAll();
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!subscriber.isUnsubscribed()) {
+					if (requested.get() == 0) {
+						synchronized (BoundedIngress.this) {
+							if (requested.get() == 0) {
+								BoundedIngress.this.wait(100);
+							}
+						}
+						continue;
+					}
+					T item = queue.poll(100, TimeUnit.MILLISECONDS);
+					if (item == null) {
+						if (done && queue.isEmpty()) {
+							if (error != null) {
+								subscriber.onError(error);
+							}
+							else {
+								subscriber.onCompleted();
+							}
+							return;
+						}
+						continue;
+					}
+					if (requested.get() != Long.MAX_VALUE) {
+						requested.decrementAndGet();
+					}
+					subscriber.onNext(item);
+				}
+			}
+			catch (InterruptedException e) {
+				// Shut down
+			}
+			catch (Throwable t) {
+				subscriber.onError(t);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.acme;
+
+/**
+ * What {@link BoundedIngress} exposes over JMX, registered as <tt>xd.processor.rx:type=BoundedIngress,name=&lt;name&gt;</tt>.
+ *
+ * @author Andy Clement
+ */
+public interface BoundedIngressMBean {
+
+	int getQueueCapacity();
+
+	int getQueueDepth();
+
+	/**
+	 * @return the deepest the queue has been
+	 */
+	int getQueueHighWaterMark();
+
+	String getOverflowPolicy();
+
+	long getReceivedCount();
+
+	long getDroppedCount();
+
+	/**
+	 * @return how many more payloads the pipeline has asked for
+	 */
+	long getOutstandingRequests();
+
+}
@@ -19,10 +19,15 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
+import java.lang.management.ManagementFactory;
 import java.util.function.Function;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.integration.annotation.MessageEndpoint;
 import org.springframework.integration.annotation.Transformer;
 import org.springframework.xd.rxjava.Processor;
@@ -35,12 +40,22 @@ import rx.Observable;
 /**
  * @author Andy Clement
  */
-public abstract class CodeDrivenProcessor implements Processor<Tuple,Tuple> {
+public abstract class CodeDrivenProcessor implements Processor<Tuple,Tuple>, DisposableBean {
 
 	private static Log logger = LogFactory.getLog(Code.class);
 
 	protected Processor<Tuple,Tuple> delegate;
 
+	private int queueCapacity = 0;
+
+	private OverflowPolicy overflowPolicy = OverflowPolicy.block;
+
+	private String metricsName = "rx-processor";
+
+	private BoundedIngress<Tuple> ingress;
+
+	private ObjectName objectName;
+
 	public CodeDrivenProcessor(String resource) {
 		// 1. load the resource
 		// 2. deserialize the lambda
@@ -48,8 +63,17 @@ public abstract class CodeDrivenProcessor implements Processor<Tuple,Tuple> {
 		if (resource == null) return;
 		try {
 			// InputStream is = new FileInputStream(new File("/tmp/bytes"));//
-			InputStream is = this.getClass().getClassLoader()
-					.getResourceAsStream(resource);
+			ClassLoader classLoader = this.getClass().getClassLoader();
+			InputStream is = classLoader.getResourceAsStream("lambda.cap");
+			if (is != null) {
+				// Compact capture form, read by the LambdaCapture class packaged with the lambda
+				delegate = (Processor<Tuple,Tuple>) Class.forName("org.springframework.xd.dsl.domain.LambdaCapture",
+						true, classLoader).getMethod("read", InputStream.class, ClassLoader.class).invoke(null, is,
+						classLoader);
+				is.close();
+				return;
+			}
+			is = classLoader.getResourceAsStream(resource);
 			if (is == null) return;
 			System.out.println("deserializing");
 			ObjectInputStream ois = new ObjectInputStream(is);
@@ -57,14 +81,38 @@ public abstract class CodeDrivenProcessor implements Processor<Tuple,Tuple> {
 			ois.close();
 		} catch (IOException e) {
 			e.printStackTrace();
-		} catch (ClassNotFoundException e) {
+		} catch (ReflectiveOperationException e) {
 			e.printStackTrace();
 		}
 	}
 
 
+	/**
+	 * @param queueCapacity if positive, queue up to this many payloads ahead of the pipeline and only pass them on as
+	 *            it requests them. 0 passes payloads straight to the pipeline as they arrive.
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * @param metricsName the name the queue metrics are registered under with JMX
+	 */
+	public void setMetricsName(String metricsName) {
+		this.metricsName = metricsName;
+	}
+
 	@Override
 	public Observable<Tuple> process(Observable<Tuple> inputStream) {
+		if (queueCapacity > 0) {
+			ingress = new BoundedIngress<>(queueCapacity, overflowPolicy);
+			registerMBean();
+			inputStream = ingress.connect(inputStream);
+		}
 		return delegate.process(inputStream);
 //		return inputStream.map(tuple -> { return tuple.getValue("title");}).map(data -> tuple().of("x",data));//.map(data -> tuple().of("wobble",data));
 //		return fn.apply(inputStream);
@@ -73,5 +121,36 @@ public abstract class CodeDrivenProcessor implements Processor<Tuple,Tuple> {
 //			return tuple.getDouble("measurement");
 //		}).buffer(5).map(data -> tuple().of("average", avg(data)));
 	}
-	
+
+	@Override
+	public void destroy() {
+		if (ingress != null) {
+			ingress.shutdown();
+		}
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			}
+			catch (Exception e) {
+				// Already gone
+			}
+			objectName = null;
+		}
+	}
+
+	private void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			objectName = new ObjectName("xd.processor.rx:type=BoundedIngress,name=" + ObjectName.quote(metricsName));
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(ingress, objectName);
+		}
+		catch (Exception e) {
+			logger.warn("Unable to register rx-processor queue metrics with JMX: " + e.getMessage());
+			objectName = null;
+		}
+	}
+
 }
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.acme;
+
+/**
+ * What a bounded rx-processor does with an incoming payload when its queue is full.
+ *
+ * @author Andy Clement
+ */
+public enum OverflowPolicy {
+
+	/** Hold up the sender until there is room, pushing back on whatever is delivering messages */
+	block,
+
+	/** Discard the longest queued payload to make room */
+	dropOldest,
+
+	/** Discard the incoming payload */
+	dropNewest,
+
+	/**
+	 * Fail the incoming message with an {@link IllegalStateException} whose cause is an
+	 * {@link rx.exceptions.MissingBackpressureException}
+	 */
+	error;
+
+}
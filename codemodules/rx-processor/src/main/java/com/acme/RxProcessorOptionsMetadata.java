@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.acme;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import org.springframework.xd.module.options.spi.ModuleOption;
+import org.springframework.xd.module.options.spi.ModulePlaceholders;
+
+/**
+ * Documents the options of the rx processor module.
+ *
+ * @author Andy Clement
+ */
+public class RxProcessorOptionsMetadata {
+
+	private int queueCapacity = 0;
+
+	private OverflowPolicy overflowPolicy = OverflowPolicy.block;
+
+	private String metricsName = ModulePlaceholders.XD_STREAM_NAME;
+
+	@Min(0)
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	@ModuleOption("if positive, how many payloads to queue ahead of the Rx pipeline, which takes them as it requests them")
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	@NotNull
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	@ModuleOption("what to do when the queue is full: block, dropOldest, dropNewest or error")
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	@NotNull
+	public String getMetricsName() {
+		return metricsName;
+	}
+
+	@ModuleOption("the name the queue metrics are registered under with JMX")
+	public void setMetricsName(String metricsName) {
+		this.metricsName = metricsName;
+	}
+
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.acme;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Test;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.exceptions.MissingBackpressureException;
+
+/**
+ * @author Andy Clement
+ */
+public class BoundedIngressTests {
+
+	private BoundedIngress<Integer> ingress;
+
+	// Where the test sends payloads into the ingress
+	private Subscriber<? super Integer> input;
+
+	private final Demanding pipeline = new Demanding();
+
+	@After
+	public void shutdown() {
+		if (ingress != null) {
+			ingress.shutdown();
+		}
+	}
+
+	@Test
+	public void dropNewest() throws Exception {
+		connect(2, OverflowPolicy.dropNewest);
+		send(1, 2, 3);
+		assertEquals(2, ingress.getQueueDepth());
+		assertEquals(2, ingress.getQueueHighWaterMark());
+		assertEquals(3, ingress.getReceivedCount());
+		assertEquals(1, ingress.getDroppedCount());
+		pipeline.demand(10);
+		awaitReceived(1, 2);
+	}
+
+	@Test
+	public void dropOldest() throws Exception {
+		connect(2, OverflowPolicy.dropOldest);
+		send(1, 2, 3);
+		assertEquals(1, ingress.getDroppedCount());
+		pipeline.demand(10);
+		awaitReceived(2, 3);
+	}
+
+	@Test
+	public void error() throws Exception {
+		connect(2, OverflowPolicy.error);
+		send(1, 2);
+		try {
+			send(3);
+			fail("A full queue should fail the incoming payload");
+		}
+		catch (IllegalStateException ise) {
+			assertTrue(ise.getCause() instanceof MissingBackpressureException);
+		}
+		assertEquals(1, ingress.getDroppedCount());
+		pipeline.demand(10);
+		awaitReceived(1, 2);
+		// The input is still subscribed
+		send(4);
+		awaitReceived(1, 2, 4);
+	}
+
+	@Test
+	public void block() throws Exception {
+		connect(1, OverflowPolicy.block);
+		send(1);
+		Thread sender = new Thread(() -> send(2));
+		sender.start();
+		sender.join(200);
+		assertTrue("The sender should wait for room in the queue", sender.isAlive());
+		pipeline.demand(1);
+		awaitReceived(1);
+		sender.join(5000);
+		assertFalse(sender.isAlive());
+		assertEquals(0, ingress.getDroppedCount());
+		pipeline.demand(1);
+		awaitReceived(1, 2);
+	}
+
+	@Test
+	public void drainsAsRequested() throws Exception {
+		connect(10, OverflowPolicy.error);
+		send(1, 2, 3, 4, 5);
+		Thread.sleep(100);
+		assertTrue(pipeline.received.isEmpty());
+		pipeline.demand(2);
+		awaitReceived(1, 2);
+		Thread.sleep(100);
+		assertEquals(Arrays.asList(1, 2), pipeline.received);
+		assertEquals(0, ingress.getOutstandingRequests());
+		assertEquals(3, ingress.getQueueDepth());
+		pipeline.demand(5);
+		awaitReceived(1, 2, 3, 4, 5);
+		assertEquals(2, ingress.getOutstandingRequests());
+		// Completion is passed on once the queue is empty
+		input.onCompleted();
+		await(() -> pipeline.completed);
+	}
+
+	@Test
+	public void completesAfterQueuedPayloads() throws Exception {
+		connect(10, OverflowPolicy.error);
+		send(1, 2);
+		input.onCompleted();
+		Thread.sleep(100);
+		assertFalse(pipeline.completed);
+		pipeline.demand(10);
+		awaitReceived(1, 2);
+		await(() -> pipeline.completed);
+	}
+
+	@Test
+	public void shutdownStopsDraining() throws Exception {
+		connect(10, OverflowPolicy.error);
+		pipeline.demand(10);
+		send(1);
+		awaitReceived(1);
+		ingress.shutdown();
+		pipeline.drainer.join(5000);
+		assertFalse(pipeline.drainer.isAlive());
+		send(2);
+		Thread.sleep(100);
+		assertEquals(Arrays.asList(1), pipeline.received);
+		assertEquals(1, ingress.getQueueDepth());
+	}
+
+	private void connect(int capacity, OverflowPolicy overflowPolicy) {
+		ingress = new BoundedIngress<>(capacity, overflowPolicy);
+		ingress.connect(Observable.<Integer> create(subscriber -> input = subscriber)).subscribe(pipeline);
+	}
+
+	private void send(Integer... payloads) {
+		for (Integer payload : payloads) {
+			input.onNext(payload);
+		}
+	}
+
+	private void awaitReceived(Integer... expected) throws InterruptedException {
+		List<Integer> expectedList = Arrays.asList(expected);
+		await(() -> pipeline.received.size() >= expectedList.size());
+		assertEquals(expectedList, pipeline.received);
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("Timed out");
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * A pipeline that requests nothing until told to.
+	 */
+	private static class Demanding extends Subscriber<Integer> {
+
+		final List<Integer> received = new CopyOnWriteArrayList<>();
+
+		volatile boolean completed;
+
+		volatile Thread drainer;
+
+		Demanding() {
+			request(0);
+		}
+
+		void demand(long n) {
+			request(n);
+		}
+
+		@Override
+		public void onNext(Integer payload) {
+			drainer = Thread.currentThread();
+			received.add(payload);
+		}
+
+		@Override
+		public void onError(Throwable e) {
+			e.printStackTrace();
+		}
+
+		@Override
+		public void onCompleted() {
+			completed = true;
+		}
+	}
+}
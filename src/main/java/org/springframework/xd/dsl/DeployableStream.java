@@ -16,12 +16,23 @@
 
 package org.springframework.xd.dsl;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.springframework.xd.dsl.domain.CodeModule;
 import org.springframework.xd.dsl.domain.Processor;
 import org.springframework.xd.dsl.domain.Resource;
 import org.springframework.xd.fluent.internal.CustomizedModuleGenerator;
+import org.springframework.xd.fluent.internal.DeploymentManifest;
 import org.springframework.xd.fluent.internal.XDRestClient;
 
 /**
@@ -37,11 +48,16 @@ public class DeployableStream {
 
 	XDRestClient xdrc;
 
-	private String streamName;
-
 	public DeployableStream(StreamState streamState) {
+		this(streamState, XDRestClient.getInstance());
+	}
+
+	/**
+	 * @param xdrc the client used by the deploy methods that do not take one
+	 */
+	public DeployableStream(StreamState streamState, XDRestClient xdrc) {
 		this.streamState = streamState;
-		this.xdrc = XDRestClient.getInstance();
+		this.xdrc = xdrc;
 	}
 
 	public DeployedStream deploy(String streamName) {
@@ -50,76 +66,215 @@ public class DeployableStream {
 
 	private static boolean automaticallyTidyUpBeforeDeploy = false;
 
+	private int deployParallelism = Integer.getInteger("xd.dsl.deploy.parallelism", 4);
+
+	/**
+	 * Set how many code modules may be packaged and uploaded at the same time during deployment.
+	 */
+	public DeployableStream setDeployParallelism(int deployParallelism) {
+		if (deployParallelism < 1) {
+			throw new IllegalArgumentException("Deploy parallelism must be at least 1 but was " + deployParallelism);
+		}
+		this.deployParallelism = deployParallelism;
+		return this;
+	}
+
+	private boolean skipUnchanged = Boolean.parseBoolean(System.getProperty("xd.dsl.deploy.skipUnchanged", "true"));
+
+	/**
+	 * When replacing an existing stream, compare the stream definition and code modules with what was last deployed
+	 * from this machine: if nothing has changed leave the stream running, otherwise only redefine the code modules
+	 * that have changed. When false the stream and all its code modules are always recreated.
+	 */
+	public DeployableStream setSkipUnchanged(boolean skipUnchanged) {
+		this.skipUnchanged = skipUnchanged;
+		return this;
+	}
+
 	/**
 	 * @param streamName the name to use when deploying the stream
-	 * @param replaceExistingStream if true, any existing stream of the same name will be destroyed prior to creating
-	 *            this one
+	 * @param replaceExistingStream if true, any existing stream of the same name will be replaced by this one (unless
+	 *            it is unchanged, see {@link #setSkipUnchanged(boolean)})
 	 */
 	public DeployedStream deploy(String streamName, boolean replaceExistingStream) {
-		this.streamName = (streamName == null ? "anonymous" : streamName);
-		XDRestClient xdrc = XDRestClient.getInstance();
+		return deploy(streamName, replaceExistingStream, this.xdrc);
+	}
+
+	/**
+	 * Deploy the stream to the server the client talks to. The same stream can be deployed to several servers at once
+	 * by calling this concurrently with different clients.
+	 *
+	 * @param streamName the name to use when deploying the stream
+	 * @param replaceExistingStream if true, any existing stream of the same name will be replaced by this one (unless
+	 *            it is unchanged, see {@link #setSkipUnchanged(boolean)})
+	 * @param xdrc the client for the target server
+	 */
+	public DeployedStream deploy(String streamName, boolean replaceExistingStream, XDRestClient xdrc) {
+		streamName = (streamName == null ? "anonymous" : streamName);
+		List<CodeModule> codeModules = new ArrayList<>();
+		List<String> moduleNames = new ArrayList<>();
+		String definition;
+		// Module names (and so the stream definition) depend on the stream name, capture them together in case
+		// another thread is deploying this stream under a different name
+		synchronized (streamState) {
+			collectCodeModules(codeModules);
+			for (CodeModule module : codeModules) {
+				module.setStreamName(streamName);
+				moduleNames.add(module.getName());
+			}
+			definition = streamState.toDSLString();
+		}
+		Map<String, String> fingerprints = new LinkedHashMap<>();
+		for (int i = 0; i < codeModules.size(); i++) {
+			CodeModule module = codeModules.get(i);
+			String fingerprint = CustomizedModuleGenerator.fingerprint(module.getType(), module.getModuleType(),
+					module.getResourcesToPackage(), module.getInputType(), module.getOutputType(),
+					module.getLambdaTarget());
+			if (fingerprint != null) {
+				fingerprints.put(moduleNames.get(i), fingerprint);
+			}
+		}
+		DeploymentManifest manifest = xdrc.getDeploymentManifest();
+		List<CodeModule> modulesToDefine = codeModules;
+		List<String> moduleNamesToDefine = moduleNames;
 		if (replaceExistingStream) {
-			xdrc.destroyStream(this.streamName);
-			xdrc.deleteCodeModulesForStream(this.streamName);
+			Set<String> unchanged = skipUnchanged ? findUnchangedModules(xdrc, streamName, codeModules, moduleNames,
+					fingerprints) : Collections.emptySet();
+			if (unchanged.size() == codeModules.size() && definition.equals(manifest.getDefinition(streamName))
+					&& xdrc.checkStreamExists(streamName, XDRestClient.StreamState.DEPLOYED)) {
+				System.out.println("Stream '" + streamName + "' is unchanged, leaving it deployed");
+				return new DeployedStream(streamName, streamState, xdrc);
+			}
+			xdrc.destroyStream(streamName, false);
+			xdrc.deleteCodeModulesForStream(streamName, unchanged);
+			if (!unchanged.isEmpty()) {
+				modulesToDefine = new ArrayList<>();
+				moduleNamesToDefine = new ArrayList<>();
+				for (int i = 0; i < codeModules.size(); i++) {
+					if (unchanged.contains(moduleNames.get(i))) {
+						System.out.println("  code module " + moduleNames.get(i) + " is unchanged, not redefining it");
+					}
+					else {
+						modulesToDefine.add(codeModules.get(i));
+						moduleNamesToDefine.add(moduleNames.get(i));
+					}
+				}
+			}
 		}
 		if (automaticallyTidyUpBeforeDeploy) {
 			xdrc.destroyCodeStreams();
 			xdrc.deleteCodeModules();
 		}
-		if (streamState.usesCodeModules()) {
+		if (!modulesToDefine.isEmpty()) {
 			// Package and upload those modules
 			// TODO deal with sources/sinks
-			if (!defineCodeModules()) {
+			if (!defineCodeModules(xdrc, modulesToDefine, moduleNamesToDefine)) {
 				System.out.println("Failed to deploy code modules, exiting");
 				return null;
 			}
 		}
 		if (!streamState.isCreated()) {
-			xdrc.createStream(this.streamName, streamState.toDSLString(), true);
+			if (xdrc.createStream(streamName, definition, true) && fingerprints.size() == codeModules.size()) {
+				manifest.record(streamName, definition, fingerprints);
+			}
 		}
-		return new DeployedStream(this.streamName, streamState);
+		return new DeployedStream(streamName, streamState, xdrc);
 	}
 
-	private boolean defineCodeModules() {
-		System.out.println("defining new code modules");
-		if (streamState.getSource() instanceof CodeModule) {
-			if (!defineCodeModule((CodeModule) streamState.getSource())) {
-				return false;
+	/**
+	 * @return the names of the code modules whose fingerprints match the ones recorded when the stream was last
+	 *         deployed, and which are still on the server
+	 */
+	private Set<String> findUnchangedModules(XDRestClient xdrc, String streamName, List<CodeModule> codeModules,
+			List<String> moduleNames, Map<String, String> fingerprints) {
+		Map<String, String> previousFingerprints = xdrc.getDeploymentManifest().getModuleFingerprints(streamName);
+		Set<String> unchanged = new HashSet<>();
+		for (int i = 0; i < codeModules.size(); i++) {
+			String moduleName = moduleNames.get(i);
+			String fingerprint = fingerprints.get(moduleName);
+			if (fingerprint != null && fingerprint.equals(previousFingerprints.get(moduleName))
+					&& xdrc.checkModuleExists(codeModules.get(i).getModuleType().toString(), moduleName)) {
+				unchanged.add(moduleName);
 			}
 		}
+		return unchanged;
+	}
+
+	private void collectCodeModules(List<CodeModule> codeModules) {
+		if (streamState.getSource() instanceof CodeModule) {
+			codeModules.add((CodeModule) streamState.getSource());
+		}
 		if (streamState.getProcessors() != null) {
 			for (Processor processor : streamState.getProcessors()) {
 				if (processor instanceof CodeModule) {
-					if (!defineCodeModule((CodeModule) processor)) {
-						return false;
-					}
+					codeModules.add((CodeModule) processor);
 				}
 			}
 		}
 		if (streamState.getSink() instanceof CodeModule) {
-			if (!defineCodeModule((CodeModule) streamState.getSink())) {
+			codeModules.add((CodeModule) streamState.getSink());
+		}
+	}
+
+	private boolean defineCodeModules(XDRestClient xdrc, List<CodeModule> codeModules, List<String> moduleNames) {
+		System.out.println("defining new code modules");
+		// Package and upload all the modules concurrently, then wait for them all to be available
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(deployParallelism, codeModules.size()),
+				r -> {
+					Thread t = new Thread(r, "xd-dsl-deploy");
+					t.setDaemon(true);
+					return t;
+				});
+		try {
+			List<Future<Boolean>> uploads = new ArrayList<>();
+			for (int i = 0; i < codeModules.size(); i++) {
+				CodeModule module = codeModules.get(i);
+				String moduleName = moduleNames.get(i);
+				uploads.add(executor.submit(() -> defineCodeModule(xdrc, module, moduleName)));
+			}
+			if (!allSucceeded(uploads)) {
+				return false;
+			}
+			List<Future<Boolean>> confirmations = new ArrayList<>();
+			for (int i = 0; i < codeModules.size(); i++) {
+				confirmations.add(xdrc.awaitModuleExistence(codeModules.get(i).getModuleType().toString(),
+						moduleNames.get(i)));
+			}
+			return allSucceeded(confirmations);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private boolean allSucceeded(List<Future<Boolean>> futures) {
+		boolean result = true;
+		for (Future<Boolean> future : futures) {
+			try {
+				result &= future.get();
+			}
+			catch (ExecutionException ee) {
+				ee.getCause().printStackTrace();
+				result = false;
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
 				return false;
 			}
 		}
-		return true;
+		return result;
 	}
 
-	private boolean defineCodeModule(CodeModule module) {
-		module.setStreamName(this.streamName);
-		String moduleName = module.getName();
+	private boolean defineCodeModule(XDRestClient xdrc, CodeModule module, String moduleName) {
 		System.out.println("  building custom code processor module: " + moduleName);
 		Set<Resource> resourcesToPackage = module.getResourcesToPackage();
 		byte[] customizedModule =
 				CustomizedModuleGenerator.generate(module.getType(), module.getModuleType(), moduleName,
-						resourcesToPackage, module.getInputType(), module.getOutputType());
-		//		System.out.println("  uploading processor: name = " + processorName + ", customized module size = "
-		//				+ customizedModule.length + "bytes");
-		boolean result = xdrc.uploadModule(moduleName, customizedModule, module.getModuleType().toString());
-		// TODO is it necessary to make sure?
-		if (result) {
-			xdrc.waitOnModuleExistence(module.getModuleType().toString(), moduleName);
+						resourcesToPackage, module.getInputType(), module.getOutputType(), module.getLambdaTarget());
+		if (customizedModule == null) {
+			return false;
 		}
-		return result;
+		return xdrc.uploadModule(moduleName, customizedModule, module.getModuleType().toString(), false);
 	}
 
 }
@@ -32,9 +32,20 @@ public class DeployedStream {
 	private XDRestClient xdrc;
 
 	public DeployedStream(String streamName, StreamState streamState) {
+		this(streamName, streamState, XDRestClient.getInstance());
+	}
+
+	/**
+	 * @param xdrc the client for the server on which the stream is deployed
+	 */
+	public DeployedStream(String streamName, StreamState streamState, XDRestClient xdrc) {
 		this.streamName = streamName;
 		//		this.streamState = streamState;
-		this.xdrc = XDRestClient.getInstance();
+		this.xdrc = xdrc;
+	}
+
+	public String getStreamName() {
+		return this.streamName;
 	}
 
 	public void destroy() {
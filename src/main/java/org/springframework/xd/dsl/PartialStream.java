@@ -29,15 +29,24 @@ import org.springframework.xd.dsl.domain.CodeModule;
 import org.springframework.xd.dsl.domain.CodeProcessor;
 import org.springframework.xd.dsl.domain.CodeSource;
 import org.springframework.xd.dsl.domain.CodeType;
+import org.springframework.xd.dsl.domain.LambdaCapture;
 import org.springframework.xd.dsl.domain.Processor;
+import org.springframework.xd.dsl.domain.Resource;
+import org.springframework.xd.dsl.domain.SerializableDoubleUnaryOperator;
 import org.springframework.xd.dsl.domain.SerializableFunction;
+import org.springframework.xd.dsl.domain.SerializableIntUnaryOperator;
+import org.springframework.xd.dsl.domain.SerializableLongUnaryOperator;
 import org.springframework.xd.dsl.domain.SerializableProcessor;
 import org.springframework.xd.dsl.domain.SerializableSupplier;
+import org.springframework.xd.dsl.domain.SerializableToDoubleFunction;
+import org.springframework.xd.dsl.domain.SerializableToIntFunction;
+import org.springframework.xd.dsl.domain.SerializableToLongFunction;
 import org.springframework.xd.dsl.domain.Sink;
 import org.springframework.xd.dsl.domain.Source;
 import org.springframework.xd.dsl.domain.Util;
 import org.springframework.xd.dsl.internal.ClassFileProcessor;
-import org.springframework.xd.dsl.internal.ClassFileProcessor.ClassMetaData;
+import org.springframework.xd.dsl.internal.LambdaAnalysis;
+import org.springframework.xd.fluent.internal.CustomizedModuleGenerator;
 
 /**
  * Represents a step in a stream definition. The generic type determines the type of the elements in this step of the
@@ -48,6 +57,12 @@ import org.springframework.xd.dsl.internal.ClassFileProcessor.ClassMetaData;
  */
 public class PartialStream<T> {
 
+	private static final int DEFAULT_BATCH_SIZE = 100;
+
+	private static final long DEFAULT_BATCH_TIMEOUT_MS = 1000;
+
+	private static boolean javaSerialization = Boolean.getBoolean("xd.dsl.lambda.javaSerialization");
+
 	private StreamState state;
 
 	private PartialStream() {
@@ -86,6 +101,45 @@ public class PartialStream<T> {
 	}
 
 
+	/**
+	 * @return the resources that carry the lambda to the module, normally its capture form (see
+	 *         {@link LambdaCapture}) falling back to Java serialization if that cannot be used or the system property
+	 *         <tt>xd.dsl.lambda.javaSerialization</tt> is set
+	 */
+	private List<Resource> lambdaResources(Object lambda, byte[] serialized) {
+		List<Resource> resources = new ArrayList<>();
+		if (!javaSerialization) {
+			try {
+				resources.add(new BytesResource(LambdaCapture.RESOURCE_NAME, LambdaCapture.write(lambda)));
+				resources.addAll(getCaptureReaderResources());
+				return resources;
+			}
+			catch (IllegalArgumentException iae) {
+				System.out.println("Unable to capture lambda (" + iae.getMessage() + "), using Java serialization");
+			}
+		}
+		resources.add(new BytesResource("lambda.ser", serialized));
+		return resources;
+	}
+
+	/**
+	 * @return references to the classes (and everything they reference) that read the capture form in the module
+	 */
+	public static List<Resource> getCaptureReaderResources() {
+		List<Resource> resources = new ArrayList<>();
+		for (Class<?> clazz : LambdaCapture.getRequiredClasses()) {
+			resources.add(new ClassReference(clazz.getName()));
+			for (String dependency : ClassFileProcessor.getDependencies(clazz.getName())) {
+				resources.add(new ClassReference(dependency.replace('/', '.')));
+			}
+		}
+		return resources;
+	}
+
+	public static void setJavaSerialization(boolean javaSerialization) {
+		PartialStream.javaSerialization = javaSerialization;
+	}
+
 	private byte[] toBytes(Object object) {
 		try {
 			ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -102,60 +156,178 @@ public class PartialStream<T> {
 	}
 
 	public <R> PartialStream<R> processRx(SerializableProcessor<? super T, ? extends R> processor) {
-		String fnClass = processor.getClass().getName();
-		fnClass = fnClass.substring(0, fnClass.indexOf("$$Lambda"));
 		state.usesCodeModules = true;
 		byte[] serObject = toBytes(processor);
 		CodeProcessor cp = new CodeProcessor(serObject, CodeType.RXJAVA_PROCESSOR, this.state.stepCount);
 		addProcessor(cp);
 		cp.addResource(new ClassReference("org.springframework.xd.dsl.domain.Source"));
 		cp.addResource(new ClassReference("org.springframework.xd.dsl.domain.Module"));
-		cp.addResource(new ClassReference(fnClass));
-		// TODO find class refs in the fnClass
+		for (Resource resource : LambdaAnalysis.analyze(processor).getResources()) {
+			cp.addResource(resource);
+		}
 		cp.addResource(new ClassReference(SerializableProcessor.class.getName()));//"here.streamcomponents.SerializableProcessor"));
-		cp.addResource(new BytesResource("lambda.ser", serObject));
+		for (Resource resource : lambdaResources(processor, serObject)) {
+			cp.addResource(resource);
+		}
 		return this.<R> extend();
 	}
 
 
 	public <R> PartialStream<R> process(SerializableFunction<? super T, ? extends R> processor) {
-		// Declaring type? processor.getClass().getName() example: here.Demo$$Lambda$1/1705736037
-		String fnClass = processor.getClass().getName();
-		fnClass = fnClass.substring(0, fnClass.indexOf("$$Lambda"));
-		state.usesCodeModules = true;
-
-		// Serialize it?
-		try {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			ObjectOutputStream oos = new ObjectOutputStream(baos);
-			oos.writeObject(processor);
-			oos.close();
-			byte[] bs = baos.toByteArray();
-			CodeProcessor cp = new CodeProcessor(bs, CodeType.JAVA_UTIL_FUNCTION_FUNCTION, this.state.stepCount);
-			cp.setInputType(Util.getLambdaParameterType(processor));
-			cp.setOutputType(Util.getLambdaReturnType(processor));
-			addProcessor(cp);
-			ClassMetaData cmd = ClassFileProcessor.getInfo(fnClass);
-			List<String> typeRefs = cmd.getTypeReferences();
-			System.out.println("Type refs = " + typeRefs);
-			for (String typeRef : typeRefs) {
-				cp.addResource(new ClassReference(typeRef.replace("/", ".")));
-			}
-			cp.addResource(new ClassReference("org.springframework.xd.dsl.domain.Source"));
-			cp.addResource(new ClassReference("org.springframework.xd.dsl.domain.Module"));
+		addFunction(processor);
+		return this.<R> extend();
+	}
 
-			cp.addResource(new ClassReference(fnClass));
-			// TODO find class refs in the fnClass
-			cp.addResource(new ClassReference(SerializableFunction.class.getName()));//"here.streamcomponents.SerializableFunction"));
-			cp.addResource(new BytesResource("lambda.ser", bs));
+	/**
+	 * Process payloads in batches: messages are collected until there are <tt>batchSize</tt> of them (or
+	 * <tt>batchTimeoutMs</tt> passes) and the function is then applied to each payload of the batch in turn, which
+	 * avoids the per message overhead of the transformer. Each result is still sent as its own message.
+	 */
+	public <R> PartialStream<R> process(SerializableFunction<? super T, ? extends R> processor, int batchSize,
+			long batchTimeoutMs) {
+		checkBatchSettings(batchSize, batchTimeoutMs);
+		CodeProcessor cp = addFunction(processor);
+		if (cp != null) {
+			setBatchOptions(cp, batchSize, batchTimeoutMs, false);
 		}
-		catch (IOException ioe) {
+		return this.<R> extend();
+	}
+
+	/**
+	 * Process payloads in batches of up to {@value #DEFAULT_BATCH_SIZE}, see
+	 * {@link #processBatch(SerializableFunction, int, long)}.
+	 */
+	public <R> PartialStream<R> processBatch(SerializableFunction<List<T>, List<R>> processor) {
+		return processBatch(processor, DEFAULT_BATCH_SIZE, DEFAULT_BATCH_TIMEOUT_MS);
+	}
 
+	/**
+	 * Process payloads in batches: messages are collected until there are <tt>batchSize</tt> of them (or
+	 * <tt>batchTimeoutMs</tt> passes) and the function is called once with the list of payloads. Each element of the
+	 * list it returns is sent on as a message, e.g.
+	 * <tt>processBatch(batch -> batch.stream().map(String::trim).collect(Collectors.toList()))</tt>.
+	 */
+	public <R> PartialStream<R> processBatch(SerializableFunction<List<T>, List<R>> processor, int batchSize,
+			long batchTimeoutMs) {
+		checkBatchSettings(batchSize, batchTimeoutMs);
+		CodeProcessor cp = addFunction(processor);
+		if (cp != null) {
+			setBatchOptions(cp, batchSize, batchTimeoutMs, true);
 		}
-		// this.addProcessor(new LambdaDrivenProcessor(processor));
 		return this.<R> extend();
 	}
 
+	private static void checkBatchSettings(int batchSize, long batchTimeoutMs) {
+		if (batchSize < 1 || batchTimeoutMs < 1) {
+			throw new IllegalArgumentException("Batch size and timeout must be positive: batchSize=" + batchSize
+					+ " batchTimeoutMs=" + batchTimeoutMs);
+		}
+	}
+
+	private static void setBatchOptions(CodeProcessor cp, int batchSize, long batchTimeoutMs, boolean batchFunction) {
+		cp.setOption("batchSize", Integer.toString(batchSize));
+		cp.setOption("batchTimeoutMs", Long.toString(batchTimeoutMs));
+		if (batchFunction) {
+			cp.setOption("batchFunction", "true");
+		}
+	}
+
+	/**
+	 * Process int payloads without boxing the result in the lambda, e.g. <tt>processInt(payload -> payload * 2)</tt>.
+	 */
+	public PartialStream<Integer> processInt(SerializableIntUnaryOperator processor) {
+		addFunction(processor);
+		return this.<Integer> extend();
+	}
+
+	public PartialStream<Long> processLong(SerializableLongUnaryOperator processor) {
+		addFunction(processor);
+		return this.<Long> extend();
+	}
+
+	public PartialStream<Double> processDouble(SerializableDoubleUnaryOperator processor) {
+		addFunction(processor);
+		return this.<Double> extend();
+	}
+
+	/**
+	 * Compute an int from each payload without boxing it in the lambda, e.g. <tt>processToInt(String::length)</tt>.
+	 */
+	public PartialStream<Integer> processToInt(SerializableToIntFunction<? super T> processor) {
+		addFunction(processor);
+		return this.<Integer> extend();
+	}
+
+	public PartialStream<Long> processToLong(SerializableToLongFunction<? super T> processor) {
+		addFunction(processor);
+		return this.<Long> extend();
+	}
+
+	public PartialStream<Double> processToDouble(SerializableToDoubleFunction<? super T> processor) {
+		addFunction(processor);
+		return this.<Double> extend();
+	}
+
+	/**
+	 * Add a code processor for the function. Functions with a primitive shape (e.g. IntUnaryOperator) get primitive
+	 * input and/or output types, the generated module then calls them without boxing.
+	 * @return the code processor added, or null if the function could not be serialized
+	 */
+	private CodeProcessor addFunction(SerializableFunction<?, ?> processor) {
+		state.usesCodeModules = true;
+		byte[] bs = toBytes(processor);
+		if (bs == null) {
+			return null;
+		}
+		CodeProcessor cp = new CodeProcessor(bs, CodeType.JAVA_UTIL_FUNCTION_FUNCTION, this.state.stepCount);
+		Class<?> shape = SerializableFunction.class;
+		Class inputType = Util.getLambdaParameterType(processor);
+		Class outputType = Util.getLambdaReturnType(processor);
+		if (processor instanceof SerializableIntUnaryOperator) {
+			shape = SerializableIntUnaryOperator.class;
+			inputType = outputType = int.class;
+		}
+		else if (processor instanceof SerializableLongUnaryOperator) {
+			shape = SerializableLongUnaryOperator.class;
+			inputType = outputType = long.class;
+		}
+		else if (processor instanceof SerializableDoubleUnaryOperator) {
+			shape = SerializableDoubleUnaryOperator.class;
+			inputType = outputType = double.class;
+		}
+		else if (processor instanceof SerializableToIntFunction) {
+			shape = SerializableToIntFunction.class;
+			outputType = int.class;
+		}
+		else if (processor instanceof SerializableToLongFunction) {
+			shape = SerializableToLongFunction.class;
+			outputType = long.class;
+		}
+		else if (processor instanceof SerializableToDoubleFunction) {
+			shape = SerializableToDoubleFunction.class;
+			outputType = double.class;
+		}
+		cp.setInputType(inputType);
+		cp.setOutputType(outputType);
+		addProcessor(cp);
+		LambdaAnalysis analysis = LambdaAnalysis.analyze(processor, CustomizedModuleGenerator.isDirectInvocation());
+		cp.setLambdaTarget(analysis.getTarget());
+		System.out.println("Type refs = " + analysis.getDependencies());
+		for (Resource resource : analysis.getResources()) {
+			cp.addResource(resource);
+		}
+		cp.addResource(new ClassReference("org.springframework.xd.dsl.domain.Source"));
+		cp.addResource(new ClassReference("org.springframework.xd.dsl.domain.Module"));
+		cp.addResource(new ClassReference(SerializableFunction.class.getName()));//"here.streamcomponents.SerializableFunction"));
+		if (shape != SerializableFunction.class) {
+			cp.addResource(new ClassReference(shape.getName()));
+		}
+		for (Resource resource : lambdaResources(processor, bs)) {
+			cp.addResource(resource);
+		}
+		return cp;
+	}
+
 
 	public <R> PartialStream<R> process(Processor<? super T, ? extends R> processor) {
 		// The new stream step is configured based on the output type of the processor (and
@@ -179,15 +351,6 @@ public class PartialStream<T> {
 	}
 
 	public void setSource(SerializableSupplier<T> source) {
-		// Declaring type? processor.getClass().getName() example: here.Demo$$Lambda$1/1705736037
-		String fnClass = source.getClass().getName();
-		fnClass = fnClass.substring(0, fnClass.indexOf("$$Lambda"));
-
-		System.out.println(fnClass);
-
-		// org.springframework.xd.dsl.examples.Everything
-
-
 		// Serialize it?
 		try {
 			ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -196,18 +359,17 @@ public class PartialStream<T> {
 			oos.close();
 			byte[] bs = baos.toByteArray();
 			CodeSource codeSource = new CodeSource(bs, CodeType.JAVA_UTIL_FUNCTION_SUPPLIER, 0);
-			codeSource.addResource(new ClassReference(fnClass));
-			// TODO find class refs in the fnClass
-			ClassMetaData cmd = ClassFileProcessor.getInfo(fnClass);
-			List<String> typeRefs = cmd.getTypeReferences();
-			System.out.println("Type refs = " + typeRefs);
-			for (String typeRef : typeRefs) {
-				codeSource.addResource(new ClassReference(typeRef.replace("/", ".")));
+			LambdaAnalysis analysis = LambdaAnalysis.analyze(source);
+			System.out.println("Type refs = " + analysis.getDependencies());
+			for (Resource resource : analysis.getResources()) {
+				codeSource.addResource(resource);
 			}
 			codeSource.addResource(new ClassReference("org.springframework.xd.dsl.domain.Source"));
 			codeSource.addResource(new ClassReference("org.springframework.xd.dsl.domain.Module"));
 			codeSource.addResource(new ClassReference(SerializableSupplier.class.getName()));
-			codeSource.addResource(new BytesResource("lambda.ser", bs));
+			for (Resource resource : lambdaResources(source, bs)) {
+				codeSource.addResource(resource);
+			}
 			setSource(codeSource);
 		}
 		catch (IOException ioe) {
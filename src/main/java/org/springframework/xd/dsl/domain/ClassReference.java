@@ -16,6 +16,8 @@
 
 package org.springframework.xd.dsl.domain;
 
+import org.springframework.xd.dsl.internal.ClassMetadataIndex;
+
 /**
  * Simple representation of a resource that is backed by a real class. The bytes are retrieved on request (and expected
  * to be found on the classpath).
@@ -42,8 +44,8 @@ public class ClassReference implements Resource {
 	@Override
 	public byte[] getBytes() {
 		if (this.bytes == null) {
-			// Discover them
-			this.bytes = Util.loadClassAsBytes(classname);
+			// Discover them, the index shares them with the dependency analysis (which has likely read them already)
+			this.bytes = ClassMetadataIndex.getBytes(Thread.currentThread().getContextClassLoader(), classname);
 		}
 		return this.bytes;
 	}
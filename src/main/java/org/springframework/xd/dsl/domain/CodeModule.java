@@ -60,4 +60,10 @@ public interface CodeModule {
 	 * @return
 	 */
 	Class getOutputType();
+
+	/**
+	 * @return the method the generated module can call directly instead of going through the deserialized lambda, or
+	 *         null if the module should call the lambda
+	 */
+	LambdaTarget getLambdaTarget();
 }
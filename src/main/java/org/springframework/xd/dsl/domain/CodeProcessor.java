@@ -42,6 +42,8 @@ public class CodeProcessor extends AbstractProcessor<Object, Object> implements
 
 	private Class outputType;
 
+	private LambdaTarget lambdaTarget;
+
 
 	@Override
 	public CodeProcessor copy() {
@@ -51,6 +53,7 @@ public class CodeProcessor extends AbstractProcessor<Object, Object> implements
 		newModule.streamName = streamName; // may not be set yet, that is OK
 		newModule.inputType = inputType;
 		newModule.outputType = outputType;
+		newModule.lambdaTarget = lambdaTarget;
 		return newModule;
 	}
 
@@ -116,4 +119,13 @@ public class CodeProcessor extends AbstractProcessor<Object, Object> implements
 	public Class getOutputType() {
 		return this.outputType;
 	}
+
+	public void setLambdaTarget(LambdaTarget lambdaTarget) {
+		this.lambdaTarget = lambdaTarget;
+	}
+
+	@Override
+	public LambdaTarget getLambdaTarget() {
+		return this.lambdaTarget;
+	}
 }
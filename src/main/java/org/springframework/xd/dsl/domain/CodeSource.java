@@ -101,4 +101,9 @@ public class CodeSource extends AbstractSource<Object> implements CodeModule {
 	public Class getOutputType() {
 		return Object.class;//TODO placeholder
 	}
+
+	@Override
+	public LambdaTarget getLambdaTarget() {
+		return null;
+	}
 }
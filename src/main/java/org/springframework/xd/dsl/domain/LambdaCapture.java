@@ -0,0 +1,494 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.dsl.domain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.lang.invoke.SerializedLambda;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A compact form for a serializable lambda, used instead of Java serialization to ship lambdas to code modules (as
+ * the <tt>lambda.cap</tt> resource). It records the method handle the lambda was created from and its captured
+ * values, the module rebuilds the lambda by handing these to the <tt>$deserializeLambda$</tt> method of the class
+ * that declared it (which bootstraps it through the LambdaMetafactory, and only for lambdas that class declares).
+ * <p>
+ * Captured values are written by codecs. Strings, primitive wrappers, classes, enums and other serializable lambdas
+ * are handled directly; anything else {@link Serializable} falls back to Java serialization of just that value. On
+ * the module side these fallback values (and any proxy interfaces they use) are restricted to the classes packaged
+ * with the module plus those in {@link #DEFAULT_ALLOWED_PREFIXES}. The <tt>xd.dsl.lambda.allowedClasses</tt> system
+ * property replaces that with a comma separated list of class name prefixes (<tt>none</tt> to reject them all).
+ * Further codecs can be registered with {@link #registerCodec(Codec)}, the codec class must be available to the
+ * module (it is packaged with it) and have a no-arg constructor. It is only instantiated if it is a Codec.
+ *
+ * @author aclement
+ */
+public class LambdaCapture {
+
+	public static final String RESOURCE_NAME = "lambda.cap";
+
+	private static final int MAGIC = 0x58444C43; // XDLC
+
+	private static final int VERSION = 1;
+
+	/**
+	 * Prefixes of the classes, other than those packaged with the module, that fallback values may use when the
+	 * <tt>xd.dsl.lambda.allowedClasses</tt> system property is not set.
+	 */
+	public static final String DEFAULT_ALLOWED_PREFIXES = "java.lang.,java.util.,java.math.,java.time.";
+
+	private static final List<Codec> codecs = new CopyOnWriteArrayList<>();
+
+	private LambdaCapture() {
+	}
+
+	/**
+	 * Writes and reads captured values of particular types.
+	 */
+	public interface Codec {
+
+		/**
+		 * @return the id written ahead of each value this codec writes
+		 */
+		String getId();
+
+		boolean canEncode(Object value);
+
+		void write(Object value, DataOutputStream out) throws IOException;
+
+		Object read(DataInputStream in, ClassLoader classLoader) throws IOException;
+	}
+
+	/**
+	 * Register a codec for captured values, consulted before the built in ones.
+	 */
+	public static void registerCodec(Codec codec) {
+		codecs.add(codec);
+	}
+
+	/**
+	 * @return the classes a module needs in order to read a capture: this class and any registered codecs. Everything
+	 *         these reference (including synthetic classes, such as the switch map javac generates for
+	 *         {@link Builtin}, that {@link Class#getDeclaredClasses()} does not report) must be packaged too.
+	 */
+	public static List<Class<?>> getRequiredClasses() {
+		List<Class<?>> classes = new ArrayList<>();
+		classes.add(LambdaCapture.class);
+		for (Codec codec : codecs) {
+			classes.add(codec.getClass());
+		}
+		return classes;
+	}
+
+	/**
+	 * @param lambda a serializable lambda
+	 * @return the lambda in capture form
+	 * @throws IllegalArgumentException if it is not a serializable lambda, or a captured value cannot be written
+	 */
+	public static byte[] write(Object lambda) {
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+			DataOutputStream out = new DataOutputStream(baos);
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			writeLambda(lambda, out);
+			out.close();
+			return baos.toByteArray();
+		}
+		catch (IOException ioe) {
+			throw new IllegalArgumentException("Unable to write " + lambda, ioe);
+		}
+	}
+
+	/**
+	 * @param is a lambda in capture form
+	 * @param classLoader the loader for the class that declared the lambda (and the captured values)
+	 * @return the rebuilt lambda
+	 */
+	public static Object read(InputStream is, ClassLoader classLoader) throws IOException {
+		DataInputStream in = new DataInputStream(is);
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a lambda capture");
+		}
+		int version = in.readUnsignedByte();
+		if (version != VERSION) {
+			throw new IOException("Unsupported lambda capture version " + version);
+		}
+		return readLambda(in, classLoader);
+	}
+
+	private static void writeLambda(Object lambda, DataOutputStream out) throws IOException {
+		SerializedLambda serializedLambda = Util.getSerializedLambda(lambda);
+		if (serializedLambda == null) {
+			throw new IllegalArgumentException(lambda.getClass().getName() + " is not a serializable lambda");
+		}
+		out.writeUTF(serializedLambda.getCapturingClass());
+		out.writeUTF(serializedLambda.getFunctionalInterfaceClass());
+		out.writeUTF(serializedLambda.getFunctionalInterfaceMethodName());
+		out.writeUTF(serializedLambda.getFunctionalInterfaceMethodSignature());
+		out.writeByte(serializedLambda.getImplMethodKind());
+		out.writeUTF(serializedLambda.getImplClass());
+		out.writeUTF(serializedLambda.getImplMethodName());
+		out.writeUTF(serializedLambda.getImplMethodSignature());
+		out.writeUTF(serializedLambda.getInstantiatedMethodType());
+		out.writeShort(serializedLambda.getCapturedArgCount());
+		for (int i = 0; i < serializedLambda.getCapturedArgCount(); i++) {
+			writeValue(serializedLambda.getCapturedArg(i), out);
+		}
+	}
+
+	private static Object readLambda(DataInputStream in, ClassLoader classLoader) throws IOException {
+		String capturingClassName = in.readUTF();
+		String functionalInterfaceClass = in.readUTF();
+		String functionalInterfaceMethodName = in.readUTF();
+		String functionalInterfaceMethodSignature = in.readUTF();
+		int implMethodKind = in.readUnsignedByte();
+		String implClass = in.readUTF();
+		String implMethodName = in.readUTF();
+		String implMethodSignature = in.readUTF();
+		String instantiatedMethodType = in.readUTF();
+		Object[] capturedArgs = new Object[in.readUnsignedShort()];
+		for (int i = 0; i < capturedArgs.length; i++) {
+			capturedArgs[i] = readValue(in, classLoader);
+		}
+		try {
+			Class<?> capturingClass = Class.forName(capturingClassName.replace('/', '.'), false, classLoader);
+			SerializedLambda serializedLambda = new SerializedLambda(capturingClass, functionalInterfaceClass,
+					functionalInterfaceMethodName, functionalInterfaceMethodSignature, implMethodKind, implClass,
+					implMethodName, implMethodSignature, instantiatedMethodType, capturedArgs);
+			Method deserializeLambda = capturingClass.getDeclaredMethod("$deserializeLambda$",
+					SerializedLambda.class);
+			deserializeLambda.setAccessible(true);
+			return deserializeLambda.invoke(null, serializedLambda);
+		}
+		catch (Exception e) {
+			throw new IOException("Unable to rebuild lambda " + implClass + "." + implMethodName, e);
+		}
+	}
+
+	private static void writeValue(Object value, DataOutputStream out) throws IOException {
+		for (Codec codec : codecs) {
+			if (codec.canEncode(value)) {
+				out.writeUTF(codec.getClass().getName());
+				codec.write(value, out);
+				return;
+			}
+		}
+		for (Builtin codec : Builtin.values()) {
+			if (codec.canEncode(value)) {
+				out.writeUTF(codec.getId());
+				codec.write(value, out);
+				return;
+			}
+		}
+		throw new IllegalArgumentException("No codec for captured value of type " + value.getClass().getName());
+	}
+
+	private static Object readValue(DataInputStream in, ClassLoader classLoader) throws IOException {
+		String id = in.readUTF();
+		for (Builtin codec : Builtin.values()) {
+			if (codec.getId().equals(id)) {
+				return codec.read(in, classLoader);
+			}
+		}
+		// Otherwise the id is the class name of a registered codec, only initialized once it is known to be one
+		Class<?> codecClass;
+		try {
+			codecClass = Class.forName(id, false, classLoader);
+		}
+		catch (ClassNotFoundException cnfe) {
+			throw new IOException("Unable to find codec " + id, cnfe);
+		}
+		if (!Codec.class.isAssignableFrom(codecClass)) {
+			throw new InvalidClassException(id, "not a lambda capture codec");
+		}
+		try {
+			Codec codec = (Codec) codecClass.getDeclaredConstructor().newInstance();
+			return codec.read(in, classLoader);
+		}
+		catch (ReflectiveOperationException e) {
+			throw new IOException("Unable to create codec " + id, e);
+		}
+	}
+
+	private enum Builtin implements Codec {
+
+		NULL, STRING, INTEGER, LONG, DOUBLE, FLOAT, SHORT, BYTE, CHARACTER, BOOLEAN, CLASS, ENUM, LAMBDA, JAVA;
+
+		@Override
+		public String getId() {
+			return name().toLowerCase();
+		}
+
+		@Override
+		public boolean canEncode(Object value) {
+			switch (this) {
+				case NULL:
+					return value == null;
+				case STRING:
+					return value instanceof String;
+				case INTEGER:
+					return value instanceof Integer;
+				case LONG:
+					return value instanceof Long;
+				case DOUBLE:
+					return value instanceof Double;
+				case FLOAT:
+					return value instanceof Float;
+				case SHORT:
+					return value instanceof Short;
+				case BYTE:
+					return value instanceof Byte;
+				case CHARACTER:
+					return value instanceof Character;
+				case BOOLEAN:
+					return value instanceof Boolean;
+				case CLASS:
+					return value instanceof Class && !((Class<?>) value).isPrimitive();
+				case ENUM:
+					return value instanceof Enum;
+				case LAMBDA:
+					return value != null && Util.getSerializedLambda(value) != null;
+				default:
+					return value instanceof Serializable;
+			}
+		}
+
+		@Override
+		public void write(Object value, DataOutputStream out) throws IOException {
+			switch (this) {
+				case NULL:
+					break;
+				case STRING:
+					writeString((String) value, out);
+					break;
+				case INTEGER:
+					out.writeInt((Integer) value);
+					break;
+				case LONG:
+					out.writeLong((Long) value);
+					break;
+				case DOUBLE:
+					out.writeDouble((Double) value);
+					break;
+				case FLOAT:
+					out.writeFloat((Float) value);
+					break;
+				case SHORT:
+					out.writeShort((Short) value);
+					break;
+				case BYTE:
+					out.writeByte((Byte) value);
+					break;
+				case CHARACTER:
+					out.writeChar((Character) value);
+					break;
+				case BOOLEAN:
+					out.writeBoolean((Boolean) value);
+					break;
+				case CLASS:
+					out.writeUTF(((Class<?>) value).getName());
+					break;
+				case ENUM:
+					out.writeUTF(((Enum<?>) value).getDeclaringClass().getName());
+					out.writeUTF(((Enum<?>) value).name());
+					break;
+				case LAMBDA:
+					writeLambda(value, out);
+					break;
+				default:
+					ByteArrayOutputStream baos = new ByteArrayOutputStream();
+					try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+						oos.writeObject(value);
+					}
+					out.writeInt(baos.size());
+					baos.writeTo(out);
+			}
+		}
+
+		@Override
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		public Object read(DataInputStream in, ClassLoader classLoader) throws IOException {
+			try {
+				switch (this) {
+					case NULL:
+						return null;
+					case STRING:
+						return readString(in);
+					case INTEGER:
+						return in.readInt();
+					case LONG:
+						return in.readLong();
+					case DOUBLE:
+						return in.readDouble();
+					case FLOAT:
+						return in.readFloat();
+					case SHORT:
+						return in.readShort();
+					case BYTE:
+						return in.readByte();
+					case CHARACTER:
+						return in.readChar();
+					case BOOLEAN:
+						return in.readBoolean();
+					case CLASS:
+						return Class.forName(in.readUTF(), false, classLoader);
+					case ENUM:
+						Class enumClass = Class.forName(in.readUTF(), true, classLoader);
+						return Enum.valueOf(enumClass, in.readUTF());
+					case LAMBDA:
+						return readLambda(in, classLoader);
+					default:
+						byte[] bytes = new byte[in.readInt()];
+						in.readFully(bytes);
+						try (ObjectInputStream ois = new AllowListObjectInputStream(new ByteArrayInputStream(bytes),
+								classLoader)) {
+							return ois.readObject();
+						}
+				}
+			}
+			catch (ClassNotFoundException cnfe) {
+				throw new IOException(cnfe);
+			}
+		}
+
+		/**
+		 * Strings longer than writeUTF allows are written as chars.
+		 */
+		private static void writeString(String s, DataOutputStream out) throws IOException {
+			if (s.length() < 65535 / 3) {
+				out.writeBoolean(true);
+				out.writeUTF(s);
+			}
+			else {
+				out.writeBoolean(false);
+				out.writeInt(s.length());
+				out.writeChars(s);
+			}
+		}
+
+		private static String readString(DataInputStream in) throws IOException {
+			if (in.readBoolean()) {
+				return in.readUTF();
+			}
+			char[] chars = new char[in.readInt()];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = in.readChar();
+			}
+			return new String(chars);
+		}
+	}
+
+	/**
+	 * Deserializes fallback values, resolving classes (and proxy interfaces) through the module class loader and
+	 * rejecting those that are not allowed.
+	 */
+	private static class AllowListObjectInputStream extends ObjectInputStream {
+
+		private final ClassLoader classLoader;
+
+		private final String[] allowed;
+
+		// Whether classes packaged with the module (defined by its class loader) are allowed too
+		private final boolean allowPackaged;
+
+		AllowListObjectInputStream(InputStream in, ClassLoader classLoader) throws IOException {
+			super(in);
+			this.classLoader = classLoader;
+			String allowedClasses = System.getProperty("xd.dsl.lambda.allowedClasses");
+			this.allowPackaged = allowedClasses == null;
+			this.allowed = (allowedClasses == null ? DEFAULT_ALLOWED_PREFIXES : allowedClasses).split(",");
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			String name = desc.getName();
+			Class<?> clazz;
+			try {
+				clazz = Class.forName(name, false, classLoader);
+			}
+			catch (ClassNotFoundException cnfe) {
+				// e.g. primitive types
+				clazz = super.resolveClass(desc);
+			}
+			checkAllowed(name, clazz);
+			return clazz;
+		}
+
+		@Override
+		protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException {
+			Class<?>[] interfaceClasses = new Class<?>[interfaces.length];
+			for (int i = 0; i < interfaces.length; i++) {
+				interfaceClasses[i] = Class.forName(interfaces[i], false, classLoader);
+				checkAllowed(interfaces[i], interfaceClasses[i]);
+			}
+			try {
+				return Proxy.getProxyClass(classLoader, interfaceClasses);
+			}
+			catch (IllegalArgumentException iae) {
+				throw new ClassNotFoundException("Unable to create proxy class", iae);
+			}
+		}
+
+		private void checkAllowed(String name, Class<?> clazz) throws InvalidClassException {
+			if (clazz.isPrimitive() || isAllowed(name)) {
+				return;
+			}
+			Class<?> elementClass = clazz;
+			while (elementClass.isArray()) {
+				elementClass = elementClass.getComponentType();
+			}
+			if (allowPackaged && elementClass.getClassLoader() == classLoader && classLoader != null) {
+				return;
+			}
+			throw new InvalidClassException(name, "not an allowed class for a captured lambda value");
+		}
+
+		private boolean isAllowed(String name) {
+			// Arrays are allowed if their element type is
+			String elementName = name;
+			while (elementName.startsWith("[")) {
+				elementName = elementName.substring(1);
+			}
+			if (elementName.startsWith("L") && elementName.endsWith(";")) {
+				elementName = elementName.substring(1, elementName.length() - 1);
+			}
+			else if (elementName.length() == 1 && !elementName.equals(name)) {
+				return true;
+			}
+			for (String prefix : allowed) {
+				if (elementName.startsWith(prefix.trim()) && prefix.trim().length() > 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
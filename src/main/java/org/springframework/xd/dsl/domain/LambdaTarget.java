@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.dsl.domain;
+
+import java.lang.invoke.MethodHandleInfo;
+
+
+/**
+ * The method a lambda (or method reference) ends up calling, in a form a generated module can call directly rather
+ * than through the deserialized functional interface. Captured values are the leading arguments of the call (for an
+ * instance method, the first one is the receiver).
+ *
+ * @author aclement
+ */
+public class LambdaTarget {
+
+	private final String owner;
+
+	private final String name;
+
+	private final String descriptor;
+
+	private final int kind;
+
+	private final boolean ownerIsInterface;
+
+	private final int capturedArgCount;
+
+	/**
+	 * @param owner the class declaring the method, slashed (e.g. com/foo/Bar)
+	 * @param name the method name, <tt>&lt;init&gt;</tt> for a constructor
+	 * @param descriptor the method descriptor
+	 * @param kind how the method is invoked, one of the {@link MethodHandleInfo} REF_invokeStatic,
+	 *            REF_invokeVirtual, REF_invokeInterface or REF_newInvokeSpecial constants
+	 * @param ownerIsInterface true if the owner is an interface
+	 * @param capturedArgCount how many of the leading arguments were captured when the lambda was created
+	 */
+	public LambdaTarget(String owner, String name, String descriptor, int kind, boolean ownerIsInterface,
+			int capturedArgCount) {
+		if (kind != MethodHandleInfo.REF_invokeStatic && kind != MethodHandleInfo.REF_invokeVirtual
+				&& kind != MethodHandleInfo.REF_invokeInterface && kind != MethodHandleInfo.REF_newInvokeSpecial) {
+			throw new IllegalArgumentException("Unsupported method kind " + MethodHandleInfo.referenceKindToString(kind));
+		}
+		this.owner = owner;
+		this.name = name;
+		this.descriptor = descriptor;
+		this.kind = kind;
+		this.ownerIsInterface = ownerIsInterface;
+		this.capturedArgCount = capturedArgCount;
+	}
+
+	public String getOwner() {
+		return owner;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getDescriptor() {
+		return descriptor;
+	}
+
+	public int getKind() {
+		return kind;
+	}
+
+	public boolean isOwnerInterface() {
+		return ownerIsInterface;
+	}
+
+	public int getCapturedArgCount() {
+		return capturedArgCount;
+	}
+
+	@Override
+	public String toString() {
+		return MethodHandleInfo.referenceKindToString(kind) + " " + owner + "." + name + descriptor
+				+ (ownerIsInterface ? " (interface)" : "") + " captured=" + capturedArgCount;
+	}
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.dsl.domain;
+
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Simple interface that brings together DoubleUnaryOperator and SerializableFunction, see
+ * {@link org.springframework.xd.dsl.PartialStream#processDouble}.
+ * @author aclement
+ *
+ */
+public interface SerializableDoubleUnaryOperator extends DoubleUnaryOperator, SerializableFunction<Double, Double> {
+
+	@Override
+	default Double apply(Double t) {
+		return applyAsDouble(t);
+	}
+}
@@ -19,9 +19,14 @@ package org.springframework.xd.dsl.domain;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.invoke.MethodHandleInfo;
+import java.lang.invoke.SerializedLambda;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
-import sun.reflect.ConstantPool;
+import org.objectweb.asm.Type;
 
 
 /**
@@ -29,7 +34,6 @@ import sun.reflect.ConstantPool;
  *
  * @author aclement
  */
-@SuppressWarnings("restriction")
 public class Util {
 
 	public static byte[] loadBytesFromStream(InputStream stream) {
@@ -76,109 +80,172 @@ public class Util {
 		}
 	}
 
-	/*
-	 * Sample data for the lambda: payload -> payload * 2
-	 * LambdaCPSize = 36
-		0 = Wrong type at constant pool index
-		2 = class org.springframework.xd.dsl.examples.Everything$$Lambda$2/1323165413
-		4 = class java.lang.Object
-		6 = interface org.springframework.xd.dsl.domain.SerializableFunction
-		8 = ()V
-		10 = java/lang/Object,<init>,()V,
-		12 = (Ljava/lang/Object;)Ljava/lang/Object;
-		14 = class java.lang.Integer
-		16 = class org.springframework.xd.dsl.examples.Everything
-		18 = (Ljava/lang/Integer;)Ljava/lang/Integer;
-		20 = org/springframework/xd/dsl/examples/Everything,lambda$1,(Ljava/lang/Integer;)Ljava/lang/Integer;,
-		22 = ()Ljava/lang/Object;
-		24 = class java.lang.invoke.SerializedLambda
-		26 = Wrong type at constant pool index
-		28 = Wrong type at constant pool index
-		30 = Wrong type at constant pool index
-		32 = (Ljava/lang/Class;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;ILjava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;[Ljava/lang/Object;)V
-		34 = java/lang/invoke/SerializedLambda,<init>,(Ljava/lang/Class;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;ILjava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;[Ljava/lang/Object;)V,
-	 */
+	private static final ClassValue<LambdaTypes> lambdaTypes = new ClassValue<LambdaTypes>() {
+
+		@Override
+		protected LambdaTypes computeValue(Class<?> type) {
+			return new LambdaTypes();
+		}
+	};
 
+	/**
+	 * @return the type of the object the function returns (primitives are boxed), or null if it cannot be determined
+	 */
 	public static <T, R> Class getLambdaReturnType(SerializableFunction<T, R> processor) {
+		Class<?>[] types = getLambdaTypes(processor);
+		return types == null ? null : types[types.length - 1];
+	}
+
+	/**
+	 * @return the type of the object the function is passed (primitives are boxed), or null if it cannot be determined
+	 */
+	public static <T, R> Class getLambdaParameterType(SerializableFunction<T, R> processor) {
+		Class<?>[] types = getLambdaTypes(processor);
+		return (types == null || types.length < 2) ? null : types[0];
+	}
+
+	/**
+	 * @param lambda a serializable lambda (or method reference)
+	 * @return the form the lambda takes when serialized, or null if it is not a serializable lambda
+	 */
+	public static SerializedLambda getSerializedLambda(Object lambda) {
+		Method writeReplace = lambdaTypes.get(lambda.getClass()).getWriteReplace(lambda.getClass());
+		if (writeReplace == null) {
+			return null;
+		}
 		try {
-			Method getConstantPool = Class.class.getDeclaredMethod("getConstantPool");
-			getConstantPool.setAccessible(true);
-			ConstantPool cpool = (ConstantPool) getConstantPool.invoke(processor.getClass());
-			String[] memberRefInfo = cpool.getMemberRefInfoAt(20);
-			// org/springframework/xd/dsl/examples/Everything,lambda$1,(Ljava/lang/Integer;)Ljava/lang/Integer;,
-			org.objectweb.asm.Type t = org.objectweb.asm.Type.getReturnType(memberRefInfo[2]);
-			String descriptor = t.getDescriptor();
-			descriptor = descriptor.substring(1, descriptor.length() - 1).replace('/', '.');
-			return Class.forName(descriptor);
+			Object replacement = writeReplace.invoke(lambda);
+			return (replacement instanceof SerializedLambda) ? (SerializedLambda) replacement : null;
 		}
 		catch (Exception e) {
-			e.printStackTrace();
 			return null;
 		}
 	}
 
-	public static <T, R> Class getLambdaParameterType(SerializableFunction<T, R> processor) {
+	/**
+	 * Work out the parameter types followed by the return type of a lambda. These are taken from the method type the
+	 * lambda was instantiated with, where that is just Object (because the lambda is generic) the implementation
+	 * method is checked for something more specific. Results are cached against the lambda class.
+	 */
+	private static Class<?>[] getLambdaTypes(Object lambda) {
+		LambdaTypes cached = lambdaTypes.get(lambda.getClass());
+		Class<?>[] types = cached.types;
+		if (types == null) {
+			types = inferLambdaTypes(lambda);
+			if (types == null) {
+				return null;
+			}
+			cached.types = types;
+		}
+		return types;
+	}
+
+	private static Class<?>[] inferLambdaTypes(Object lambda) {
+		SerializedLambda serializedLambda = getSerializedLambda(lambda);
+		if (serializedLambda == null) {
+			System.out.println("Unable to determine the types of " + lambda.getClass().getName()
+					+ ", it is not a serializable lambda");
+			return null;
+		}
+		ClassLoader classLoader = lambda.getClass().getClassLoader();
 		try {
-			//			Method[] ms = SerializableFunction.class.getMethods();
-			//			for (Method m : ms) {
-			//				Type[] ts = m.getGenericParameterTypes();
-			//				System.out.println(m + " = " + toString(ts));
-			//			}
-			Method getConstantPool = Class.class.getDeclaredMethod("getConstantPool");
-			getConstantPool.setAccessible(true);
-			ConstantPool cpool = (ConstantPool) getConstantPool.invoke(processor.getClass());
-			//			System.out.println("LambdaCPSize = " + cpool.getSize());
-			// 36
-			//			for (int i = 0; i < cpool.getSize(); i += 2) {
-			//				try {
-			//					System.out.println(i + " = " + cpool.getUTF8At(i));
-			//				}
-			//				catch (Exception e) {
-			//					try {
-			//						System.out.println(i + " = " + cpool.getClassAt(i));
-			//					}
-			//					catch (Exception ee) {
-			//						try {
-			//							System.out.println(i + " = " + toString(cpool.getMemberRefInfoAt(i)));
-			//						}
-			//						catch (Exception eee) {
-			//							System.out.println(i + " = " + e.getMessage());
-			//						}
-			//					}
-			//				}
-			//			}
-			//			org.objectweb.asm.Type[] ts = org.objectweb.asm.Type.getArgumentTypes(cpool.getMemberRefInfoAt(cpool.getSize() - 2)[2]);
-			//			for (int t = 0; t < ts.length; t++) {
-			//				System.out.println("t" + t + " = " + ts[t]);
-			//			}
-
-			String[] memberRefInfo = cpool.getMemberRefInfoAt(20); // TODO is 20 reliable across JDKs?
-			//			System.out.println(toString(memberRefInfo));
-			// org/springframework/xd/dsl/examples/Everything,lambda$1,(Ljava/lang/Integer;)Ljava/lang/Integer;,
-			org.objectweb.asm.Type t = org.objectweb.asm.Type.getArgumentTypes(memberRefInfo[2])[0];
-			String descriptor = t.getDescriptor();
-			descriptor = descriptor.substring(1, descriptor.length() - 1).replace('/', '.');
-			return Class.forName(descriptor);
+			Type instantiated = Type.getMethodType(serializedLambda.getInstantiatedMethodType());
+			Type impl = Type.getMethodType(serializedLambda.getImplMethodSignature());
+			Type[] instantiatedArgs = instantiated.getArgumentTypes();
+			// Line up the implementation method parameters with the lambda parameters: they follow any captured
+			// values and, for an unbound instance method reference, the first lambda parameter is the receiver
+			List<Type> implArgs = new ArrayList<>(Arrays.asList(impl.getArgumentTypes()));
+			int kind = serializedLambda.getImplMethodKind();
+			boolean hasReceiver = kind == MethodHandleInfo.REF_invokeVirtual
+					|| kind == MethodHandleInfo.REF_invokeInterface || kind == MethodHandleInfo.REF_invokeSpecial;
+			if (hasReceiver) {
+				implArgs.add(0, Type.getObjectType(serializedLambda.getImplClass()));
+			}
+			int captured = serializedLambda.getCapturedArgCount();
+			Class<?>[] types = new Class<?>[instantiatedArgs.length + 1];
+			for (int i = 0; i < instantiatedArgs.length; i++) {
+				int implIndex = captured + i;
+				types[i] = toClass(instantiatedArgs[i],
+						implIndex < implArgs.size() ? implArgs.get(implIndex) : null, classLoader);
+			}
+			Type implReturn = kind == MethodHandleInfo.REF_newInvokeSpecial
+					? Type.getObjectType(serializedLambda.getImplClass()) : impl.getReturnType();
+			types[instantiatedArgs.length] = toClass(instantiated.getReturnType(), implReturn, classLoader);
+			return types;
 		}
-		catch (Exception e) {
+		catch (ClassNotFoundException e) {
 			e.printStackTrace();
 			return null;
 		}
 	}
 
-	//	private static String toString(String[] memberRefInfoAt) {
-	//		StringBuilder buf = new StringBuilder();
-	//		for (String s : memberRefInfoAt) {
-	//			buf.append(s).append(',');
-	//		}
-	//		return buf.toString();
-	//	}
-
-	//	private static String toString(Type[] memberRefInfoAt) {
-	//		StringBuilder buf = new StringBuilder();
-	//		for (Type s : memberRefInfoAt) {
-	//			buf.append(s).append(',');
-	//		}
-	//		return buf.toString();
-	//	}
+	/**
+	 * @param type the type from the instantiated method type
+	 * @param implType the corresponding type from the implementation method, may be null
+	 * @return the class for the more specific of the two types, boxed if it is primitive
+	 */
+	private static Class<?> toClass(Type type, Type implType, ClassLoader classLoader) throws ClassNotFoundException {
+		Class<?> clazz = toClass(type, classLoader);
+		if (clazz == Object.class && implType != null) {
+			Class<?> implClass = toClass(implType, classLoader);
+			if (implClass != Void.class) {
+				clazz = implClass;
+			}
+		}
+		return clazz;
+	}
+
+	private static Class<?> toClass(Type type, ClassLoader classLoader) throws ClassNotFoundException {
+		switch (type.getSort()) {
+			case Type.VOID:
+				return Void.class;
+			case Type.BOOLEAN:
+				return Boolean.class;
+			case Type.CHAR:
+				return Character.class;
+			case Type.BYTE:
+				return Byte.class;
+			case Type.SHORT:
+				return Short.class;
+			case Type.INT:
+				return Integer.class;
+			case Type.FLOAT:
+				return Float.class;
+			case Type.LONG:
+				return Long.class;
+			case Type.DOUBLE:
+				return Double.class;
+			case Type.ARRAY:
+				return Class.forName(type.getDescriptor().replace('/', '.'), false, classLoader);
+			default:
+				return Class.forName(type.getClassName(), false, classLoader);
+		}
+	}
+
+	/**
+	 * What is known about a lambda class: its writeReplace method and, once worked out, its types.
+	 */
+	private static class LambdaTypes {
+
+		private volatile Method writeReplace;
+
+		private volatile boolean writeReplaceChecked;
+
+		private volatile Class<?>[] types;
+
+		Method getWriteReplace(Class<?> lambdaClass) {
+			if (!writeReplaceChecked) {
+				try {
+					Method method = lambdaClass.getDeclaredMethod("writeReplace");
+					method.setAccessible(true);
+					writeReplace = method;
+				}
+				catch (Exception e) {
+					// Not a serializable lambda
+				}
+				writeReplaceChecked = true;
+			}
+			return writeReplace;
+		}
+	}
 }
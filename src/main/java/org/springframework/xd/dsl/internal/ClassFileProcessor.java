@@ -16,126 +16,338 @@
 
 package org.springframework.xd.dsl.internal;
 
-import java.io.DataInputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.objectweb.asm.AnnotationVisitor;
-import org.objectweb.asm.Attribute;
-import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.TypePath;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.signature.SignatureReader;
+import org.objectweb.asm.signature.SignatureVisitor;
 
 
 /**
+ * Discovers the classes that a class depends upon, so that they can be packaged alongside it (e.g. the class declaring
+ * a lambda, along with everything the lambda needs to run inside the container).
  *
  * @author aclement
  */
 @SuppressWarnings("unused")
 public class ClassFileProcessor {
 
+	/**
+	 * Prefixes (slashed form) of types never packaged because they are available in the container anyway.
+	 * Configurable through the comma separated system property <tt>xd.dsl.analysis.exclude</tt>.
+	 */
+	public static final List<String> DEFAULT_EXCLUDED_PREFIXES = Collections.unmodifiableList(Arrays.asList(
+			"java/", "javax/", "jdk/", "sun/", "com/sun/", "org/springframework/", "rx/", "org/objectweb/asm/",
+			"org/w3c/", "org/xml/", "org/apache/commons/logging/"));
+
+	/**
+	 * Prefixes (slashed form) of types that are packaged even when they match an excluded prefix. By default only the
+	 * domain types a lambda needs in the container, not the client side DSL. Configurable through the comma separated
+	 * system property <tt>xd.dsl.analysis.include</tt>.
+	 */
+	public static final List<String> DEFAULT_INCLUDED_PREFIXES = Collections.unmodifiableList(Arrays.asList(
+			"org/springframework/xd/dsl/domain/"));
+
+	private static volatile List<String> excludedPrefixes = prefixes("xd.dsl.analysis.exclude",
+			DEFAULT_EXCLUDED_PREFIXES);
+
+	private static volatile List<String> includedPrefixes = prefixes("xd.dsl.analysis.include",
+			DEFAULT_INCLUDED_PREFIXES);
+
+	private static volatile boolean fastScan = Boolean.getBoolean("xd.dsl.analysis.fastScan");
+
 	private String typename;
 
+	private ClassLoader classLoader;
+
 	ClassFileProcessor(String dottedTypeName) {
+		this(dottedTypeName, Thread.currentThread().getContextClassLoader());
+	}
+
+	ClassFileProcessor(String dottedTypeName, ClassLoader classLoader) {
 		this.typename = dottedTypeName;
+		this.classLoader = classLoader;
+	}
+
+	private static List<String> prefixes(String propertyName, List<String> defaults) {
+		String value = System.getProperty(propertyName);
+		if (value == null) {
+			return defaults;
+		}
+		List<String> prefixes = new ArrayList<>();
+		for (String prefix : value.split(",")) {
+			if (prefix.trim().length() != 0) {
+				prefixes.add(prefix.trim().replace('.', '/'));
+			}
+		}
+		return Collections.unmodifiableList(prefixes);
+	}
+
+	/**
+	 * Set the prefixes (slashed form, e.g. <tt>com/foo/</tt>) of types that are not followed or packaged.
+	 */
+	public static void setExcludedPrefixes(List<String> prefixes) {
+		excludedPrefixes = Collections.unmodifiableList(new ArrayList<>(prefixes));
+	}
+
+	/**
+	 * Set the prefixes (slashed form) of types that are followed and packaged even if they are excluded.
+	 */
+	public static void setIncludedPrefixes(List<String> prefixes) {
+		includedPrefixes = Collections.unmodifiableList(new ArrayList<>(prefixes));
+	}
+
+	/**
+	 * @param slashedTypeName a type name, e.g. com/foo/Bar
+	 * @return true if the type should not be followed or packaged
+	 */
+	public static boolean isExcluded(String slashedTypeName) {
+		for (String prefix : includedPrefixes) {
+			if (slashedTypeName.startsWith(prefix)) {
+				return false;
+			}
+		}
+		for (String prefix : excludedPrefixes) {
+			if (slashedTypeName.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Select whether dependency analysis uses a quick scan of the constant pool ({@link #scan(byte[])}) rather than a
+	 * full visit of each class. Configurable through the system property <tt>xd.dsl.analysis.fastScan</tt>.
+	 */
+	public static void setFastScan(boolean fastScan) {
+		ClassFileProcessor.fastScan = fastScan;
 	}
 
 	private ClassMetaData process() {
-		String resourceName = this.typename.replaceAll("\\.", "/") + ".class";
-		try (InputStream is = Thread.currentThread().getContextClassLoader().getResourceAsStream(
-				resourceName)) {
-			if (is == null) {
-				throw new IllegalStateException("Unable to find resource: " + resourceName);
-			}
-			ClassReader cr = new ClassReader(is);
-			ClassMetaData cmd = new ClassMetaData();
-			cr.accept(cmd, 0);
-			return cmd;
-			//			return read(is);
-		}
-		catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			return null;
+		// Parsed once and shared, see ClassMetadataIndex
+		if (fastScan) {
+			return ClassMetadataIndex.getScannedMetaData(classLoader, this.typename);
 		}
+		return ClassMetadataIndex.getClassMetaData(classLoader, this.typename);
 	}
 
-	private ClassMetaData read(InputStream is) throws IOException {
-		DataInputStream dis = new DataInputStream(is);
-		int magic = dis.readInt(); // jump over magic 0xCAFEBABE
-		if (magic != 0xCAFEBABE) {
-			throw new IllegalStateException("incorrect magic number 0x" + Integer.toHexString(magic).toUpperCase());
-		}
-		dis.skip(2); // minor version
-		dis.skip(2); // major version
-		int cpcount = dis.readShort();
-		List<ConstantPoolEntry> cpEntries = new ArrayList<>();
-		System.out.println(cpcount);
-		for (int i = 0; i < (cpcount - 1); i++) {
-			cpEntries.add(readConstantPoolEntry(dis));
-		}
-		return new ClassMetaData(cpEntries);
+	/**
+	 * Find the types referenced from a class with a single pass over its constant pool and member declarations,
+	 * without visiting the code. This finds the same types as the full analysis except for those only mentioned in
+	 * generic signatures and annotations (neither is needed to load and run the class). Only the strings that name
+	 * types are decoded.
+	 *
+	 * @param bytes the class file
+	 * @return the metadata for the class, its method references are not determined
+	 */
+	public static ClassMetaData scan(byte[] bytes) {
+		if (bytes.length < 10 || readInt(bytes, 0) != 0xCAFEBABE) {
+			throw new IllegalStateException("Not a class file (incorrect magic number)");
+		}
+		int cpCount = readUnsignedShort(bytes, 8);
+		// Offset of each constant pool entry (just after its tag)
+		int[] offsets = new int[cpCount];
+		// Indexes of the Utf8 entries that are class names, or descriptors
+		int[] classNames = new int[cpCount];
+		int classNameCount = 0;
+		int[] descriptors = new int[cpCount];
+		int descriptorCount = 0;
+		int offset = 10;
+		for (int i = 1; i < cpCount; i++) {
+			int tag = bytes[offset++];
+			offsets[i] = offset;
+			switch (tag) {
+				case 1: // CONSTANT_Utf8
+					offset += 2 + readUnsignedShort(bytes, offset);
+					break;
+				case 7: // CONSTANT_Class
+					classNames[classNameCount++] = readUnsignedShort(bytes, offset);
+					offset += 2;
+					break;
+				case 12: // CONSTANT_NameAndType
+					descriptors[descriptorCount++] = readUnsignedShort(bytes, offset + 2);
+					offset += 4;
+					break;
+				case 16: // CONSTANT_MethodType
+					descriptors[descriptorCount++] = readUnsignedShort(bytes, offset);
+					offset += 2;
+					break;
+				case 8: // CONSTANT_String
+				case 19: // CONSTANT_Module
+				case 20: // CONSTANT_Package
+					offset += 2;
+					break;
+				case 15: // CONSTANT_MethodHandle (the referenced member is covered by its own entries)
+					offset += 3;
+					break;
+				case 3: // CONSTANT_Integer
+				case 4: // CONSTANT_Float
+				case 9: // CONSTANT_Fieldref
+				case 10: // CONSTANT_Methodref
+				case 11: // CONSTANT_InterfaceMethodref
+				case 17: // CONSTANT_Dynamic
+				case 18: // CONSTANT_InvokeDynamic
+					offset += 4;
+					break;
+				case 5: // CONSTANT_Long
+				case 6: // CONSTANT_Double
+					offset += 8;
+					i++; // takes two slots
+					break;
+				default:
+					throw new IllegalStateException("Unexpected constant pool tag " + tag + " at index " + i);
+			}
+		}
+		int thisClass = readUnsignedShort(bytes, offset + 2);
+		ClassMetaData cmd = new ClassMetaData(readUtf8(bytes, offsets, readUnsignedShort(bytes, offsets[thisClass])));
+		for (int i = 0; i < classNameCount; i++) {
+			cmd.addTypeReference(readUtf8(bytes, offsets, classNames[i]));
+		}
+		for (int i = 0; i < descriptorCount; i++) {
+			cmd.addDescriptorReferences(readUtf8(bytes, offsets, descriptors[i]));
+		}
+		// Skip access flags, this class and super class (the latter two are constant pool Class entries)
+		offset += 6;
+		offset += 2 + 2 * readUnsignedShort(bytes, offset); // interfaces, also Class entries
+		// Descriptors of the declared fields then methods
+		for (int members = 0; members < 2; members++) {
+			int memberCount = readUnsignedShort(bytes, offset);
+			offset += 2;
+			for (int m = 0; m < memberCount; m++) {
+				cmd.addDescriptorReferences(readUtf8(bytes, offsets, readUnsignedShort(bytes, offset + 4)));
+				int attributeCount = readUnsignedShort(bytes, offset + 6);
+				offset += 8;
+				for (int a = 0; a < attributeCount; a++) {
+					offset += 6 + readInt(bytes, offset + 2);
+				}
+			}
+		}
+		return cmd;
 	}
 
+	private static int readUnsignedShort(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+	}
+
+	private static int readInt(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+				| ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+	}
+
+	/**
+	 * Decode the (modified UTF-8) Utf8 constant pool entry at the specified index.
+	 */
+	private static String readUtf8(byte[] bytes, int[] offsets, int index) {
+		int offset = offsets[index];
+		int length = readUnsignedShort(bytes, offset);
+		offset += 2;
+		int end = offset + length;
+		char[] chars = new char[length];
+		int count = 0;
+		while (offset < end) {
+			int b = bytes[offset++] & 0xFF;
+			if (b < 0x80) {
+				chars[count++] = (char) b;
+			}
+			else if ((b & 0xE0) == 0xC0) {
+				chars[count++] = (char) (((b & 0x1F) << 6) | (bytes[offset++] & 0x3F));
+			}
+			else {
+				chars[count++] = (char) (((b & 0x0F) << 12) | ((bytes[offset] & 0x3F) << 6)
+						| (bytes[offset + 1] & 0x3F));
+				offset += 2;
+			}
+		}
+		return new String(chars, 0, count);
+	}
+
+	/**
+	 * Records the types referenced from a class: its supertypes, the types in its field and method declarations
+	 * (descriptors, generic signatures, annotations and exceptions) and those used by its code (field and method
+	 * instructions, type instructions, class constants, invokedynamic bootstrap methods and their arguments, exception
+	 * handlers and local variables). Excluded types are not recorded.
+	 */
 	public static class ClassMetaData extends ClassVisitor implements Opcodes {
 
-		private final static boolean debug = true;
+		private final static boolean debug = false;
 
-		private List<ConstantPoolEntry> cpEntries;
+		private Set<String> typeRefs = new LinkedHashSet<>();
 
-		private List<String> typeRefs;
+		private Set<String> memberRefs = new LinkedHashSet<>();
 
-		public ClassMetaData(List<ConstantPoolEntry> cpEntries) {
-			super(ASM5);
-			this.cpEntries = cpEntries;
-		}
+		private String name;
 
-		@Override
-		public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
-			super.visit(version, access, name, signature, superName, interfaces);
+		public ClassMetaData() {
+			super(ASM5);
 		}
 
-		@Override
-		public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
-			return super.visitAnnotation(desc, visible);
+		ClassMetaData(String name) {
+			super(ASM5);
+			this.name = name;
 		}
 
 		@Override
-		public void visitAttribute(Attribute attr) {
-			super.visitAttribute(attr);
+		public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+			this.name = name;
+			addTypeReference(superName);
+			if (interfaces != null) {
+				for (String itf : interfaces) {
+					addTypeReference(itf);
+				}
+			}
+			addSignatureReferences(signature);
 		}
 
 		@Override
-		public void visitEnd() {
-			super.visitEnd();
+		public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+			addDescriptorReferences(desc);
+			return new AnnotationMetaData();
 		}
 
 		@Override
 		public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
 			if (debug)
 				System.out.println("visitField(name=" + name + ")");
-			return super.visitField(access, name, desc, signature, value);
-		}
+			addDescriptorReferences(desc);
+			addSignatureReferences(signature);
+			return new FieldVisitor(ASM5) {
 
-		@Override
-		public void visitInnerClass(String name, String outerName, String innerName, int access) {
-			super.visitInnerClass(name, outerName, innerName, access);
+				@Override
+				public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+					addDescriptorReferences(desc);
+					return new AnnotationMetaData();
+				}
+			};
 		}
 
 		@Override
 		public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
-			//			if (name.startsWith("lambda$")) {
+			addDescriptorReferences(desc);
+			addSignatureReferences(signature);
+			if (exceptions != null) {
+				for (String exception : exceptions) {
+					addTypeReference(exception);
+				}
+			}
 			return new MethodMetaData(access, name, desc, signature, exceptions);
-			//			}
-			//			else {
-			//				return null;
-			//				// return super.visitMethod(access, name, desc, signature, exceptions);
-			//			}
 		}
 
 		class MethodMetaData extends MethodVisitor {
@@ -150,9 +362,20 @@ public class ClassFileProcessor {
 			}
 
 			@Override
-			public void visitMethodInsn(int opcode, String owner, String name, String desc) {
-				if (debug)
-					System.out.println("visitMethodInsn: " + owner);
+			public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+				addDescriptorReferences(desc);
+				return new AnnotationMetaData();
+			}
+
+			@Override
+			public AnnotationVisitor visitParameterAnnotation(int parameter, String desc, boolean visible) {
+				addDescriptorReferences(desc);
+				return new AnnotationMetaData();
+			}
+
+			@Override
+			public AnnotationVisitor visitAnnotationDefault() {
+				return new AnnotationMetaData();
 			}
 
 			@Override
@@ -162,12 +385,15 @@ public class ClassFileProcessor {
 							+ ",desc="
 							+ desc + ",itf=" + itf + ")");
 				addTypeReference(owner);
+				addMemberReference(owner, name, desc);
+				addDescriptorReferences(desc);
 			}
 
 			@Override
 			public void visitTypeInsn(int opcode, String type) {
 				if (debug)
 					System.out.println("visitTypeInsn:" + type);
+				addTypeReference(type);
 			}
 
 			@Override
@@ -176,170 +402,353 @@ public class ClassFileProcessor {
 					System.out.println("visitFieldInsn(opcode=" + opcode + ",owner=" + owner + ",name=" + name
 							+ ",desc="
 							+ desc + ")");
+				addTypeReference(owner);
+				addDescriptorReferences(desc);
 			}
 
-		}
+			@Override
+			public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+				addDescriptorReferences(desc);
+				addConstantReferences(bsm);
+				for (Object bsmArg : bsmArgs) {
+					addConstantReferences(bsmArg);
+				}
+			}
 
-		@Override
-		public void visitOuterClass(String owner, String name, String desc) {
-			super.visitOuterClass(owner, name, desc);
-		}
+			@Override
+			public void visitLdcInsn(Object cst) {
+				addConstantReferences(cst);
+			}
 
-		@Override
-		public void visitSource(String source, String debug) {
-			super.visitSource(source, debug);
-		}
+			@Override
+			public void visitMultiANewArrayInsn(String desc, int dims) {
+				addDescriptorReferences(desc);
+			}
 
-		@Override
-		public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String desc, boolean visible) {
-			return super.visitTypeAnnotation(typeRef, typePath, desc, visible);
+			@Override
+			public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+				addTypeReference(type);
+			}
+
+			@Override
+			public void visitLocalVariable(String name, String desc, String signature, Label start, Label end,
+					int index) {
+				addDescriptorReferences(desc);
+				addSignatureReferences(signature);
+			}
 		}
 
-		public ClassMetaData() {
-			super(ASM5);
+		/**
+		 * Annotation values can refer to types (class literals and enum constants).
+		 */
+		class AnnotationMetaData extends AnnotationVisitor {
+
+			AnnotationMetaData() {
+				super(ASM5);
+			}
+
+			@Override
+			public void visit(String name, Object value) {
+				addConstantReferences(value);
+			}
+
+			@Override
+			public void visitEnum(String name, String desc, String value) {
+				addDescriptorReferences(desc);
+			}
+
+			@Override
+			public AnnotationVisitor visitAnnotation(String name, String desc) {
+				addDescriptorReferences(desc);
+				return this;
+			}
+
+			@Override
+			public AnnotationVisitor visitArray(String name) {
+				return this;
+			}
 		}
 
 		void addTypeReference(String typeSignature) {
-			if (typeSignature.startsWith("java/")) {
+			if (typeSignature == null) {
+				return;
+			}
+			if (typeSignature.startsWith("[")) {
+				addDescriptorReferences(typeSignature);
 				return;
 			}
-			if (this.typeRefs == null) {
-				this.typeRefs = new ArrayList<>();
+			if (typeSignature.equals(this.name)) {
+				return;
 			}
 			this.typeRefs.add(typeSignature);
 		}
 
 		/**
-		 * Return the type references in slashed form (e.g. com/foo/Bar)
-		 *
+		 * @param descriptor a field or method descriptor, e.g. (Ljava/lang/String;)[Lcom/foo/Bar;
 		 */
-		public List<String> getTypeReferences() {
-			return this.typeRefs;
+		void addDescriptorReferences(String descriptor) {
+			if (descriptor == null) {
+				return;
+			}
+			int index = 0;
+			while ((index = descriptor.indexOf('L', index)) != -1) {
+				int end = descriptor.indexOf(';', index);
+				if (end == -1) {
+					break;
+				}
+				addTypeReference(descriptor.substring(index + 1, end));
+				index = end + 1;
+			}
 		}
 
-	}
-
-	interface ConstantPoolEntry {
-
-		int getTag();
-	}
+		void addSignatureReferences(String signature) {
+			if (signature == null) {
+				return;
+			}
+			new SignatureReader(signature).accept(new SignatureVisitor(ASM5) {
 
-	class ClassInfo implements ConstantPoolEntry {
+				@Override
+				public void visitClassType(String name) {
+					addTypeReference(name);
+				}
+			});
+		}
 
-		private int nameIndex;
+		void addConstantReferences(Object constant) {
+			if (constant instanceof Type) {
+				// Class constants and method types, both are covered by scanning the descriptor
+				addDescriptorReferences(((Type) constant).getDescriptor());
+			}
+			else if (constant instanceof Handle) {
+				Handle handle = (Handle) constant;
+				addTypeReference(handle.getOwner());
+				addMemberReference(handle.getOwner(), handle.getName(), handle.getDesc());
+				addDescriptorReferences(handle.getDesc());
+			}
+		}
 
-		public ClassInfo(int nameIndex) {
-			System.out.println("ClassInfo " + nameIndex);
-			this.nameIndex = nameIndex;
+		void addMemberReference(String owner, String name, String desc) {
+			if (owner.equals(this.name) && desc.startsWith("(")) {
+				this.memberRefs.add(name + desc);
+			}
 		}
 
-		public String getTypeReference(List<ConstantPoolEntry> cp) {
-			return ((Utf8Info) cp.get(nameIndex - 1)).getString();
+		/**
+		 * Return the type references in slashed form (e.g. com/foo/Bar), excluded types are not included. They are
+		 * filtered here, rather than when the class is parsed, because the parsed form is cached (see
+		 * {@link ClassMetadataIndex}) and the excluded prefixes can change.
+		 */
+		public List<String> getTypeReferences() {
+			List<String> typeReferences = new ArrayList<>(this.typeRefs.size());
+			for (String typeRef : this.typeRefs) {
+				if (!isExcluded(typeRef)) {
+					typeReferences.add(typeRef);
+				}
+			}
+			return typeReferences;
 		}
 
-		@Override
-		public int getTag() {
-			return 7;
+		/**
+		 * Return the methods of this class invoked (or referenced through a method handle) by the code, as name
+		 * followed by descriptor (e.g. lambda$0(Ljava/lang/String;)Ljava/lang/String;)
+		 */
+		public Set<String> getMethodReferences() {
+			return Collections.unmodifiableSet(this.memberRefs);
 		}
 
 	}
 
-	class Utf8Info implements ConstantPoolEntry {
+	/**
+	 * Records the metadata for a class a method at a time, so that the references from just the methods that are
+	 * actually used can be determined.
+	 */
+	public static class MethodsMetaData extends ClassVisitor implements Opcodes {
 
-		private String utf8;
+		private String name;
 
-		public Utf8Info(String utf8) {
-			System.out.println("Utf8Info " + utf8);
-			this.utf8 = utf8;
-		}
+		private ClassMetaData classLevel;
+
+		private Map<String, ClassMetaData> methods = new LinkedHashMap<>();
 
-		public String getString() {
-			return this.utf8;
+		MethodsMetaData() {
+			super(ASM5);
 		}
 
 		@Override
-		public int getTag() {
-			return 1;
+		public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+			this.name = name;
+			this.classLevel = new ClassMetaData(name);
+			this.classLevel.visit(version, access, name, signature, superName, interfaces);
 		}
 
-	}
-
-	class StringInfo implements ConstantPoolEntry {
-
-		private int stringIndex;
+		@Override
+		public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+			return classLevel.visitAnnotation(desc, visible);
+		}
 
-		public StringInfo(int stringIndex) {
-			this.stringIndex = stringIndex;
+		@Override
+		public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+			return classLevel.visitField(access, name, desc, signature, value);
 		}
 
 		@Override
-		public int getTag() {
-			return 99;
+		public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+			ClassMetaData method = new ClassMetaData(this.name);
+			methods.put(name + desc, method);
+			return method.visitMethod(access, name, desc, signature, exceptions);
 		}
 
+		/**
+		 * @return the types referenced from the class declaration and its fields, but not its methods
+		 */
+		public ClassMetaData getClassMetaData() {
+			return classLevel;
+		}
+
+		/**
+		 * @return the metadata for each method of the class, keyed by name followed by descriptor
+		 */
+		public Map<String, ClassMetaData> getMethodMetaData() {
+			return Collections.unmodifiableMap(methods);
+		}
 	}
 
-	class MethodRefInfo implements ConstantPoolEntry {
+	private MethodsMetaData processMethods() {
+		return ClassMetadataIndex.getMethodsMetaData(classLoader, this.typename);
+	}
 
-		private int classIndex;
+	public static MethodsMetaData getMethodsInfo(String dottedTypeName) {
+		return new ClassFileProcessor(dottedTypeName).processMethods();
+	}
 
-		private int nameAndTypeIndex;
+	/**
+	 * Compute the transitive closure of the types referenced from a type: the types it references, the types those
+	 * reference, and so on. Excluded types are not followed (or returned). Types are analyzed in parallel.
+	 *
+	 * @param dottedTypeName the type to start from, e.g. com.foo.Bar
+	 * @return the types (in slashed form, e.g. com/foo/Baz) that must be available to load the type, not including the
+	 *         type itself
+	 */
+	public static List<String> getDependencies(String dottedTypeName) {
+		String root = dottedTypeName.replace('.', '/');
+		ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+		Set<String> seen = ConcurrentHashMap.newKeySet();
+		seen.add(root);
+		walk(Collections.singletonList(new DependencyWalk(root, classLoader, seen, null, true)));
+		seen.remove(root);
+		List<String> dependencies = new ArrayList<>(seen);
+		Collections.sort(dependencies);
+		return dependencies;
+	}
 
-		public MethodRefInfo(int classIndex, int nameAndTypeIndex) {
-			System.out.println("MethodRefInfo: " + classIndex + "," + nameAndTypeIndex);
-			this.classIndex = classIndex;
-			this.nameAndTypeIndex = nameAndTypeIndex;
+	/**
+	 * Compute the transitive closure of the types referenced from some types.
+	 *
+	 * @param slashedTypeNames the types to start from, e.g. com/foo/Bar, these are included in the result (unless they
+	 *            are excluded or known)
+	 * @param known types that are accounted for some other way, these are not followed or returned
+	 * @param knownReferenced if not null, the known types referenced by a type in the result are added to this
+	 * @return the types (in slashed form) in the closure
+	 */
+	public static List<String> getDependencies(Collection<String> slashedTypeNames, Set<String> known,
+			Set<String> knownReferenced) {
+		ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+		Set<String> seen = ConcurrentHashMap.newKeySet();
+		seen.addAll(known);
+		Set<String> referenced = (knownReferenced == null ? null : ConcurrentHashMap.newKeySet());
+		List<DependencyWalk> walks = new ArrayList<>();
+		for (String typeName : slashedTypeNames) {
+			if (!isExcluded(typeName) && seen.add(typeName)) {
+				walks.add(new DependencyWalk(typeName, classLoader, seen, referenced, false));
+			}
+		}
+		walk(walks);
+		seen.removeAll(known);
+		if (knownReferenced != null) {
+			for (String typeName : referenced) {
+				if (known.contains(typeName)) {
+					knownReferenced.add(typeName);
+				}
+			}
 		}
+		List<String> dependencies = new ArrayList<>(seen);
+		Collections.sort(dependencies);
+		return dependencies;
+	}
 
-		@Override
-		public int getTag() {
-			return 10;
+	private static void walk(List<DependencyWalk> walks) {
+		if (walks.isEmpty()) {
+			return;
 		}
+		ForkJoinPool pool = new ForkJoinPool(Integer.getInteger("xd.dsl.analysis.parallelism",
+				Runtime.getRuntime().availableProcessors()));
+		try {
+			pool.invoke(new RecursiveAction() {
 
+				@Override
+				protected void compute() {
+					invokeAll(walks);
+				}
+			});
+		}
+		finally {
+			pool.shutdown();
+		}
 	}
 
-	class NameAndTypeInfo implements ConstantPoolEntry {
+	/**
+	 * Analyzes one type of the walk, then forks the analysis of any referenced types not already seen.
+	 */
+	@SuppressWarnings("serial")
+	private static class DependencyWalk extends RecursiveAction {
 
-		private int nameIndex;
+		private final String slashedTypeName;
 
-		private int descriptorIndex;
+		private final ClassLoader classLoader;
 
-		public NameAndTypeInfo(int nameIndex, int descriptorIndex) {
-			System.out.println("NameAndTypeInfo: " + nameIndex + "," + descriptorIndex);
-			this.nameIndex = nameIndex;
-			this.descriptorIndex = descriptorIndex;
-		}
+		private final Set<String> seen;
 
-		@Override
-		public int getTag() {
-			return 12;
-		}
+		private final Set<String> referenced;
 
-	}
+		private final boolean required;
+
+		DependencyWalk(String slashedTypeName, ClassLoader classLoader, Set<String> seen, Set<String> referenced,
+				boolean required) {
+			this.slashedTypeName = slashedTypeName;
+			this.classLoader = classLoader;
+			this.seen = seen;
+			this.referenced = referenced;
+			this.required = required;
+		}
 
-	private ConstantPoolEntry readConstantPoolEntry(DataInputStream is) throws IOException {
-		byte tag = is.readByte();
-		switch (tag) {
-			case 7:// CONSTANT_Class 7
-				return new ClassInfo(is.readShort());
-			case 1:// CONSTANT_Utf8 1
-				return new Utf8Info(is.readUTF());
-			case 10:// CONSTANT_Methodref 10
-				return new MethodRefInfo(is.readShort(), is.readShort());
-			case 12: //			CONSTANT_NameAndType	12
-				return new NameAndTypeInfo(is.readShort(), is.readShort());
-			case 9://			CONSTANT_Fieldref	9
-			case 11: //			CONSTANT_InterfaceMethodref	11
-			case 8: //			CONSTANT_String	8
-			case 3: //			CONSTANT_Integer	3
-			case 4: //			CONSTANT_Float	4
-			case 5: //			CONSTANT_Long	5
-			case 6: //			CONSTANT_Double	6
-			case 15: //			CONSTANT_MethodHandle	15
-			case 16: //			CONSTANT_MethodType	16
-			case 18: //			CONSTANT_InvokeDynamic	18
-			default:
-				throw new IllegalStateException("unexpected constant pool tag: " + tag);
+		@Override
+		protected void compute() {
+			ClassMetaData cmd;
+			try {
+				cmd = new ClassFileProcessor(slashedTypeName.replace('/', '.'), classLoader).process();
+			}
+			catch (IllegalStateException ise) {
+				if (required) {
+					throw ise;
+				}
+				// Not on the classpath, may only be needed in code paths never taken
+				System.out.println("Unable to find referenced type " + slashedTypeName + ", not packaging it");
+				seen.remove(slashedTypeName);
+				return;
+			}
+			if (cmd == null) {
+				return;
+			}
+			List<DependencyWalk> walks = new ArrayList<>();
+			for (String typeRef : cmd.getTypeReferences()) {
+				if (seen.add(typeRef)) {
+					walks.add(new DependencyWalk(typeRef, classLoader, seen, referenced, false));
+				}
+				else if (referenced != null) {
+					referenced.add(typeRef);
+				}
+			}
+			invokeAll(walks);
 		}
 	}
 
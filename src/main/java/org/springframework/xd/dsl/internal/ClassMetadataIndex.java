@@ -0,0 +1,194 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.dsl.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.objectweb.asm.ClassReader;
+
+import org.springframework.xd.dsl.domain.Util;
+import org.springframework.xd.dsl.internal.ClassFileProcessor.ClassMetaData;
+import org.springframework.xd.dsl.internal.ClassFileProcessor.MethodsMetaData;
+
+
+/**
+ * Caches the bytes of classes, and what they reference, so that each class is read and parsed once however many
+ * lambdas (or threads) need it. Classes are indexed per classloader since the same name may be a different class in
+ * each. Each lookup checks where the class was loaded from (and, for the file system or a jar, when that was last
+ * modified), so a class that is rebuilt or appears in a different place on the classpath is read again.
+ *
+ * @author aclement
+ */
+public class ClassMetadataIndex {
+
+	private static final Map<ClassLoader, Map<String, Entry>> index = new WeakHashMap<>();
+
+	private ClassMetadataIndex() {
+	}
+
+	/**
+	 * @param classLoader the loader to find the class through
+	 * @param dottedTypeName the class, e.g. com.foo.Bar
+	 * @return the bytes of the class, these are shared and must not be modified
+	 * @throws IllegalStateException if the class cannot be found
+	 */
+	public static byte[] getBytes(ClassLoader classLoader, String dottedTypeName) {
+		return getEntry(classLoader, dottedTypeName).bytes;
+	}
+
+	/**
+	 * @return the types referenced from the class
+	 * @throws IllegalStateException if the class cannot be found
+	 */
+	public static ClassMetaData getClassMetaData(ClassLoader classLoader, String dottedTypeName) {
+		Entry entry = getEntry(classLoader, dottedTypeName);
+		ClassMetaData cmd = entry.classMetaData;
+		if (cmd == null) {
+			cmd = new ClassMetaData();
+			new ClassReader(entry.bytes).accept(cmd, ClassReader.SKIP_FRAMES);
+			entry.classMetaData = cmd;
+		}
+		return cmd;
+	}
+
+	/**
+	 * @return the types referenced from the class, as found by {@link ClassFileProcessor#scan(byte[])}
+	 * @throws IllegalStateException if the class cannot be found
+	 */
+	public static ClassMetaData getScannedMetaData(ClassLoader classLoader, String dottedTypeName) {
+		Entry entry = getEntry(classLoader, dottedTypeName);
+		ClassMetaData cmd = entry.scannedMetaData;
+		if (cmd == null) {
+			cmd = ClassFileProcessor.scan(entry.bytes);
+			entry.scannedMetaData = cmd;
+		}
+		return cmd;
+	}
+
+	/**
+	 * @return the types referenced from each method of the class
+	 * @throws IllegalStateException if the class cannot be found
+	 */
+	public static MethodsMetaData getMethodsMetaData(ClassLoader classLoader, String dottedTypeName) {
+		Entry entry = getEntry(classLoader, dottedTypeName);
+		MethodsMetaData mmd = entry.methodsMetaData;
+		if (mmd == null) {
+			mmd = new MethodsMetaData();
+			new ClassReader(entry.bytes).accept(mmd, ClassReader.SKIP_FRAMES);
+			entry.methodsMetaData = mmd;
+		}
+		return mmd;
+	}
+
+	/**
+	 * @return the number of classes indexed
+	 */
+	public static int size() {
+		int size = 0;
+		synchronized (index) {
+			for (Map<String, Entry> entries : index.values()) {
+				size += entries.size();
+			}
+		}
+		return size;
+	}
+
+	public static void clear() {
+		synchronized (index) {
+			index.clear();
+		}
+	}
+
+	private static Entry getEntry(ClassLoader classLoader, String dottedTypeName) {
+		String resourceName = dottedTypeName.replace('.', '/') + ".class";
+		URL url = classLoader.getResource(resourceName);
+		if (url == null) {
+			throw new IllegalStateException("Unable to find resource: " + resourceName);
+		}
+		long lastModified = lastModified(url);
+		Map<String, Entry> entries;
+		synchronized (index) {
+			entries = index.get(classLoader);
+			if (entries == null) {
+				entries = new ConcurrentHashMap<>();
+				index.put(classLoader, entries);
+			}
+		}
+		Entry entry = entries.get(resourceName);
+		if (entry == null || !entry.isFor(url, lastModified)) {
+			// Two threads may both read a class here, that is harmless
+			try (InputStream is = url.openStream()) {
+				entry = new Entry(url, lastModified, Util.loadBytesFromStream(is));
+			}
+			catch (IOException e) {
+				throw new IllegalStateException("Unable to read " + url, e);
+			}
+			entries.put(resourceName, entry);
+		}
+		return entry;
+	}
+
+	private static long lastModified(URL url) {
+		try {
+			if (url.getProtocol().equals("file")) {
+				return new File(url.toURI()).lastModified();
+			}
+			if (url.getProtocol().equals("jar")) {
+				URL jarFileUrl = ((JarURLConnection) url.openConnection()).getJarFileURL();
+				if (jarFileUrl.getProtocol().equals("file")) {
+					return new File(jarFileUrl.toURI()).lastModified();
+				}
+			}
+		}
+		catch (Exception e) {
+			// Treat as unchanging
+		}
+		return -1;
+	}
+
+	private static class Entry {
+
+		private final String url;
+
+		private final long lastModified;
+
+		private final byte[] bytes;
+
+		private volatile ClassMetaData classMetaData;
+
+		private volatile ClassMetaData scannedMetaData;
+
+		private volatile MethodsMetaData methodsMetaData;
+
+		Entry(URL url, long lastModified, byte[] bytes) {
+			this.url = url.toString();
+			this.lastModified = lastModified;
+			this.bytes = bytes;
+		}
+
+		boolean isFor(URL url, long lastModified) {
+			return this.lastModified == lastModified && this.url.equals(url.toString());
+		}
+	}
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.dsl.internal;
+
+import java.io.ObjectStreamClass;
+import java.lang.invoke.MethodHandleInfo;
+import java.lang.invoke.SerializedLambda;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import org.springframework.xd.dsl.domain.BytesResource;
+import org.springframework.xd.dsl.domain.ClassReference;
+import org.springframework.xd.dsl.domain.LambdaTarget;
+import org.springframework.xd.dsl.domain.Resource;
+import org.springframework.xd.dsl.domain.Util;
+import org.springframework.xd.dsl.internal.ClassFileProcessor.ClassMetaData;
+import org.springframework.xd.dsl.internal.ClassFileProcessor.MethodsMetaData;
+
+
+/**
+ * Works out what must be packaged to run a serializable lambda elsewhere. The analysis starts from the method
+ * implementing the lambda (as named in its {@link SerializedLambda} form) and finds the methods of the class declaring
+ * the lambda that are reachable from there. Other classes are included whole, along with everything they depend upon.
+ * <p>
+ * Optionally (system property <tt>xd.dsl.lambda.slim</tt>) the declaring class itself is packaged as a slimmed copy
+ * containing just the reachable methods, its static initializer and its <tt>$deserializeLambda$</tt> method (which is
+ * needed to deserialize the lambda), and only the types those methods need are packaged with it. This is not done if
+ * the lambda captures an instance of the declaring class, or if another packaged class refers to the declaring class,
+ * since those may need any of its methods. Otherwise the whole declaring class is packaged, with everything it
+ * depends upon.
+ * <p>
+ * When the generated module is to call the lambda directly (see {@link #getTarget()}) rather than through the
+ * deserialized lambda, the packaged declaring class is made public and given a public static accessor for the
+ * (private) lambda implementation method.
+ *
+ * @author aclement
+ */
+public class LambdaAnalysis {
+
+	private static final String CLINIT = "<clinit>()V";
+
+	private static final String ACCESSOR_PREFIX = "direct$";
+
+	private static final String DESERIALIZE_LAMBDA = "$deserializeLambda$(Ljava/lang/invoke/SerializedLambda;)Ljava/lang/Object;";
+
+	private static boolean slimCapturingClass = Boolean.getBoolean("xd.dsl.lambda.slim");
+
+	private final String capturingClass;
+
+	private final Set<String> reachableMethods;
+
+	private final List<String> dependencies;
+
+	private final byte[] slimmedCapturingClass;
+
+	private final LambdaTarget target;
+
+	private final SerializedLambda accessed;
+
+	private LambdaAnalysis(String capturingClass, Set<String> reachableMethods, List<String> dependencies,
+			byte[] slimmedCapturingClass, LambdaTarget target, SerializedLambda accessed) {
+		this.capturingClass = capturingClass;
+		this.reachableMethods = reachableMethods;
+		this.dependencies = dependencies;
+		this.slimmedCapturingClass = slimmedCapturingClass;
+		this.target = target;
+		this.accessed = accessed;
+	}
+
+	public static void setSlimCapturingClass(boolean slimCapturingClass) {
+		LambdaAnalysis.slimCapturingClass = slimCapturingClass;
+	}
+
+	/**
+	 * @param lambda a serializable lambda
+	 */
+	public static LambdaAnalysis analyze(Object lambda) {
+		return analyze(lambda, false);
+	}
+
+	/**
+	 * @param lambda a serializable lambda
+	 * @param directInvocation true if the module will call the lambda implementation directly where it can
+	 */
+	public static LambdaAnalysis analyze(Object lambda, boolean directInvocation) {
+		SerializedLambda serializedLambda = Util.getSerializedLambda(lambda);
+		if (serializedLambda == null) {
+			// Not a lambda we can look inside, fall back to everything the declaring class references
+			String lambdaClass = lambda.getClass().getName();
+			int index = lambdaClass.indexOf("$$Lambda");
+			String declaringClass = (index == -1 ? lambdaClass : lambdaClass.substring(0, index));
+			return new LambdaAnalysis(declaringClass.replace('.', '/'), null,
+					ClassFileProcessor.getDependencies(declaringClass), null, null, null);
+		}
+		String capturingClass = serializedLambda.getCapturingClass();
+		String implClass = serializedLambda.getImplClass();
+		MethodsMetaData capturingClassInfo = ClassFileProcessor.getMethodsInfo(capturingClass.replace('/', '.'));
+		Map<String, ClassMetaData> methods = capturingClassInfo.getMethodMetaData();
+
+		// Find the methods of the capturing class reachable from the lambda implementation
+		List<String> worklist = new ArrayList<>();
+		if (implClass.equals(capturingClass)) {
+			worklist.add(serializedLambda.getImplMethodName() + serializedLambda.getImplMethodSignature());
+		}
+		if (methods.containsKey(CLINIT)) {
+			worklist.add(CLINIT);
+		}
+		Set<String> reachable = new LinkedHashSet<>();
+		Set<String> types = new LinkedHashSet<>(capturingClassInfo.getClassMetaData().getTypeReferences());
+		types.add(implClass);
+		while (!worklist.isEmpty()) {
+			String method = worklist.remove(worklist.size() - 1);
+			ClassMetaData methodInfo = methods.get(method);
+			if (methodInfo == null || !reachable.add(method)) {
+				// Not declared here (an inherited method), or already processed
+				continue;
+			}
+			types.addAll(methodInfo.getTypeReferences());
+			worklist.addAll(methodInfo.getMethodReferences());
+		}
+
+		Set<String> known = Collections.singleton(capturingClass);
+		List<String> dependencies = null;
+		byte[] slimmed = null;
+		boolean capturesInstance = serializedLambda.getImplMethodKind() != MethodHandleInfo.REF_invokeStatic
+				&& implClass.equals(capturingClass);
+		if (slimCapturingClass && !capturesInstance) {
+			Set<String> knownReferenced = new HashSet<>();
+			dependencies = ClassFileProcessor.getDependencies(types, known, knownReferenced);
+			if (knownReferenced.isEmpty()) {
+				Set<String> kept = new HashSet<>(reachable);
+				kept.add(DESERIALIZE_LAMBDA);
+				slimmed = slim(ClassMetadataIndex.getBytes(Thread.currentThread().getContextClassLoader(),
+						capturingClass.replace('/', '.')), kept);
+			}
+		}
+		if (slimmed == null) {
+			// The whole class is packaged so everything any of its methods refers to is needed, not just what the
+			// lambda can reach
+			for (ClassMetaData methodInfo : methods.values()) {
+				types.addAll(methodInfo.getTypeReferences());
+			}
+			dependencies = ClassFileProcessor.getDependencies(types, known, null);
+		}
+		LambdaTarget target = null;
+		SerializedLambda accessed = null;
+		if (directInvocation) {
+			target = findTarget(serializedLambda);
+			if (target != null && implClass.equals(capturingClass)) {
+				accessed = serializedLambda;
+			}
+		}
+		return new LambdaAnalysis(capturingClass, reachable, dependencies, slimmed, target, accessed);
+	}
+
+	/**
+	 * Work out how a generated module could call the lambda implementation. The implementation method of a lambda is
+	 * private to the declaring class so it is called through a public static accessor added to the packaged copy of
+	 * that class. Any other target (e.g. a method reference to a JDK method) is called as is, provided it and the
+	 * types in its signature are public.
+	 *
+	 * @return the target, or null if it cannot be called from outside the lambda
+	 */
+	private static LambdaTarget findTarget(SerializedLambda serializedLambda) {
+		String implClass = serializedLambda.getImplClass();
+		String implName = serializedLambda.getImplMethodName();
+		String implDescriptor = serializedLambda.getImplMethodSignature();
+		int kind = serializedLambda.getImplMethodKind();
+		boolean declaredByCapturingClass = implClass.equals(serializedLambda.getCapturingClass());
+		ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+		try {
+			Class<?> owner = Class.forName(implClass.replace('/', '.'), false, classLoader);
+			Type methodType = Type.getMethodType(implDescriptor);
+			for (Type type : methodType.getArgumentTypes()) {
+				if (!isAccessible(type, implClass, classLoader)) {
+					return null;
+				}
+			}
+			if (!isAccessible(methodType.getReturnType(), implClass, classLoader)) {
+				return null;
+			}
+			if (declaredByCapturingClass) {
+				if (kind == MethodHandleInfo.REF_newInvokeSpecial) {
+					return null;
+				}
+				String accessorDescriptor = implDescriptor;
+				if (kind != MethodHandleInfo.REF_invokeStatic) {
+					// Instance method, the receiver becomes the first parameter
+					accessorDescriptor = "(L" + implClass + ";" + implDescriptor.substring(1);
+				}
+				return new LambdaTarget(implClass, ACCESSOR_PREFIX + implName, accessorDescriptor,
+						MethodHandleInfo.REF_invokeStatic, owner.isInterface(), serializedLambda.getCapturedArgCount());
+			}
+			if (!Modifier.isPublic(owner.getModifiers()) || !isPublicMember(owner, implName, implDescriptor)
+					|| kind == MethodHandleInfo.REF_invokeSpecial) {
+				return null;
+			}
+			return new LambdaTarget(implClass, implName, implDescriptor, kind, owner.isInterface(),
+					serializedLambda.getCapturedArgCount());
+		}
+		catch (ClassNotFoundException | LinkageError e) {
+			return null;
+		}
+	}
+
+	private static boolean isAccessible(Type type, String exposedClass, ClassLoader classLoader)
+			throws ClassNotFoundException {
+		if (type.getSort() == Type.ARRAY) {
+			type = type.getElementType();
+		}
+		if (type.getSort() != Type.OBJECT || type.getInternalName().equals(exposedClass)) {
+			return true;
+		}
+		return Modifier.isPublic(Class.forName(type.getClassName(), false, classLoader).getModifiers());
+	}
+
+	private static boolean isPublicMember(Class<?> owner, String name, String descriptor) {
+		if (name.equals("<init>")) {
+			for (Constructor<?> constructor : owner.getDeclaredConstructors()) {
+				if (Type.getConstructorDescriptor(constructor).equals(descriptor)) {
+					return Modifier.isPublic(constructor.getModifiers());
+				}
+			}
+			return false;
+		}
+		for (Method method : owner.getDeclaredMethods()) {
+			if (method.getName().equals(name) && Type.getMethodDescriptor(method).equals(descriptor)) {
+				return Modifier.isPublic(method.getModifiers());
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Make the class public and add a public static method that calls the lambda implementation method, e.g. for an
+	 * instance method <tt>private String lambda$main$0(String s)</tt>:
+	 *
+	 * <pre>
+	 * public static String direct$lambda$main$0(Foo foo, String s) {
+	 * 	return foo.lambda$main$0(s);
+	 * }
+	 * </pre>
+	 *
+	 * Both changes alter the default serialVersionUID of the class, so if it is serializable (its instances may be
+	 * captured) and does not declare one, the original value is declared.
+	 */
+	private static byte[] addAccessor(byte[] classBytes, SerializedLambda serializedLambda) {
+		String implClass = serializedLambda.getImplClass();
+		String implName = serializedLambda.getImplMethodName();
+		String implDescriptor = serializedLambda.getImplMethodSignature();
+		boolean isStatic = serializedLambda.getImplMethodKind() == MethodHandleInfo.REF_invokeStatic;
+		ClassReader cr = new ClassReader(classBytes);
+		ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_MAXS);
+		boolean isInterface = (cr.getAccess() & Opcodes.ACC_INTERFACE) != 0;
+		Long serialVersionUID = null;
+		try {
+			ObjectStreamClass osc = ObjectStreamClass.lookup(Class.forName(implClass.replace('/', '.'), false,
+					Thread.currentThread().getContextClassLoader()));
+			if (osc != null) {
+				serialVersionUID = osc.getSerialVersionUID();
+			}
+		}
+		catch (ClassNotFoundException e) {
+			// Cannot be a captured instance then
+		}
+		Long originalSerialVersionUID = serialVersionUID;
+		cr.accept(new ClassVisitor(Opcodes.ASM5, cw) {
+
+			private boolean declaresSerialVersionUID;
+
+			@Override
+			public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+				if (name.equals("serialVersionUID")) {
+					declaresSerialVersionUID = true;
+				}
+				return super.visitField(access, name, desc, signature, value);
+			}
+
+			@Override
+			public void visit(int version, int access, String name, String signature, String superName,
+					String[] interfaces) {
+				super.visit(version, access | Opcodes.ACC_PUBLIC, name, signature, superName, interfaces);
+			}
+
+			@Override
+			public void visitEnd() {
+				if (originalSerialVersionUID != null && !declaresSerialVersionUID) {
+					super.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, "serialVersionUID",
+							"J", null, originalSerialVersionUID).visitEnd();
+				}
+				String accessorDescriptor = isStatic ? implDescriptor
+						: "(L" + implClass + ";" + implDescriptor.substring(1);
+				MethodVisitor mv = super.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC,
+						ACCESSOR_PREFIX + implName, accessorDescriptor, null, null);
+				mv.visitCode();
+				int slot = 0;
+				for (Type type : Type.getArgumentTypes(accessorDescriptor)) {
+					mv.visitVarInsn(type.getOpcode(Opcodes.ILOAD), slot);
+					slot += type.getSize();
+				}
+				mv.visitMethodInsn(isStatic ? Opcodes.INVOKESTATIC : Opcodes.INVOKESPECIAL, implClass, implName,
+						implDescriptor, isInterface);
+				mv.visitInsn(Type.getReturnType(implDescriptor).getOpcode(Opcodes.IRETURN));
+				mv.visitMaxs(0, 0);
+				mv.visitEnd();
+				super.visitEnd();
+			}
+		}, 0);
+		return cw.toByteArray();
+	}
+
+	/**
+	 * Copy the class, dropping the methods not in the kept set. Method bodies are copied unchanged.
+	 */
+	private static byte[] slim(byte[] classBytes, Set<String> kept) {
+		ClassReader cr = new ClassReader(classBytes);
+		ClassWriter cw = new ClassWriter(cr, 0);
+		cr.accept(new ClassVisitor(Opcodes.ASM5, cw) {
+
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+					String[] exceptions) {
+				if (!kept.contains(name + desc)) {
+					return null;
+				}
+				return super.visitMethod(access, name, desc, signature, exceptions);
+			}
+		}, 0);
+		return cw.toByteArray();
+	}
+
+	/**
+	 * @return the class that declared the lambda, in slashed form (e.g. com/foo/Bar)
+	 */
+	public String getCapturingClass() {
+		return capturingClass;
+	}
+
+	/**
+	 * @return the methods of the capturing class reachable from the lambda (as name followed by descriptor), or null
+	 *         if the lambda could not be analyzed and the whole class was considered
+	 */
+	public Set<String> getReachableMethods() {
+		return reachableMethods;
+	}
+
+	/**
+	 * @return the types (in slashed form) that must be packaged with the capturing class, excluding the capturing
+	 *         class itself
+	 */
+	public List<String> getDependencies() {
+		return dependencies;
+	}
+
+	/**
+	 * @return how a generated module can call the lambda directly, or null if it cannot (or the analysis was not
+	 *         asked to work this out)
+	 */
+	public LambdaTarget getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return the resource for the capturing class, either the real class or a slimmed copy of it (which includes an
+	 *         accessor for the lambda implementation method if the lambda is to be called directly)
+	 */
+	public Resource getCapturingClassResource() {
+		if (accessed != null) {
+			byte[] bytes = slimmedCapturingClass;
+			if (bytes == null) {
+				bytes = ClassMetadataIndex.getBytes(Thread.currentThread().getContextClassLoader(),
+						capturingClass.replace('/', '.'));
+			}
+			return new BytesResource(capturingClass + ".class", addAccessor(bytes, accessed));
+		}
+		if (slimmedCapturingClass != null) {
+			return new BytesResource(capturingClass + ".class", slimmedCapturingClass);
+		}
+		return new ClassReference(capturingClass.replace('/', '.'));
+	}
+
+	/**
+	 * @return a resource for the capturing class and every dependency
+	 */
+	public List<Resource> getResources() {
+		List<Resource> resources = new ArrayList<>();
+		resources.add(getCapturingClassResource());
+		for (String dependency : dependencies) {
+			resources.add(new ClassReference(dependency.replace('/', '.')));
+		}
+		return resources;
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.fluent.internal;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter. Checks start quickly (so a fast server is noticed quickly) and slow down up to a
+ * maximum delay. The jitter spreads out the checks of many clients (or many resources being waited on) so they do not
+ * all hit the server at the same moment.
+ *
+ * @author aclement
+ */
+public class BackoffWaitStrategy implements WaitStrategy {
+
+	private final long initialDelay;
+
+	private final long maxDelay;
+
+	private final double multiplier;
+
+	private final double jitter;
+
+	private final long timeout;
+
+	/**
+	 * Defaults to checks starting at 50ms and backing off to at most 1s apart, for up to 5s.
+	 */
+	public BackoffWaitStrategy() {
+		this(50, 1000, 2.0, 0.2, 5000);
+	}
+
+	/**
+	 * @param initialDelay delay in milliseconds after the first check
+	 * @param maxDelay upper bound on the delay between checks
+	 * @param multiplier how much the delay grows after each check
+	 * @param jitter fraction (0-1) of each delay that is randomized
+	 * @param timeout how long in milliseconds to keep checking
+	 */
+	public BackoffWaitStrategy(long initialDelay, long maxDelay, double multiplier, double jitter, long timeout) {
+		if (initialDelay < 0 || maxDelay < initialDelay || multiplier < 1.0 || jitter < 0 || jitter > 1) {
+			throw new IllegalArgumentException("Invalid backoff settings");
+		}
+		this.initialDelay = initialDelay;
+		this.maxDelay = maxDelay;
+		this.multiplier = multiplier;
+		this.jitter = jitter;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @return a strategy that checks at a fixed interval, with no jitter
+	 */
+	public static BackoffWaitStrategy fixed(long delay, long timeout) {
+		return new BackoffWaitStrategy(delay, delay, 1.0, 0, timeout);
+	}
+
+	/**
+	 * @return a copy of this strategy with a different timeout
+	 */
+	public BackoffWaitStrategy withTimeout(long timeout) {
+		return new BackoffWaitStrategy(initialDelay, maxDelay, multiplier, jitter, timeout);
+	}
+
+	@Override
+	public long nextDelay(int attempt) {
+		double delay = initialDelay * Math.pow(multiplier, Math.max(0, attempt - 1));
+		delay = Math.min(delay, maxDelay);
+		if (jitter > 0) {
+			// Randomize within [delay * (1 - jitter), delay]
+			delay -= delay * jitter * ThreadLocalRandom.current().nextDouble();
+		}
+		return Math.max(1, (long) delay);
+	}
+
+	@Override
+	public long getTimeout() {
+		return timeout;
+	}
+
+	@Override
+	public String toString() {
+		return "BackoffWaitStrategy(initialDelay=" + initialDelay + ",maxDelay=" + maxDelay + ",multiplier="
+				+ multiplier + ",jitter=" + jitter + ",timeout=" + timeout + ")";
+	}
+}
@@ -16,26 +16,37 @@
 
 package org.springframework.xd.fluent.internal;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.invoke.MethodHandleInfo;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
 
 import org.springframework.xd.dsl.domain.CodeType;
+import org.springframework.xd.dsl.domain.LambdaTarget;
 import org.springframework.xd.dsl.domain.ModuleType;
 import org.springframework.xd.dsl.domain.Resource;
+import org.springframework.xd.dsl.domain.Util;
 
 
 /**
@@ -72,86 +83,253 @@ public class CustomizedModuleGenerator implements Opcodes {
 
 			"codemodules/rx-processor/target/rx-processor-1.0.0.BUILD-SNAPSHOT.jar";
 
+	/**
+	 * Bumped whenever the generated output changes shape, so jars cached by an older generator are not reused.
+	 */
+	private static final int GENERATOR_VERSION = 2;
+
+	private static final Type OBJECT_TYPE = Type.getObjectType("java/lang/Object");
+
+	private static Map<String, Template> templates = new ConcurrentHashMap<>();
+
+	private static ModuleJarCache moduleJarCache = new ModuleJarCache(
+			Integer.getInteger("xd.dsl.moduleCache.size", 32),
+			"none".equals(System.getProperty("xd.dsl.moduleCache.dir")) ? null : new File(System.getProperty(
+					"xd.dsl.moduleCache.dir", System.getProperty("java.io.tmpdir") + File.separator
+							+ "spring-xd-dsl-module-cache")));
+
+	/**
+	 * When true the compressed template entries are copied as is rather than being inflated and deflated again.
+	 */
+	private static boolean rawZipCopy = Boolean.parseBoolean(System.getProperty("xd.dsl.rawZipCopy", "true"));
+
+	public static void setRawZipCopy(boolean rawZipCopy) {
+		CustomizedModuleGenerator.rawZipCopy = rawZipCopy;
+	}
+
+	/**
+	 * When true a lambda processor module calls the method implementing the lambda directly (see {@link LambdaTarget}),
+	 * giving the JIT a monomorphic call site, rather than calling the deserialized Function.
+	 */
+	private static boolean directInvocation = Boolean.getBoolean("xd.dsl.codegen.directInvocation");
+
+	public static void setDirectInvocation(boolean directInvocation) {
+		CustomizedModuleGenerator.directInvocation = directInvocation;
+	}
+
+	public static boolean isDirectInvocation() {
+		return directInvocation;
+	}
+
+	/**
+	 * Replace the cache used for generated module jars, pass null to package every module from scratch.
+	 */
+	public static void setModuleJarCache(ModuleJarCache cache) {
+		moduleJarCache = cache;
+	}
+
+	public static ModuleJarCache getModuleJarCache() {
+		return moduleJarCache;
+	}
+
+	/**
+	 * @param target the method the generated code should call directly, or null to call the deserialized lambda
+	 */
 	public static byte[] generate(CodeType type, ModuleType moduleType, String moduleName,
-			Set<Resource> resourcesToInclude, Class inputType, Class outputType) {
-		ByteArrayOutputStream outputModuleStream = new ByteArrayOutputStream();
-		byte[] buffer = new byte[2048];
+			Set<Resource> resourcesToInclude, Class inputType, Class outputType, LambdaTarget target) {
 		try {
-			InputStream is = null;
-			Map<ModuleType, String> moduleMap = jarMap.get(type);
-			String inputJarFile = moduleMap.get(moduleType);
-			try {
-				is = new FileInputStream(new File(inputJarFile));
-			}
-			catch (FileNotFoundException fnfe) {
-				inputJarFile = "codemodules" + inputJarFile.substring(inputJarFile.lastIndexOf("/"));
-				is = Thread.currentThread().getContextClassLoader().getResourceAsStream(inputJarFile);
-			}
-			//			if (type == CodeType.JAVA_UTIL_FUNCTION_FUNCTION) {
-			//				try {
-			//					is = new FileInputStream(new File(LAMBDA_PROCESSOR));
-			//				}
-			//				catch (FileNotFoundException fnfe) {
-			//					// running in jar mode
-			//					System.out.println("Accessing lambda-processor template jar via classloader");
-			//					is = Thread.currentThread().getContextClassLoader().getResourceAsStream(
-			//							"codemodules/lambda-processor-1.0.0.BUILD-SNAPSHOT.jar");
-			//				}
-			//			}
-			//			else {
-			//				try {
-			//					is = new FileInputStream(new File(RX_PROCESSOR));
-			//				}
-			//				catch (FileNotFoundException fnfe) {
-			//					// running in jar mode
-			//					System.out.println("Accessing rx-processor template jar via classloader");
-			//					is = Thread.currentThread().getContextClassLoader().getResourceAsStream(
-			//							"codemodules/rx-processor-1.0.0.BUILD-SNAPSHOT.jar");
-			//				}
-			//			}
-			ZipInputStream zis = new ZipInputStream(is);
-			ZipOutputStream zos = new ZipOutputStream(outputModuleStream);
-			ZipEntry ze;
-			while ((ze = zis.getNextEntry()) != null) {
-				ZipEntry newZipEntry = new ZipEntry(ze.getName());
-				if (ze.getName().endsWith(".jar")) {
-					System.out.println("got " + ze.getName());
-					newZipEntry.setMethod(ZipEntry.STORED);
-					newZipEntry.setCrc(ze.getCrc());
-					newZipEntry.setCompressedSize(ze.getCompressedSize());
-					newZipEntry.setSize(ze.getSize());
-				}
-				zos.putNextEntry(newZipEntry); // problem with the size being set already on ze?
-				// Only the module type processor currently generates a specialized Code class
-				// (which replaces the default one defined in the codemodule for lambda processor)
-				if (type == CodeType.JAVA_UTIL_FUNCTION_FUNCTION && moduleType == ModuleType.processor
-						&& ze.getName().equals("org/springframework/xd/code/Code.class")) {
-					writeCustomCode(zos, toDescriptor(inputType), toDescriptor(outputType));
-				}
-				else {
-					System.out.println("copying " + ze.getName());
-					int len = 0;
-					while ((len = zis.read(buffer)) > 0) {
-						zos.write(buffer, 0, len);
-					}
+			Template template = getTemplate(type, moduleType);
+			String inDescriptor = toDescriptor(inputType);
+			String outDescriptor = toDescriptor(outputType);
+			ModuleJarCache cache = moduleJarCache;
+			String key = null;
+			if (cache != null) {
+				key = fingerprint(template, type, moduleType, resourcesToInclude, inDescriptor, outDescriptor,
+						target);
+				byte[] cached = cache.get(key);
+				if (cached != null) {
+					System.out.println("  ...reusing generated module jar " + key);
+					return cached;
 				}
 			}
-			for (Resource r : resourcesToInclude) {
-				System.out.println("  ...including resource " + r.getName());
-				ZipEntry newZipEntry = new ZipEntry(r.getName());
-				zos.putNextEntry(newZipEntry);
-				zos.write(r.getBytes());
+			byte[] moduleBytes = build(template.bytes, type, moduleType, resourcesToInclude, inDescriptor,
+					outDescriptor, target);
+			if (cache != null) {
+				cache.put(key, moduleBytes);
 			}
-			zis.close();
-			zos.close();
+			return moduleBytes;
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Compute a fingerprint for the module that would be generated from these inputs. Two modules with the same
+	 * fingerprint have the same contents, so this can be used to tell if a module has changed since it was last
+	 * deployed without generating it.
+	 *
+	 * @return the fingerprint, or null if the template module cannot be found
+	 */
+	public static String fingerprint(CodeType type, ModuleType moduleType, Set<Resource> resourcesToInclude,
+			Class inputType, Class outputType, LambdaTarget target) {
+		try {
+			return fingerprint(getTemplate(type, moduleType), type, moduleType, resourcesToInclude,
+					toDescriptor(inputType), toDescriptor(outputType), target);
 		}
 		catch (IOException e) {
 			e.printStackTrace();
 			return null;
 		}
+	}
+
+	private static String fingerprint(Template template, CodeType type, ModuleType moduleType,
+			Set<Resource> resourcesToInclude, String inDescriptor, String outDescriptor, LambdaTarget target) {
+		return ModuleJarCache.computeKey(template.digest, resourcesToInclude, GENERATOR_VERSION, type, moduleType,
+				inDescriptor, outDescriptor, target);
+	}
+
+	private static byte[] build(byte[] templateBytes, CodeType type, ModuleType moduleType,
+			Set<Resource> resourcesToInclude, String inDescriptor, String outDescriptor, LambdaTarget target)
+			throws IOException {
+		if (rawZipCopy) {
+			try {
+				return buildRaw(templateBytes, type, moduleType, resourcesToInclude, inDescriptor, outDescriptor,
+						target);
+			}
+			catch (ZipException ze) {
+				System.out.println("Unable to raw copy template module (" + ze.getMessage()
+						+ "), falling back to stream copy");
+			}
+		}
+		return buildStream(templateBytes, type, moduleType, resourcesToInclude, inDescriptor, outDescriptor, target);
+	}
+
+	/**
+	 * Builds the module by copying the compressed template entries straight across, only the specialized Code
+	 * class and the included resources are compressed.
+	 */
+	private static byte[] buildRaw(byte[] templateBytes, CodeType type, ModuleType moduleType,
+			Set<Resource> resourcesToInclude, String inDescriptor, String outDescriptor, LambdaTarget target)
+			throws IOException {
+		ByteArrayOutputStream outputModuleStream = new ByteArrayOutputStream(templateBytes.length);
+		RawZipCopier copier = new RawZipCopier(templateBytes, outputModuleStream);
+		Set<String> included = new HashSet<>();
+		for (Resource r : resourcesToInclude) {
+			included.add(r.getName());
+		}
+		for (RawZipCopier.Entry entry : copier.getEntries()) {
+			if (isReplacedCodeClass(type, moduleType, entry.getName())) {
+				copier.add(entry.getName(), generateCustomCode(inDescriptor, outDescriptor, target));
+			}
+			else if (!included.contains(entry.getName())) {
+				copier.copy(entry);
+			}
+		}
+		for (Resource r : resourcesToInclude) {
+			System.out.println("  ...including resource " + r.getName());
+			copier.add(r.getName(), r.getBytes());
+		}
+		copier.finish();
 		return outputModuleStream.toByteArray();
 	}
 
+	private static byte[] buildStream(byte[] templateBytes, CodeType type, ModuleType moduleType,
+			Set<Resource> resourcesToInclude, String inDescriptor, String outDescriptor, LambdaTarget target)
+			throws IOException {
+		ByteArrayOutputStream outputModuleStream = new ByteArrayOutputStream(templateBytes.length);
+		byte[] buffer = new byte[2048];
+		ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(templateBytes));
+		ZipOutputStream zos = new ZipOutputStream(outputModuleStream);
+		ZipEntry ze;
+		while ((ze = zis.getNextEntry()) != null) {
+			ZipEntry newZipEntry = new ZipEntry(ze.getName());
+			if (ze.getName().endsWith(".jar")) {
+				System.out.println("got " + ze.getName());
+				newZipEntry.setMethod(ZipEntry.STORED);
+				newZipEntry.setCrc(ze.getCrc());
+				newZipEntry.setCompressedSize(ze.getCompressedSize());
+				newZipEntry.setSize(ze.getSize());
+			}
+			zos.putNextEntry(newZipEntry); // problem with the size being set already on ze?
+			if (isReplacedCodeClass(type, moduleType, ze.getName())) {
+				zos.write(generateCustomCode(inDescriptor, outDescriptor, target));
+			}
+			else {
+				System.out.println("copying " + ze.getName());
+				int len = 0;
+				while ((len = zis.read(buffer)) > 0) {
+					zos.write(buffer, 0, len);
+				}
+			}
+		}
+		for (Resource r : resourcesToInclude) {
+			System.out.println("  ...including resource " + r.getName());
+			ZipEntry newZipEntry = new ZipEntry(r.getName());
+			zos.putNextEntry(newZipEntry);
+			zos.write(r.getBytes());
+		}
+		zis.close();
+		zos.close();
+		return outputModuleStream.toByteArray();
+	}
+
+	/**
+	 * Only the module type processor currently generates a specialized Code class (which replaces the default one
+	 * defined in the codemodule for lambda processor).
+	 */
+	private static boolean isReplacedCodeClass(CodeType type, ModuleType moduleType, String entryName) {
+		return type == CodeType.JAVA_UTIL_FUNCTION_FUNCTION && moduleType == ModuleType.processor
+				&& entryName.equals("org/springframework/xd/code/Code.class");
+	}
+
+	/**
+	 * Template jars are read once and then reused. When the template is loaded from the file system it is reloaded
+	 * if the file changes (e.g. the codemodule has been rebuilt).
+	 */
+	private static Template getTemplate(CodeType type, ModuleType moduleType) throws IOException {
+		Map<ModuleType, String> moduleMap = jarMap.get(type);
+		String inputJarFile = moduleMap.get(moduleType);
+		File f = new File(inputJarFile);
+		if (f.isFile()) {
+			Template template = templates.get(inputJarFile);
+			if (template == null || template.lastModified != f.lastModified()) {
+				template = new Template(Files.readAllBytes(f.toPath()), f.lastModified());
+				templates.put(inputJarFile, template);
+			}
+			return template;
+		}
+		// running in jar mode
+		String resourceName = "codemodules" + inputJarFile.substring(inputJarFile.lastIndexOf("/"));
+		Template template = templates.get(resourceName);
+		if (template == null) {
+			InputStream is = Thread.currentThread().getContextClassLoader().getResourceAsStream(resourceName);
+			if (is == null) {
+				throw new FileNotFoundException("Unable to find template module " + inputJarFile + " or "
+						+ resourceName);
+			}
+			template = new Template(Util.loadBytesFromStream(is), -1);
+			templates.put(resourceName, template);
+		}
+		return template;
+	}
+
+	private static class Template {
+
+		final byte[] bytes;
+
+		final String digest;
+
+		final long lastModified;
+
+		Template(byte[] bytes, long lastModified) {
+			this.bytes = bytes;
+			this.digest = ModuleJarCache.digest(bytes);
+			this.lastModified = lastModified;
+		}
+	}
+
 	/**
 	 * @param outputType
 	 * @return
@@ -159,6 +337,13 @@ public class CustomizedModuleGenerator implements Opcodes {
 	private static String toDescriptor(Class clazz) {
 		if (clazz == null)
 			return null;
+		if (clazz.isPrimitive()) {
+			return Type.getDescriptor(clazz);
+		}
+		if (clazz.isArray()) {
+			// The name of an array class is already its descriptor, e.g. [Ljava.lang.String;
+			return clazz.getName().replace('.', '/');
+		}
 		String descriptor = "L" + clazz.getName().replace('.', '/') + ";";
 		return descriptor;
 	}
@@ -197,10 +382,24 @@ public class CustomizedModuleGenerator implements Opcodes {
 	//	    MAXLOCALS = 2
 	//	}
 	/**
-	 * @param inDescriptor input descriptor of the form Lfoo/Bar;
-	 * @param outDescriptor output descriptor of the form Lfoo/Boo;
+	 * @param inDescriptor input descriptor of the form Lfoo/Bar; (or I, J or D for a primitive function)
+	 * @param outDescriptor output descriptor of the form Lfoo/Boo; (or I, J or D for a primitive function)
+	 * @param target the method to call directly, or null to call the deserialized lambda
+	 * @return the bytes of the Code class the module template is customized with
 	 */
-	private static void writeCustomCode(ZipOutputStream zos, String inDescriptor, String outDescriptor) {
+	public static byte[] generateCustomCode(String inDescriptor, String outDescriptor, LambdaTarget target) {
+		if (target != null) {
+			try {
+				return generateDirectCode(inDescriptor, outDescriptor, target);
+			}
+			catch (IllegalArgumentException iae) {
+				System.out.println("Unable to call " + target + " directly (" + iae.getMessage()
+						+ "), calling the lambda instead");
+			}
+		}
+		if (outDescriptor.length() == 1) {
+			return generatePrimitiveCustomCode(inDescriptor, outDescriptor);
+		}
 		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
 		cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, "org/springframework/xd/code/Code", null,
 				"org/springframework/xd/code/CodeDrivenProcessor", null);
@@ -221,19 +420,279 @@ public class CustomizedModuleGenerator implements Opcodes {
 		mv.visitVarInsn(ALOAD, 1);
 		mv.visitMethodInsn(INVOKEINTERFACE, "java/util/function/Function", "apply",
 				"(Ljava/lang/Object;)Ljava/lang/Object;", true);
-		mv.visitTypeInsn(CHECKCAST, outDescriptor.substring(1, outDescriptor.length() - 1));//"java/lang/Integer");
+		mv.visitTypeInsn(CHECKCAST, Type.getType(outDescriptor).getInternalName());//"java/lang/Integer");
 		mv.visitInsn(ARETURN);
 		mv.visitMaxs(2, 2);
 		mv.visitEnd();
 		cw.visitEnd();
-		try {
-			zos.write(cw.toByteArray());
+		return cw.toByteArray();
+	}
+
+	/**
+	 * Generate a Code class for a lambda with a primitive result, e.g. for an IntUnaryOperator:
+	 *
+	 * <pre>
+	 * public class Code extends CodeDrivenProcessor {
+	 * 	private final IntUnaryOperator op;
+	 *
+	 * 	public Code() {
+	 * 		op = (IntUnaryOperator) fn;
+	 * 	}
+	 *
+	 * 	public int transform(int input) {
+	 * 		return op.applyAsInt(input);
+	 * 	}
+	 * }
+	 * </pre>
+	 *
+	 * The deserialized lambda is still a Function (see SerializableIntUnaryOperator) so the template processor can load
+	 * it as before. The payload is unboxed for the call and the result is boxed once, into the outgoing message.
+	 */
+	private static byte[] generatePrimitiveCustomCode(String inDescriptor, String outDescriptor) {
+		String kind = outDescriptor.equals("I") ? "Int" : outDescriptor.equals("J") ? "Long"
+				: outDescriptor.equals("D") ? "Double" : null;
+		if (kind == null) {
+			throw new IllegalArgumentException("No primitive function producing " + outDescriptor);
 		}
-		catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		String operator;
+		String applyDescriptor;
+		if (inDescriptor.equals(outDescriptor)) {
+			// e.g. IntUnaryOperator.applyAsInt(I)I
+			operator = "java/util/function/" + kind + "UnaryOperator";
+			applyDescriptor = "(" + inDescriptor + ")" + outDescriptor;
+		}
+		else if (inDescriptor.length() > 1) {
+			// e.g. ToIntFunction.applyAsInt(Ljava/lang/Object;)I
+			operator = "java/util/function/To" + kind + "Function";
+			applyDescriptor = "(Ljava/lang/Object;)" + outDescriptor;
+		}
+		else {
+			throw new IllegalArgumentException("No primitive function from " + inDescriptor + " to " + outDescriptor);
+		}
+		String operatorDescriptor = "L" + operator + ";";
+		Type inType = Type.getType(inDescriptor);
+		Type outType = Type.getType(outDescriptor);
+
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+		cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, "org/springframework/xd/code/Code", null,
+				"org/springframework/xd/code/CodeDrivenProcessor", null);
+		cw.visitField(ACC_PRIVATE | ACC_FINAL, "op", operatorDescriptor, null, null).visitEnd();
+
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitMethodInsn(INVOKESPECIAL, "org/springframework/xd/code/CodeDrivenProcessor", "<init>", "()V", false);
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitFieldInsn(GETFIELD, "org/springframework/xd/code/Code", "fn", "Ljava/util/function/Function;");
+		mv.visitTypeInsn(CHECKCAST, operator);
+		mv.visitFieldInsn(PUTFIELD, "org/springframework/xd/code/Code", "op", operatorDescriptor);
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(2, 1);
+		mv.visitEnd();
+
+		mv = cw.visitMethod(ACC_PUBLIC, "transform", "(" + inDescriptor + ")" + outDescriptor, null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitFieldInsn(GETFIELD, "org/springframework/xd/code/Code", "op", operatorDescriptor);
+		mv.visitVarInsn(inType.getOpcode(ILOAD), 1);
+		mv.visitMethodInsn(INVOKEINTERFACE, operator, "applyAs" + kind, applyDescriptor, true);
+		mv.visitInsn(outType.getOpcode(IRETURN));
+		mv.visitMaxs(1 + inType.getSize(), 1 + inType.getSize());
+		mv.visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	/**
+	 * Generate a Code class that calls the lambda target directly, e.g. for a lambda <tt>payload -> payload + suffix</tt>
+	 * capturing a String <tt>suffix</tt>:
+	 *
+	 * <pre>
+	 * public class Code extends CodeDrivenProcessor {
+	 * 	private final String cap0;
+	 *
+	 * 	public Code() throws Exception {
+	 * 		Method writeReplace = fn.getClass().getDeclaredMethod("writeReplace");
+	 * 		writeReplace.setAccessible(true);
+	 * 		SerializedLambda serializedLambda = (SerializedLambda) writeReplace.invoke(fn);
+	 * 		cap0 = (String) serializedLambda.getCapturedArg(0);
+	 * 	}
+	 *
+	 * 	public String transform(String input) {
+	 * 		return Demo.direct$lambda$main$0(cap0, input);
+	 * 	}
+	 * }
+	 * </pre>
+	 *
+	 * The captured values are only recovered from the deserialized lambda once, on construction.
+	 *
+	 * @throws IllegalArgumentException if the target cannot be called with the input type or its result converted to
+	 *             the output type
+	 */
+	private static byte[] generateDirectCode(String inDescriptor, String outDescriptor, LambdaTarget target) {
+		Type[] targetArgs = Type.getArgumentTypes(target.getDescriptor());
+		boolean hasReceiver = target.getKind() == MethodHandleInfo.REF_invokeVirtual
+				|| target.getKind() == MethodHandleInfo.REF_invokeInterface;
+		boolean isConstructor = target.getKind() == MethodHandleInfo.REF_newInvokeSpecial;
+		// The parameters of the call: the receiver (if any) then the method arguments
+		List<Type> params = new ArrayList<>();
+		if (hasReceiver) {
+			params.add(Type.getObjectType(target.getOwner()));
+		}
+		params.addAll(Arrays.asList(targetArgs));
+		int captured = target.getCapturedArgCount();
+		if (params.size() != captured + 1) {
+			throw new IllegalArgumentException("expected one uncaptured parameter but there are "
+					+ (params.size() - captured));
+		}
+		Type inType = Type.getType(inDescriptor);
+		Type outType = Type.getType(outDescriptor);
+		Type resultType = isConstructor ? Type.getObjectType(target.getOwner())
+				: Type.getReturnType(target.getDescriptor());
+		if (resultType.getSort() == Type.VOID) {
+			throw new IllegalArgumentException("target does not return a value");
+		}
+
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+		// Java 8 class file version, needed to call static methods declared on interfaces
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, "org/springframework/xd/code/Code", null,
+				"org/springframework/xd/code/CodeDrivenProcessor", null);
+		for (int i = 0; i < captured; i++) {
+			cw.visitField(ACC_PRIVATE | ACC_FINAL, "cap" + i, params.get(i).getDescriptor(), null, null).visitEnd();
 		}
 
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, new String[] { "java/lang/Exception" });
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitMethodInsn(INVOKESPECIAL, "org/springframework/xd/code/CodeDrivenProcessor", "<init>", "()V", false);
+		if (captured > 0) {
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitFieldInsn(GETFIELD, "org/springframework/xd/code/Code", "fn", "Ljava/util/function/Function;");
+			mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Object", "getClass", "()Ljava/lang/Class;", false);
+			mv.visitLdcInsn("writeReplace");
+			mv.visitInsn(ICONST_0);
+			mv.visitTypeInsn(ANEWARRAY, "java/lang/Class");
+			mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Class", "getDeclaredMethod",
+					"(Ljava/lang/String;[Ljava/lang/Class;)Ljava/lang/reflect/Method;", false);
+			mv.visitVarInsn(ASTORE, 1);
+			mv.visitVarInsn(ALOAD, 1);
+			mv.visitInsn(ICONST_1);
+			mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/reflect/Method", "setAccessible", "(Z)V", false);
+			mv.visitVarInsn(ALOAD, 1);
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitFieldInsn(GETFIELD, "org/springframework/xd/code/Code", "fn", "Ljava/util/function/Function;");
+			mv.visitInsn(ICONST_0);
+			mv.visitTypeInsn(ANEWARRAY, "java/lang/Object");
+			mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/reflect/Method", "invoke",
+					"(Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;", false);
+			mv.visitTypeInsn(CHECKCAST, "java/lang/invoke/SerializedLambda");
+			mv.visitVarInsn(ASTORE, 2);
+			for (int i = 0; i < captured; i++) {
+				mv.visitVarInsn(ALOAD, 0);
+				mv.visitVarInsn(ALOAD, 2);
+				mv.visitLdcInsn(i);
+				mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/invoke/SerializedLambda", "getCapturedArg",
+						"(I)Ljava/lang/Object;", false);
+				convert(mv, OBJECT_TYPE, params.get(i));
+				mv.visitFieldInsn(PUTFIELD, "org/springframework/xd/code/Code", "cap" + i,
+						params.get(i).getDescriptor());
+			}
+		}
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		mv = cw.visitMethod(ACC_PUBLIC, "transform", "(" + inDescriptor + ")" + outDescriptor, null, null);
+		mv.visitCode();
+		if (isConstructor) {
+			mv.visitTypeInsn(NEW, target.getOwner());
+			mv.visitInsn(DUP);
+		}
+		for (int i = 0; i < captured; i++) {
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitFieldInsn(GETFIELD, "org/springframework/xd/code/Code", "cap" + i, params.get(i).getDescriptor());
+		}
+		mv.visitVarInsn(inType.getOpcode(ILOAD), 1);
+		convert(mv, inType, params.get(captured));
+		switch (target.getKind()) {
+			case MethodHandleInfo.REF_invokeStatic:
+				mv.visitMethodInsn(INVOKESTATIC, target.getOwner(), target.getName(), target.getDescriptor(),
+						target.isOwnerInterface());
+				break;
+			case MethodHandleInfo.REF_invokeVirtual:
+				mv.visitMethodInsn(INVOKEVIRTUAL, target.getOwner(), target.getName(), target.getDescriptor(), false);
+				break;
+			case MethodHandleInfo.REF_invokeInterface:
+				mv.visitMethodInsn(INVOKEINTERFACE, target.getOwner(), target.getName(), target.getDescriptor(), true);
+				break;
+			default:
+				mv.visitMethodInsn(INVOKESPECIAL, target.getOwner(), "<init>", target.getDescriptor(), false);
+		}
+		convert(mv, resultType, outType);
+		mv.visitInsn(outType.getOpcode(IRETURN));
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	/**
+	 * Convert the value on the stack from one type to another, boxing, unboxing or casting as necessary.
+	 */
+	private static void convert(MethodVisitor mv, Type from, Type to) {
+		if (from.equals(to)) {
+			return;
+		}
+		boolean fromPrimitive = isPrimitive(from);
+		boolean toPrimitive = isPrimitive(to);
+		if (fromPrimitive && toPrimitive) {
+			throw new IllegalArgumentException("no conversion from " + from + " to " + to);
+		}
+		if (fromPrimitive) {
+			Type boxed = boxed(from);
+			mv.visitMethodInsn(INVOKESTATIC, boxed.getInternalName(), "valueOf",
+					"(" + from.getDescriptor() + ")" + boxed.getDescriptor(), false);
+			if (!to.equals(boxed) && !to.equals(OBJECT_TYPE)) {
+				mv.visitTypeInsn(CHECKCAST, to.getInternalName());
+			}
+		}
+		else if (toPrimitive) {
+			Type boxed = boxed(to);
+			mv.visitTypeInsn(CHECKCAST, boxed.getInternalName());
+			mv.visitMethodInsn(INVOKEVIRTUAL, boxed.getInternalName(), to.getClassName() + "Value",
+					"()" + to.getDescriptor(), false);
+		}
+		else if (!to.equals(OBJECT_TYPE)) {
+			mv.visitTypeInsn(CHECKCAST, to.getInternalName());
+		}
+	}
+
+	private static boolean isPrimitive(Type type) {
+		return type.getSort() != Type.OBJECT && type.getSort() != Type.ARRAY;
+	}
+
+	private static Type boxed(Type primitive) {
+		switch (primitive.getSort()) {
+			case Type.BOOLEAN:
+				return Type.getObjectType("java/lang/Boolean");
+			case Type.CHAR:
+				return Type.getObjectType("java/lang/Character");
+			case Type.BYTE:
+				return Type.getObjectType("java/lang/Byte");
+			case Type.SHORT:
+				return Type.getObjectType("java/lang/Short");
+			case Type.INT:
+				return Type.getObjectType("java/lang/Integer");
+			case Type.FLOAT:
+				return Type.getObjectType("java/lang/Float");
+			case Type.LONG:
+				return Type.getObjectType("java/lang/Long");
+			case Type.DOUBLE:
+				return Type.getObjectType("java/lang/Double");
+			default:
+				throw new IllegalArgumentException("no boxed form of " + primitive);
+		}
 	}
 
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.fluent.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Records, locally, what was last deployed to an admin server: the definition of each stream and the fingerprint of
+ * each of its code modules. A redeploy can compare against this to work out what (if anything) has changed. The
+ * record is kept in a properties file per admin server.
+ * <p>
+ * The manifest only knows about deployments made from this machine, so callers should still check the stream and
+ * modules are present on the server before trusting it.
+ *
+ * @author aclement
+ */
+public class DeploymentManifest {
+
+	private static final Map<File, DeploymentManifest> manifests = new ConcurrentHashMap<>();
+
+	private static final String DEFINITION = ".definition";
+
+	private static final String MODULE = ".module.";
+
+	private final File file;
+
+	private final Properties properties = new Properties();
+
+	/**
+	 * @param file the file holding the manifest, loaded if it exists
+	 */
+	public DeploymentManifest(File file) {
+		this.file = file;
+		if (file.isFile()) {
+			try (InputStream is = new FileInputStream(file)) {
+				properties.load(is);
+			}
+			catch (IOException e) {
+				System.out.println("Unable to read deployment manifest " + file + ", ignoring it: " + e.getMessage());
+				properties.clear();
+			}
+		}
+	}
+
+	/**
+	 * @return the manifest for the admin server at the specified url, stored in the directory specified by the
+	 *         <tt>xd.dsl.deploy.manifestDir</tt> system property (default a directory under <tt>java.io.tmpdir</tt>).
+	 *         Every caller asking about the same server shares the same manifest.
+	 */
+	public static DeploymentManifest forServer(String xdUrl) {
+		File dir = new File(System.getProperty("xd.dsl.deploy.manifestDir", System.getProperty("java.io.tmpdir")
+				+ File.separator + "spring-xd-dsl-deployments"));
+		String name = ModuleJarCache.digest(xdUrl.getBytes(StandardCharsets.UTF_8)).substring(0, 16);
+		return manifests.computeIfAbsent(new File(dir, name + ".properties").getAbsoluteFile(),
+				DeploymentManifest::new);
+	}
+
+	/**
+	 * @return the definition the stream was last deployed with, or null if it is not known
+	 */
+	public synchronized String getDefinition(String streamName) {
+		return properties.getProperty(streamName + DEFINITION);
+	}
+
+	/**
+	 * @return the fingerprints of the code modules (keyed by module name) last deployed for the stream
+	 */
+	public synchronized Map<String, String> getModuleFingerprints(String streamName) {
+		Map<String, String> fingerprints = new LinkedHashMap<>();
+		String prefix = streamName + MODULE;
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith(prefix)) {
+				fingerprints.put(key.substring(prefix.length()), properties.getProperty(key));
+			}
+		}
+		return Collections.unmodifiableMap(fingerprints);
+	}
+
+	/**
+	 * Record a successful deployment, replacing anything previously recorded for the stream.
+	 */
+	public synchronized void record(String streamName, String definition, Map<String, String> moduleFingerprints) {
+		forget(streamName);
+		properties.setProperty(streamName + DEFINITION, definition);
+		for (Map.Entry<String, String> entry : moduleFingerprints.entrySet()) {
+			properties.setProperty(streamName + MODULE + entry.getKey(), entry.getValue());
+		}
+		save();
+	}
+
+	/**
+	 * Remove the record of a stream, e.g. because it is being destroyed.
+	 */
+	public synchronized void remove(String streamName) {
+		if (forget(streamName)) {
+			save();
+		}
+	}
+
+	private boolean forget(String streamName) {
+		boolean changed = properties.remove(streamName + DEFINITION) != null;
+		String prefix = streamName + MODULE;
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith(prefix)) {
+				properties.remove(key);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private void save() {
+		try {
+			File dir = file.getAbsoluteFile().getParentFile();
+			dir.mkdirs();
+			File tmp = File.createTempFile("manifest", ".tmp", dir);
+			try (OutputStream os = new FileOutputStream(tmp)) {
+				properties.store(os, "Streams deployed by the Spring XD Java DSL");
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e) {
+			System.out.println("Unable to write deployment manifest " + file + ": " + e.getMessage());
+		}
+	}
+}
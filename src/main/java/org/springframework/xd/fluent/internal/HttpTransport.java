@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.fluent.internal;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+
+
+/**
+ * The HTTP connections used to talk to the admin server. Connections are pooled and kept alive between requests so
+ * that a burst of calls (e.g. redeploying many streams) does not open a new TCP connection for each one, and every
+ * request has a connect and read timeout so a slow or unresponsive server cannot hang the caller forever.
+ * <p>
+ * A transport can be shared by several {@link XDRestClient} instances, they then share the connection pool.
+ *
+ * @author aclement
+ */
+public class HttpTransport implements Closeable {
+
+	private final int maxConnections;
+
+	private final int maxConnectionsPerRoute;
+
+	private final int connectTimeout;
+
+	private final int readTimeout;
+
+	private final PoolingHttpClientConnectionManager connectionManager;
+
+	private final CloseableHttpClient httpClient;
+
+	/**
+	 * Settings are taken from the system properties <tt>xd.dsl.http.maxConnections</tt> (default 20),
+	 * <tt>xd.dsl.http.maxConnectionsPerRoute</tt> (default 10), <tt>xd.dsl.http.connectTimeout</tt> (default 5000ms)
+	 * and <tt>xd.dsl.http.readTimeout</tt> (default 60000ms).
+	 */
+	public HttpTransport() {
+		this(Integer.getInteger("xd.dsl.http.maxConnections", 20),
+				Integer.getInteger("xd.dsl.http.maxConnectionsPerRoute", 10),
+				Integer.getInteger("xd.dsl.http.connectTimeout", 5000),
+				Integer.getInteger("xd.dsl.http.readTimeout", 60000));
+	}
+
+	/**
+	 * @param maxConnections upper bound on the connections held open across all servers
+	 * @param maxConnectionsPerRoute upper bound on the connections held open to a single server
+	 * @param connectTimeout milliseconds to wait for a connection to be established (or one to be free in the pool)
+	 * @param readTimeout milliseconds to wait for data from the server before failing the request
+	 */
+	public HttpTransport(int maxConnections, int maxConnectionsPerRoute, int connectTimeout, int readTimeout) {
+		if (maxConnections < 1 || maxConnectionsPerRoute < 1 || connectTimeout < 0 || readTimeout < 0) {
+			throw new IllegalArgumentException("Invalid transport settings");
+		}
+		this.maxConnections = maxConnections;
+		this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(connectTimeout)
+				.setConnectionRequestTimeout(connectTimeout)
+				.setSocketTimeout(readTimeout)
+				.build();
+		httpClient = HttpClientBuilder.create()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.build();
+	}
+
+	/**
+	 * @param bufferRequestBody false if request bodies should be streamed to the server as they are written (used
+	 *            for module uploads), rather than collected in memory first
+	 * @return a request factory that takes its connections from this transport's pool
+	 */
+	public ClientHttpRequestFactory createRequestFactory(boolean bufferRequestBody) {
+		HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(httpClient);
+		requestFactory.setBufferRequestBody(bufferRequestBody);
+		return requestFactory;
+	}
+
+	/**
+	 * Close pooled connections that have not been used for the specified time.
+	 */
+	public void closeIdleConnections(long idleTime, TimeUnit unit) {
+		connectionManager.closeIdleConnections(idleTime, unit);
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public int getMaxConnectionsPerRoute() {
+		return maxConnectionsPerRoute;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * Close all the connections in the pool. Clients using this transport cannot be used afterwards.
+	 */
+	@Override
+	public void close() {
+		try {
+			httpClient.close();
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		connectionManager.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		return "HttpTransport(maxConnections=" + maxConnections + ",maxConnectionsPerRoute=" + maxConnectionsPerRoute
+				+ ",connectTimeout=" + connectTimeout + ",readTimeout=" + readTimeout + ")";
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.fluent.internal;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+
+/**
+ * Holds the result of an expensive listing call (e.g. all the streams on the server) for a short time. Concurrent
+ * callers that miss the cache share a single in-flight load rather than each issuing their own request. With a time
+ * to live of zero the cache is disabled and every call goes straight to the loader.
+ *
+ * @author aclement
+ */
+public class ListingCache<T> {
+
+	private final Supplier<T> loader;
+
+	private volatile long timeToLive;
+
+	private T value;
+
+	private long loadedAt;
+
+	private CompletableFuture<T> inFlight;
+
+	// Bumped on invalidation, so that a load that started before a change is not cached after it
+	private long generation;
+
+	/**
+	 * @param loader produces the value, called on a cache miss
+	 * @param timeToLive how long in milliseconds a loaded value is reused, zero disables caching
+	 */
+	public ListingCache(Supplier<T> loader, long timeToLive) {
+		this.loader = loader;
+		this.timeToLive = timeToLive;
+	}
+
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+		invalidate();
+	}
+
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	public T get() {
+		if (timeToLive <= 0) {
+			return loader.get();
+		}
+		CompletableFuture<T> load;
+		long loadGeneration;
+		boolean leader = false;
+		synchronized (this) {
+			if (value != null && (System.currentTimeMillis() - loadedAt) < timeToLive) {
+				return value;
+			}
+			if (inFlight == null) {
+				inFlight = new CompletableFuture<>();
+				leader = true;
+			}
+			load = inFlight;
+			loadGeneration = generation;
+		}
+		if (leader) {
+			try {
+				T loaded = loader.get();
+				synchronized (this) {
+					if (loadGeneration == generation) {
+						value = loaded;
+						loadedAt = System.currentTimeMillis();
+					}
+					if (inFlight == load) {
+						inFlight = null;
+					}
+				}
+				load.complete(loaded);
+				return loaded;
+			}
+			catch (RuntimeException re) {
+				synchronized (this) {
+					if (inFlight == load) {
+						inFlight = null;
+					}
+				}
+				load.completeExceptionally(re);
+				throw re;
+			}
+		}
+		try {
+			return load.join();
+		}
+		catch (CompletionException ce) {
+			if (ce.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ce.getCause();
+			}
+			throw ce;
+		}
+	}
+
+	/**
+	 * Discard the cached value, the next call to {@link #get()} will load it again. A load already in flight is not
+	 * shared with callers arriving after this point.
+	 */
+	public synchronized void invalidate() {
+		value = null;
+		inFlight = null;
+		generation++;
+	}
+}
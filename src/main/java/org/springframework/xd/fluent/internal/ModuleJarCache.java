@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.fluent.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.xd.dsl.domain.Resource;
+
+
+/**
+ * Content addressed cache of generated module jars. The key for an entry is a digest of everything that goes into
+ * the jar (the template jar, the resources being added and the input/output descriptors) so an unchanged module is
+ * never packaged twice. Recently used jars are kept in memory and every jar is also written to a spill directory, so
+ * that a later JVM (e.g. the next CI run) can pick them up too.
+ *
+ * @author aclement
+ */
+public class ModuleJarCache {
+
+	private final int maxEntries;
+
+	private final File spillDirectory;
+
+	private final Map<String, byte[]> entries;
+
+	/**
+	 * @param maxEntries the maximum number of jars to keep in memory, least recently used are evicted first
+	 * @param spillDirectory directory where jars are persisted, may be null for an in-memory only cache
+	 */
+	public ModuleJarCache(int maxEntries, File spillDirectory) {
+		this.maxEntries = maxEntries;
+		this.spillDirectory = spillDirectory;
+		this.entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+				return size() > ModuleJarCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @return the cached jar for the key, or null if there isn't one in memory or in the spill directory
+	 */
+	public byte[] get(String key) {
+		synchronized (entries) {
+			byte[] jar = entries.get(key);
+			if (jar != null) {
+				return jar;
+			}
+		}
+		File spilled = spillFile(key);
+		if (spilled == null || !spilled.isFile()) {
+			return null;
+		}
+		try {
+			byte[] jar = Files.readAllBytes(spilled.toPath());
+			synchronized (entries) {
+				entries.put(key, jar);
+			}
+			return jar;
+		}
+		catch (IOException ioe) {
+			// Treat an unreadable spill file as a miss, it will be rewritten by the next put()
+			return null;
+		}
+	}
+
+	public void put(String key, byte[] jar) {
+		synchronized (entries) {
+			entries.put(key, jar);
+		}
+		File spilled = spillFile(key);
+		if (spilled == null || spilled.isFile()) {
+			return;
+		}
+		try {
+			Files.createDirectories(spillDirectory.toPath());
+			// Write under a temporary name then move it, a reader never sees a partially written jar
+			File tmp = File.createTempFile(key, ".tmp", spillDirectory);
+			Files.write(tmp.toPath(), jar);
+			Files.move(tmp.toPath(), spilled.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException ioe) {
+			System.out.println("Unable to spill module jar to " + spillDirectory + ": " + ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Discard the in-memory entries, anything in the spill directory is left alone.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	private File spillFile(String key) {
+		return (spillDirectory == null ? null : new File(spillDirectory, key + ".jar"));
+	}
+
+	/**
+	 * Compute the key for a generated module. Resources are visited in name order so the key does not depend on the
+	 * iteration order of the set.
+	 *
+	 * @param templateDigest digest of the template jar the module is built from
+	 * @param discriminators anything else that affects the generated jar (code type, descriptors, etc), null elements
+	 *            are allowed
+	 * @param resources the resources that will be added to the jar
+	 * @return a hex encoded digest
+	 */
+	public static String computeKey(String templateDigest, Set<Resource> resources, Object... discriminators) {
+		MessageDigest md = newDigest();
+		update(md, templateDigest);
+		for (Object discriminator : discriminators) {
+			update(md, discriminator == null ? "<null>" : discriminator.toString());
+		}
+		if (resources != null) {
+			List<Resource> sorted = new ArrayList<>(resources);
+			Collections.sort(sorted, new Comparator<Resource>() {
+
+				@Override
+				public int compare(Resource r1, Resource r2) {
+					return r1.getName().compareTo(r2.getName());
+				}
+			});
+			for (Resource resource : sorted) {
+				update(md, resource.getName());
+				byte[] bytes = resource.getBytes();
+				update(md, Integer.toString(bytes.length));
+				md.update(bytes);
+			}
+		}
+		return toHex(md.digest());
+	}
+
+	/**
+	 * @return a hex encoded digest of the bytes
+	 */
+	public static String digest(byte[] bytes) {
+		return toHex(newDigest().digest(bytes));
+	}
+
+	private static void update(MessageDigest md, String s) {
+		md.update(s.getBytes(StandardCharsets.UTF_8));
+		md.update((byte) 0);
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException(nsae);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder s = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			s.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return s.toString();
+	}
+}
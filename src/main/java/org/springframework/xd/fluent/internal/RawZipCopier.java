@@ -0,0 +1,373 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.fluent.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+
+/**
+ * Builds a zip from an existing zip without inflating and re-deflating the entries that are carried across
+ * unchanged. The compressed bytes of a copied entry are moved straight into the output along with the CRC and sizes
+ * recorded for them in the source archive, only entries that are added are compressed. This is considerably cheaper
+ * than a ZipInputStream/ZipOutputStream round trip for template jars that include large dependencies.
+ * <p>
+ * ZIP64 archives and multi-disk archives are not supported, a ZipException is thrown if one is encountered and the
+ * caller is expected to fall back to a regular stream based copy.
+ *
+ * @author aclement
+ */
+public class RawZipCopier {
+
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+	private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+	private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+
+	private static final int FLAG_UTF8 = 0x800;
+
+	private final byte[] source;
+
+	private final List<Entry> entries;
+
+	private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+
+	private OutputStream out;
+
+	private long written;
+
+	private int entriesWritten;
+
+	/**
+	 * @param source the bytes of the archive entries will be copied from
+	 * @param out where the new archive is written
+	 * @throws ZipException if the source archive cannot be handled
+	 */
+	public RawZipCopier(byte[] source, OutputStream out) throws ZipException {
+		this.source = source;
+		this.entries = readCentralDirectory(source);
+		this.out = out;
+	}
+
+	/**
+	 * @return the entries in the source archive, in central directory order
+	 */
+	public List<Entry> getEntries() {
+		return Collections.unmodifiableList(entries);
+	}
+
+	/**
+	 * Copy the entry from the source archive, the compressed data is not touched.
+	 */
+	public void copy(Entry entry) throws IOException {
+		if (readInt(source, entry.localHeaderOffset) != LOCAL_HEADER_SIGNATURE) {
+			throw new ZipException("Bad local header for entry " + entry.getName());
+		}
+		int localNameLength = readShort(source, entry.localHeaderOffset + 26);
+		int localExtraLength = readShort(source, entry.localHeaderOffset + 28);
+		int localExtraStart = entry.localHeaderOffset + 30 + localNameLength;
+		int dataStart = localExtraStart + localExtraLength;
+		if (dataStart + entry.compressedSize > source.length) {
+			throw new ZipException("Truncated data for entry " + entry.getName());
+		}
+		// The sizes are known so a trailing data descriptor is never needed in the output
+		int flags = entry.flags & ~FLAG_DATA_DESCRIPTOR;
+		long offset = written;
+		writeLocalHeader(entry.versionNeeded, flags, entry.method, entry.dosTime, entry.crc,
+				entry.compressedSize, entry.size, entry.nameBytes, source, localExtraStart, localExtraLength);
+		write(source, dataStart, (int) entry.compressedSize);
+		writeCentralHeader(entry.versionMadeBy, entry.versionNeeded, flags, entry.method, entry.dosTime, entry.crc,
+				entry.compressedSize, entry.size, entry.nameBytes, entry.extra, entry.comment,
+				entry.internalAttributes, entry.externalAttributes, offset);
+	}
+
+	/**
+	 * Add a new deflated entry to the output.
+	 */
+	public void add(String name, byte[] data) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				int len = deflater.deflate(buffer);
+				compressed.write(buffer, 0, len);
+			}
+		}
+		finally {
+			deflater.end();
+		}
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		byte[] compressedBytes = compressed.toByteArray();
+		long dosTime = toDosTime(System.currentTimeMillis());
+		long offset = written;
+		writeLocalHeader(20, FLAG_UTF8, 8, dosTime, crc.getValue(), compressedBytes.length, data.length, nameBytes,
+				null, 0, 0);
+		write(compressedBytes, 0, compressedBytes.length);
+		writeCentralHeader(20, 20, FLAG_UTF8, 8, dosTime, crc.getValue(), compressedBytes.length, data.length,
+				nameBytes, null, null, 0, 0, offset);
+	}
+
+	/**
+	 * Write the central directory and end of central directory record. The output stream is not closed.
+	 */
+	public void finish() throws IOException {
+		if (entriesWritten > 0xffff || written > 0xffffffffL) {
+			throw new ZipException("Output requires ZIP64 which is not supported");
+		}
+		long centralDirectoryOffset = written;
+		byte[] cd = centralDirectory.toByteArray();
+		write(cd, 0, cd.length);
+		byte[] eocd = new byte[22];
+		writeInt(eocd, 0, END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+		writeShort(eocd, 8, entriesWritten);
+		writeShort(eocd, 10, entriesWritten);
+		writeInt(eocd, 12, cd.length);
+		writeInt(eocd, 16, centralDirectoryOffset);
+		write(eocd, 0, eocd.length);
+		out.flush();
+	}
+
+	private void writeLocalHeader(int versionNeeded, int flags, int method, long dosTime, long crc,
+			long compressedSize, long size, byte[] nameBytes, byte[] extraSource, int extraOffset, int extraLength)
+			throws IOException {
+		byte[] header = new byte[30];
+		writeInt(header, 0, LOCAL_HEADER_SIGNATURE);
+		writeShort(header, 4, versionNeeded);
+		writeShort(header, 6, flags);
+		writeShort(header, 8, method);
+		writeInt(header, 10, dosTime);
+		writeInt(header, 14, crc);
+		writeInt(header, 18, compressedSize);
+		writeInt(header, 22, size);
+		writeShort(header, 26, nameBytes.length);
+		writeShort(header, 28, extraLength);
+		write(header, 0, header.length);
+		write(nameBytes, 0, nameBytes.length);
+		if (extraLength > 0) {
+			write(extraSource, extraOffset, extraLength);
+		}
+	}
+
+	private void writeCentralHeader(int versionMadeBy, int versionNeeded, int flags, int method, long dosTime,
+			long crc, long compressedSize, long size, byte[] nameBytes, byte[] extra, byte[] comment,
+			int internalAttributes, long externalAttributes, long localHeaderOffset) {
+		int extraLength = (extra == null ? 0 : extra.length);
+		int commentLength = (comment == null ? 0 : comment.length);
+		byte[] header = new byte[46];
+		writeInt(header, 0, CENTRAL_HEADER_SIGNATURE);
+		writeShort(header, 4, versionMadeBy);
+		writeShort(header, 6, versionNeeded);
+		writeShort(header, 8, flags);
+		writeShort(header, 10, method);
+		writeInt(header, 12, dosTime);
+		writeInt(header, 16, crc);
+		writeInt(header, 20, compressedSize);
+		writeInt(header, 24, size);
+		writeShort(header, 28, nameBytes.length);
+		writeShort(header, 30, extraLength);
+		writeShort(header, 32, commentLength);
+		writeShort(header, 36, internalAttributes);
+		writeInt(header, 38, externalAttributes);
+		writeInt(header, 42, localHeaderOffset);
+		centralDirectory.write(header, 0, header.length);
+		centralDirectory.write(nameBytes, 0, nameBytes.length);
+		if (extraLength > 0) {
+			centralDirectory.write(extra, 0, extraLength);
+		}
+		if (commentLength > 0) {
+			centralDirectory.write(comment, 0, commentLength);
+		}
+		entriesWritten++;
+	}
+
+	private void write(byte[] bytes, int offset, int length) throws IOException {
+		out.write(bytes, offset, length);
+		written += length;
+	}
+
+	private static List<Entry> readCentralDirectory(byte[] zip) throws ZipException {
+		int eocd = -1;
+		int earliest = Math.max(0, zip.length - 22 - 0xffff);
+		for (int i = zip.length - 22; i >= earliest; i--) {
+			if (readInt(zip, i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+				eocd = i;
+				break;
+			}
+		}
+		if (eocd == -1) {
+			throw new ZipException("No end of central directory record found");
+		}
+		if (readShort(zip, eocd + 4) != 0 || readShort(zip, eocd + 6) != 0) {
+			throw new ZipException("Multi-disk archives are not supported");
+		}
+		int count = readShort(zip, eocd + 10);
+		long cdOffset = readUnsignedInt(zip, eocd + 16);
+		if (count == 0xffff || cdOffset == 0xffffffffL) {
+			throw new ZipException("ZIP64 archives are not supported");
+		}
+		List<Entry> entries = new ArrayList<>(count);
+		int pos = (int) cdOffset;
+		for (int i = 0; i < count; i++) {
+			if (pos + 46 > zip.length || readInt(zip, pos) != CENTRAL_HEADER_SIGNATURE) {
+				throw new ZipException("Bad central directory header at offset " + pos);
+			}
+			Entry entry = new Entry();
+			entry.versionMadeBy = readShort(zip, pos + 4);
+			entry.versionNeeded = readShort(zip, pos + 6);
+			entry.flags = readShort(zip, pos + 8);
+			entry.method = readShort(zip, pos + 10);
+			entry.dosTime = readUnsignedInt(zip, pos + 12);
+			entry.crc = readUnsignedInt(zip, pos + 16);
+			entry.compressedSize = readUnsignedInt(zip, pos + 20);
+			entry.size = readUnsignedInt(zip, pos + 24);
+			int nameLength = readShort(zip, pos + 28);
+			int extraLength = readShort(zip, pos + 30);
+			int commentLength = readShort(zip, pos + 32);
+			entry.internalAttributes = readShort(zip, pos + 36);
+			entry.externalAttributes = readUnsignedInt(zip, pos + 38);
+			long localHeaderOffset = readUnsignedInt(zip, pos + 42);
+			if (entry.compressedSize == 0xffffffffL || entry.size == 0xffffffffL
+					|| localHeaderOffset == 0xffffffffL) {
+				throw new ZipException("ZIP64 entries are not supported");
+			}
+			entry.localHeaderOffset = (int) localHeaderOffset;
+			int nameStart = pos + 46;
+			entry.nameBytes = slice(zip, nameStart, nameLength);
+			entry.extra = (extraLength == 0 ? null : slice(zip, nameStart + nameLength, extraLength));
+			entry.comment = (commentLength == 0 ? null : slice(zip, nameStart + nameLength + extraLength,
+					commentLength));
+			entry.name = new String(entry.nameBytes, (entry.flags & FLAG_UTF8) != 0 ? StandardCharsets.UTF_8
+					: StandardCharsets.ISO_8859_1);
+			entries.add(entry);
+			pos = nameStart + nameLength + extraLength + commentLength;
+		}
+		return entries;
+	}
+
+	private static byte[] slice(byte[] bytes, int offset, int length) {
+		byte[] result = new byte[length];
+		System.arraycopy(bytes, offset, result, 0, length);
+		return result;
+	}
+
+	private static int readShort(byte[] b, int pos) {
+		return (b[pos] & 0xff) | ((b[pos + 1] & 0xff) << 8);
+	}
+
+	private static int readInt(byte[] b, int pos) {
+		return (int) readUnsignedInt(b, pos);
+	}
+
+	private static long readUnsignedInt(byte[] b, int pos) {
+		return (readShort(b, pos) | ((long) readShort(b, pos + 2) << 16)) & 0xffffffffL;
+	}
+
+	private static void writeShort(byte[] b, int pos, int value) {
+		b[pos] = (byte) value;
+		b[pos + 1] = (byte) (value >> 8);
+	}
+
+	private static void writeInt(byte[] b, int pos, long value) {
+		writeShort(b, pos, (int) (value & 0xffff));
+		writeShort(b, pos + 2, (int) ((value >> 16) & 0xffff));
+	}
+
+	private static long toDosTime(long time) {
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(time);
+		int year = c.get(Calendar.YEAR);
+		if (year < 1980) {
+			return (1 << 21) | (1 << 16);
+		}
+		return ((year - 1980) << 25) | ((c.get(Calendar.MONTH) + 1) << 21) | (c.get(Calendar.DAY_OF_MONTH) << 16)
+				| (c.get(Calendar.HOUR_OF_DAY) << 11) | (c.get(Calendar.MINUTE) << 5) | (c.get(Calendar.SECOND) >> 1);
+	}
+
+	/**
+	 * An entry as described by the central directory of the source archive.
+	 */
+	public static class Entry {
+
+		private String name;
+
+		private byte[] nameBytes;
+
+		private int versionMadeBy;
+
+		private int versionNeeded;
+
+		private int flags;
+
+		private int method;
+
+		private long dosTime;
+
+		private long crc;
+
+		private long compressedSize;
+
+		private long size;
+
+		private byte[] extra;
+
+		private byte[] comment;
+
+		private int internalAttributes;
+
+		private long externalAttributes;
+
+		private int localHeaderOffset;
+
+		public String getName() {
+			return name;
+		}
+
+		public long getCrc() {
+			return crc;
+		}
+
+		public long getCompressedSize() {
+			return compressedSize;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		@Override
+		public String toString() {
+			return "Entry: " + name;
+		}
+	}
+}
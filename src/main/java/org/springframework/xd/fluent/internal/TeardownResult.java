@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.fluent.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * What happened to each stream or module during a bulk teardown (see {@link XDRestClient#destroyStreams} and
+ * {@link XDRestClient#deleteModules}).
+ *
+ * @author aclement
+ */
+public class TeardownResult {
+
+	public enum Outcome {
+		/** Removed, and confirmed gone from the server */
+		REMOVED,
+		/** Already gone when the removal was attempted */
+		NOT_FOUND,
+		/** Removal was requested (or not even attempted) but the resource was not confirmed gone in time */
+		TIMED_OUT,
+		/** The server rejected the removal */
+		FAILED;
+	}
+
+	private final List<Entry> entries;
+
+	TeardownResult(List<Entry> entries) {
+		this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+	}
+
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return how many resources had the specified outcome
+	 */
+	public int count(Outcome outcome) {
+		int count = 0;
+		for (Entry entry : entries) {
+			if (entry.getOutcome() == outcome) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return true if every resource is confirmed to no longer be on the server
+	 */
+	public boolean isSuccessful() {
+		return count(Outcome.REMOVED) + count(Outcome.NOT_FOUND) == entries.size();
+	}
+
+	@Override
+	public String toString() {
+		return "TeardownResult(removed=" + count(Outcome.REMOVED) + ",notFound=" + count(Outcome.NOT_FOUND)
+				+ ",timedOut=" + count(Outcome.TIMED_OUT) + ",failed=" + count(Outcome.FAILED) + ")";
+	}
+
+	public static class Entry {
+
+		private final String type;
+
+		private final String name;
+
+		private final Outcome outcome;
+
+		private final Throwable error;
+
+		Entry(String type, String name, Outcome outcome, Throwable error) {
+			this.type = type;
+			this.name = name;
+			this.outcome = outcome;
+			this.error = error;
+		}
+
+		/**
+		 * @return 'stream' or the module type (e.g. 'processor')
+		 */
+		public String getType() {
+			return type;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Outcome getOutcome() {
+			return outcome;
+		}
+
+		/**
+		 * @return the reason for a FAILED outcome, otherwise null
+		 */
+		public Throwable getError() {
+			return error;
+		}
+
+		@Override
+		public String toString() {
+			return type + " " + name + ": " + outcome + (error == null ? "" : " (" + error.getMessage() + ")");
+		}
+	}
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.fluent.internal;
+
+/**
+ * Determines how often the server is checked while waiting for something to happen (a stream being deployed, a
+ * module appearing, etc) and how long to keep trying.
+ *
+ * @author aclement
+ */
+public interface WaitStrategy {
+
+	/**
+	 * @param attempt the number of checks made so far (starting at 1 after the first check)
+	 * @return how long to wait, in milliseconds, before making the next check
+	 */
+	long nextDelay(int attempt);
+
+	/**
+	 * @return how long, in milliseconds, to keep checking before giving up
+	 */
+	long getTimeout();
+}
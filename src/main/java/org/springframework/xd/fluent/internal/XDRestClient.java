@@ -16,18 +16,36 @@
 
 package org.springframework.xd.fluent.internal;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.FileSystemResource;
-import org.springframework.hateoas.PagedResources;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
-import org.springframework.xd.dsl.domain.Util;
 import org.springframework.xd.rest.client.impl.SpringXDException;
 import org.springframework.xd.rest.client.impl.SpringXDTemplate;
 import org.springframework.xd.rest.domain.ModuleDefinitionResource;
@@ -36,47 +54,135 @@ import org.springframework.xd.rest.domain.StreamDefinitionResource;
 
 
 /**
- * Helper methods for calling the XD REST API.
+ * Helper methods for calling the XD REST API. Each client talks to one admin server, {@link #getInstance()} returns
+ * a shared client for the default server and {@link #builder()} can create clients for any others.
  *
  * @author aclement
  */
 public class XDRestClient {
 
-	private static String xdUrl = null;
+	private static volatile ScheduledExecutorService scheduler;
+
+	private final String xdUrl;
+
+	private final HttpTransport transport;
+
+	private final SpringXDTemplate xdTemplate;
+
+	private final RestTemplate restTemplate;
+
+	private final RestTemplate uploadTemplate;
+
+	private volatile boolean streamProbeSupported = true;
+
+	private volatile WaitStrategy waitStrategy;
+
+	private volatile int teardownParallelism;
 
-	private static SpringXDTemplate xdTemplate = null;
+	private volatile long teardownTimeout;
 
-	private static RestTemplate restTemplate = new RestTemplate();
+	private final ListingCache<Collection<StreamDefinitionResource>> streamListing;
 
-	static {
+	private final ListingCache<Collection<ModuleDefinitionResource>> moduleListing;
+
+	private final DeploymentManifest deploymentManifest;
+
+	// Runs the checks of asynchronous waits, so that a slow server only holds up waits on that server
+	private final ExecutorService checkExecutor;
+
+	private XDRestClient(Builder builder) {
+		this.xdUrl = builder.xdUrl.endsWith("/") ? builder.xdUrl : builder.xdUrl + "/";
+		this.transport = (builder.transport != null ? builder.transport : DefaultTransport.INSTANCE);
+		ClientHttpRequestFactory requestFactory = transport.createRequestFactory(true);
 		try {
-			xdUrl = System.getProperty("xd.api", "http://localhost:9393");
-			xdTemplate = new SpringXDTemplate(new URI(xdUrl));
+			this.xdTemplate = new SpringXDTemplate(requestFactory, new URI(this.xdUrl));
 		}
-		catch (Exception e) {
-			e.printStackTrace();
+		catch (URISyntaxException e) {
+			throw new IllegalArgumentException("Invalid admin server url '" + builder.xdUrl + "'", e);
 		}
+		this.restTemplate = new RestTemplate(requestFactory);
+		this.uploadTemplate = new RestTemplate(transport.createRequestFactory(false));
+		this.streamListing = new ListingCache<>(() -> xdTemplate.streamOperations().list().getContent(),
+				builder.listingCacheTtl);
+		this.moduleListing = new ListingCache<>(() -> xdTemplate.moduleOperations().list(null).getContent(),
+				builder.listingCacheTtl);
+		this.deploymentManifest = DeploymentManifest.forServer(this.xdUrl);
+		this.waitStrategy = builder.waitStrategy;
+		this.teardownParallelism = builder.teardownParallelism;
+		this.teardownTimeout = builder.teardownTimeout;
+		this.checkExecutor = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "xd-rest-client-wait");
+			t.setDaemon(true);
+			return t;
+		});
 	}
 
-	private static XDRestClient instance;
-
-	private XDRestClient() {
+	/**
+	 * @return a builder for a client, initially configured from the system properties (so it targets the admin server
+	 *         specified by <tt>xd.api</tt>)
+	 */
+	public static Builder builder() {
+		return new Builder();
 	}
 
+	/**
+	 * @return the client for the admin server specified by the <tt>xd.api</tt> system property, shared by the whole
+	 *         JVM. Use {@link #builder()} to talk to other servers.
+	 */
 	public static XDRestClient getInstance() {
-		if (instance == null) {
-			instance = new XDRestClient();
-		}
-		return instance;
+		return DefaultInstance.INSTANCE;
+	}
+
+	// Holders so that the shared objects are created on first use, safely with respect to concurrent first use
+
+	private static class DefaultInstance {
+
+		static final XDRestClient INSTANCE = builder().build();
+	}
+
+	private static class DefaultTransport {
+
+		static final HttpTransport INSTANCE = new HttpTransport();
+	}
+
+	public String getXdUrl() {
+		return xdUrl;
+	}
+
+	public HttpTransport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * @return the local record of what has been deployed to this server, streams destroyed through this client are
+	 *         removed from it
+	 */
+	public DeploymentManifest getDeploymentManifest() {
+		return deploymentManifest;
+	}
+
+	/**
+	 * Set how long, in milliseconds, stream and module listings may be reused before being fetched from the server
+	 * again. Concurrent callers that need a listing share a single request. Zero (the default) disables this and every
+	 * call fetches a fresh listing. Operations made through this client that change the server invalidate the cached
+	 * listings.
+	 */
+	public void setListingCacheTtl(long listingCacheTtl) {
+		streamListing.setTimeToLive(listingCacheTtl);
+		moduleListing.setTimeToLive(listingCacheTtl);
+	}
+
+	public long getListingCacheTtl() {
+		return streamListing.getTimeToLive();
 	}
 
 	public Collection<StreamDefinitionResource> listStreams() {
-		return xdTemplate.streamOperations().list().getContent();
+		return streamListing.get();
 	}
 
 	public Collection<StreamDefinitionResource> listStreams(StreamDefinitionResourceFilter filter) {
 		List<StreamDefinitionResource> results = new ArrayList<>();
-		for (StreamDefinitionResource sdr : xdTemplate.streamOperations().list().getContent()) {
+		for (StreamDefinitionResource sdr : listStreams()) {
 			if (filter.accept(sdr)) {
 				results.add(sdr);
 			}
@@ -85,15 +191,13 @@ public class XDRestClient {
 	}
 
 	public Collection<ModuleDefinitionResource> listModules() {
-		PagedResources<ModuleDefinitionResource> o = xdTemplate.moduleOperations().list(null);
-		return o.getContent();
+		return moduleListing.get();
 	}
 
 
 	public Collection<ModuleDefinitionResource> listModules(ModuleFilter moduleFilter) {
-		PagedResources<ModuleDefinitionResource> o = xdTemplate.moduleOperations().list(null);
 		List<ModuleDefinitionResource> results = new ArrayList<>();
-		for (ModuleDefinitionResource moduleDefinitionResource : o.getContent()) {
+		for (ModuleDefinitionResource moduleDefinitionResource : listModules()) {
 			//			System.out.println("Checking '" + moduleDefinitionResource.getName() + "' against filter");
 			if (moduleFilter.accept(moduleDefinitionResource)) {
 				results.add(moduleDefinitionResource);
@@ -110,7 +214,7 @@ public class XDRestClient {
 		boolean retVal = false;
 		try {
 			System.out.println("Destroying stream '" + streamName + "'");
-			xdTemplate.streamOperations().destroy(streamName);
+			destroy(streamName);
 			retVal = waitOnStreamDisappearance(streamName);
 		}
 		catch (SpringXDException e) {
@@ -129,40 +233,29 @@ public class XDRestClient {
 		return retVal;
 	}
 
+	/**
+	 * Destroy all the streams whose names start with 'code'.
+	 *
+	 * @return the number of streams confirmed destroyed
+	 */
 	public int destroyCodeStreams() {
 		System.out.println("destroying old code streams");
-		int count = 0;
-		Collection<StreamDefinitionResource> streams = listStreams();
-		for (StreamDefinitionResource resource : streams) {
-			if (resource.getName().startsWith("code")) {
-				System.out.println("  destroying stream: " + resource.getName());
-				xdTemplate.streamOperations().destroy(resource.getName());
-				count++;
-			}
+		List<String> streamNames = new ArrayList<>();
+		for (StreamDefinitionResource resource : listStreams(sdr -> sdr.getName().startsWith("code"))) {
+			streamNames.add(resource.getName());
 		}
-		if (count != 0) {
-			// TODO wait a moment to ensure it is done, guess we could list again to verify gone
-			try {
-				Thread.sleep(1000);
-			}
-			catch (Exception e) {
-			}
-		}
-		return count;
+		return destroyStreams(streamNames).count(TeardownResult.Outcome.REMOVED);
 	}
 
+	/**
+	 * Delete all the modules whose names start with 'code'.
+	 *
+	 * @return the number of modules confirmed deleted
+	 */
 	public int deleteCodeModules() {
 		System.out.println("deleting old code modules");
-		int count = 0;
-		Collection<ModuleDefinitionResource> modules = listModules();
-		for (ModuleDefinitionResource mdr : modules) {
-			if (mdr.getName().startsWith("code")) {
-				System.out.println("  deleting module: " + mdr.getName());
-				xdTemplate.moduleOperations().deleteModule(mdr.getName(), RESTModuleType.valueOf(mdr.getType()));
-				count++;
-			}
-		}
-		return count;
+		return deleteModules(listModules(mdr -> mdr.getName().startsWith("code")))
+				.count(TeardownResult.Outcome.REMOVED);
 	}
 
 	/**
@@ -173,27 +266,178 @@ public class XDRestClient {
 	 * @return the number of code modules deleted
 	 */
 	public int deleteCodeModulesForStream(String streamName) {
-		int count = 0;
-		Collection<ModuleDefinitionResource> modules =
-				listModules(mdr -> mdr.getName().startsWith(streamName + "-code-"));
-		for (ModuleDefinitionResource mdr : modules) {
-			System.out.println("Deleting code module '" + mdr.getName() + "'");
-			xdTemplate.moduleOperations().deleteModule(mdr.getName(), RESTModuleType.valueOf(mdr.getType()));
-			count++;
+		return deleteCodeModulesForStream(streamName, Collections.emptySet());
+	}
+
+	/**
+	 * Delete the code modules for a stream, apart from the named ones.
+	 *
+	 * @param streamName the name of the stream for which modules must be deleted
+	 * @param keep the names of modules that must not be deleted
+	 * @return the number of code modules deleted
+	 */
+	public int deleteCodeModulesForStream(String streamName, Set<String> keep) {
+		return deleteModules(
+				listModules(mdr -> mdr.getName().startsWith(streamName + "-code-") && !keep.contains(mdr.getName())))
+				.count(TeardownResult.Outcome.REMOVED);
+	}
+
+	/**
+	 * Set how many streams or modules a bulk teardown removes at the same time.
+	 */
+	public void setTeardownParallelism(int teardownParallelism) {
+		if (teardownParallelism < 1) {
+			throw new IllegalArgumentException("Teardown parallelism must be at least 1 but was "
+					+ teardownParallelism);
+		}
+		this.teardownParallelism = teardownParallelism;
+	}
+
+	/**
+	 * Set how long, in milliseconds, a bulk teardown may take in total. Resources not confirmed gone by then are
+	 * reported as timed out.
+	 */
+	public void setTeardownTimeout(long teardownTimeout) {
+		this.teardownTimeout = teardownTimeout;
+	}
+
+	/**
+	 * Destroy the named streams, several at once, and wait until they are all confirmed gone from the server (or the
+	 * teardown timeout is reached). Unlike {@link #destroyStream(String)} this does not delete any related code
+	 * modules.
+	 *
+	 * @return what happened to each stream
+	 */
+	public TeardownResult destroyStreams(Collection<String> streamNames) {
+		return teardown(streamNames, name -> "stream", name -> name, name -> {
+			System.out.println("  destroying stream: " + name);
+			destroy(name);
+		}, name -> checkStreamDoesNotExist(name));
+	}
+
+	/**
+	 * Delete the modules, several at once, and wait until they are all confirmed gone from the server (or the
+	 * teardown timeout is reached).
+	 *
+	 * @return what happened to each module
+	 */
+	public TeardownResult deleteModules(Collection<ModuleDefinitionResource> modules) {
+		return teardown(modules, mdr -> mdr.getType(), mdr -> mdr.getName(), mdr -> {
+			System.out.println("  deleting module: " + mdr.getName());
+			deleteModule(mdr.getName(), mdr.getType());
+		}, mdr -> checkModuleDoesNotExist(mdr.getType(), mdr.getName()));
+	}
+
+	/**
+	 * Remove the resources using a bounded pool of threads, then wait for them all to disappear. Every removal and
+	 * wait shares a single deadline so the whole teardown is bounded by the teardown timeout, however many resources
+	 * there are.
+	 */
+	private <T> TeardownResult teardown(Collection<T> resources, Function<T, String> typeOf,
+			Function<T, String> nameOf, Consumer<T> remover, Predicate<T> isGone) {
+		if (resources.isEmpty()) {
+			return new TeardownResult(Collections.emptyList());
+		}
+		long deadline = System.currentTimeMillis() + teardownTimeout;
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(teardownParallelism, resources.size()),
+				r -> {
+					Thread t = new Thread(r, "xd-rest-client-teardown");
+					t.setDaemon(true);
+					return t;
+				});
+		try {
+			List<CompletableFuture<TeardownResult.Entry>> removals = new ArrayList<>();
+			for (T resource : resources) {
+				String name = nameOf.apply(resource);
+				String resourceType = typeOf.apply(resource);
+				removals.add(CompletableFuture.supplyAsync(() -> {
+					if (System.currentTimeMillis() > deadline) {
+						return TeardownResult.Outcome.TIMED_OUT;
+					}
+					try {
+						remover.accept(resource);
+						return null;
+					}
+					catch (RuntimeException re) {
+						try {
+							if (isGone.test(resource)) {
+								return TeardownResult.Outcome.NOT_FOUND;
+							}
+						}
+						catch (RuntimeException probeFailure) {
+							re.addSuppressed(probeFailure);
+						}
+						throw re;
+					}
+				}, executor).thenCompose(outcome -> {
+					if (outcome != null) {
+						return CompletableFuture.completedFuture(outcome);
+					}
+					// Confirmed on the teardown threads, so at most teardownParallelism checks run at once
+					return await(() -> isGone.test(resource), waitStrategy, deadline, executor).thenApply(
+							gone -> gone ? TeardownResult.Outcome.REMOVED : TeardownResult.Outcome.TIMED_OUT);
+				}).handle((outcome, error) -> {
+					if (error != null) {
+						Throwable cause = (error instanceof CompletionException ? error.getCause() : error);
+						return new TeardownResult.Entry(resourceType, name, TeardownResult.Outcome.FAILED, cause);
+					}
+					return new TeardownResult.Entry(resourceType, name, outcome, null);
+				}));
+			}
+			List<TeardownResult.Entry> entries = new ArrayList<>();
+			for (CompletableFuture<TeardownResult.Entry> removal : removals) {
+				entries.add(removal.join());
+			}
+			TeardownResult result = new TeardownResult(entries);
+			if (!result.isSuccessful()) {
+				for (TeardownResult.Entry entry : entries) {
+					if (entry.getOutcome() == TeardownResult.Outcome.TIMED_OUT
+							|| entry.getOutcome() == TeardownResult.Outcome.FAILED) {
+						System.out.println("  failed to remove " + entry);
+					}
+				}
+			}
+			return result;
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void destroy(String streamName) {
+		try {
+			xdTemplate.streamOperations().destroy(streamName);
+		}
+		finally {
+			streamListing.invalidate();
+			deploymentManifest.remove(streamName);
+		}
+	}
+
+	private void deleteModule(String moduleName, String type) {
+		try {
+			xdTemplate.moduleOperations().deleteModule(moduleName, RESTModuleType.valueOf(type));
+		}
+		finally {
+			moduleListing.invalidate();
 		}
-		return count;
 	}
 
 	public boolean uploadModule(String moduleName, byte[] moduleContents, String type) {
+		return uploadModule(moduleName, moduleContents, type, true);
+	}
+
+	/**
+	 * @param waitForModule if false the method returns as soon as the upload request completes, without checking the
+	 *            module is available, so that the caller can wait on several modules at once
+	 */
+	public boolean uploadModule(String moduleName, byte[] moduleContents, String type, boolean waitForModule) {
 		try {
-			// TODO why on earth can't I use a ByteArrayResource on that API call? (returns server 500)
-			File f = new File(System.getProperty("java.io.tmpdir") + File.separator
-					+ "code.jar");
-			System.out.println(f.getPath());
-			FileOutputStream fos = new FileOutputStream(f);
-			fos.write(moduleContents);
-			fos.close();
-			return moduleUpload(moduleName, f.toString(), type);
+			postModule(moduleName, type, new ModuleJarResource(moduleContents, moduleName + ".jar"));
+			if (waitForModule) {
+				waitOnModuleExistence(type, moduleName);
+			}
+			return true;
 		}
 		catch (Exception e) {
 			e.printStackTrace();
@@ -203,9 +447,7 @@ public class XDRestClient {
 
 	public boolean moduleUpload(String moduleName, String modulePath, String type) {
 		try {
-			restTemplate.postForObject(xdUrl + "modules/{type}/{moduleName}", new FileSystemResource(new File(
-					modulePath)),
-					String.class, type, moduleName);
+			postModule(moduleName, type, new FileSystemResource(modulePath));
 			waitOnModuleExistence(type, moduleName);
 			return true;
 		}
@@ -215,13 +457,33 @@ public class XDRestClient {
 		}
 	}
 
+	/**
+	 * Post the module jar, from memory or from a file. The request factory used for uploads does not buffer the body,
+	 * so the jar is written straight to the server.
+	 */
+	private void postModule(String moduleName, String type, Resource module) {
+		moduleListing.invalidate();
+		try {
+			uploadTemplate.postForObject(xdUrl + "modules/{type}/{moduleName}", module, String.class, type,
+					moduleName);
+		}
+		finally {
+			moduleListing.invalidate();
+		}
+	}
+
 	public boolean createStream(String name, String definition, boolean deploy) {
 		System.out.println("Creating stream: '" + name + "=" + definition + "' (deploy=" + deploy + ")");
-		xdTemplate.streamOperations().createStream(name, definition, deploy);
+		try {
+			xdTemplate.streamOperations().createStream(name, definition, deploy);
+		}
+		finally {
+			streamListing.invalidate();
+		}
 		return waitOnStreamExistence(name, deploy ? StreamState.DEPLOYED : null);
 	}
 
-	enum StreamState {
+	public enum StreamState {
 		DEPLOYED, DEPLOYING;
 	}
 
@@ -234,6 +496,10 @@ public class XDRestClient {
 	 * @return true if the stream exists and is the desired state
 	 */
 	public boolean checkStreamExists(String streamName, StreamState desiredState) {
+		Boolean exists = probeStream(streamName, desiredState);
+		if (exists != null) {
+			return exists;
+		}
 		Collection<StreamDefinitionResource> streams = listStreams();
 		for (StreamDefinitionResource stream : streams) {
 			if (stream.getName().equals(streamName)
@@ -244,6 +510,43 @@ public class XDRestClient {
 		return false;
 	}
 
+	/**
+	 * Ask the server about a single stream rather than listing them all.
+	 *
+	 * @return whether the stream exists in the desired state, or null if that could not be determined this way (in
+	 *         which case the caller should fall back to listing the streams)
+	 */
+	@SuppressWarnings("unchecked")
+	private Boolean probeStream(String streamName, StreamState desiredState) {
+		if (!streamProbeSupported) {
+			return null;
+		}
+		try {
+			Map<String, Object> stream = restTemplate.getForObject(xdUrl + "streams/definitions/{name}", Map.class,
+					streamName);
+			if (stream == null || !streamName.equals(stream.get("name"))) {
+				return null;
+			}
+			if (desiredState == null) {
+				return true;
+			}
+			Object status = stream.get("status");
+			return (status == null ? null : status.toString().equalsIgnoreCase(desiredState.toString()));
+		}
+		catch (HttpClientErrorException hcee) {
+			if (hcee.getStatusCode() == HttpStatus.NOT_FOUND) {
+				return false;
+			}
+			System.out.println("Stream status probe not supported by server (" + hcee.getMessage()
+					+ "), will list streams instead");
+			streamProbeSupported = false;
+			return null;
+		}
+		catch (RestClientException rce) {
+			return null;
+		}
+	}
+
 	/**
 	 * @return true if the module exists
 	 */
@@ -252,16 +555,50 @@ public class XDRestClient {
 			xdTemplate.moduleOperations().info(moduleName, RESTModuleType.valueOf(type));
 			return true;
 		}
+		catch (SpringXDException e) {
+			// No such module
+			return false;
+		}
 		catch (Exception e) {
 			e.printStackTrace();
 			return false;
 		}
 	}
 
+	/**
+	 * Unlike {@link #checkModuleExists(String, String)} a failure to ask the server is not taken to mean the module
+	 * is missing, only the server saying it cannot find the module is.
+	 *
+	 * @return true if the module does not exist
+	 * @throws RuntimeException if the server could not be asked
+	 */
+	public boolean checkModuleDoesNotExist(String type, String moduleName) {
+		try {
+			xdTemplate.moduleOperations().info(moduleName, RESTModuleType.valueOf(type));
+			return false;
+		}
+		catch (SpringXDException e) {
+			if (e.getMessage() != null && e.getMessage().startsWith("Could not find module ")) {
+				return true;
+			}
+			throw e;
+		}
+		catch (HttpClientErrorException hcee) {
+			if (hcee.getStatusCode() == HttpStatus.NOT_FOUND) {
+				return true;
+			}
+			throw hcee;
+		}
+	}
+
 	/**
 	 * @return true if the stream does not exist
 	 */
 	public boolean checkStreamDoesNotExist(String streamName) {
+		Boolean exists = probeStream(streamName, null);
+		if (exists != null) {
+			return !exists;
+		}
 		Collection<StreamDefinitionResource> streams = listStreams();
 		for (StreamDefinitionResource stream : streams) {
 			if (stream.getName().equals(streamName)) {
@@ -272,52 +609,287 @@ public class XDRestClient {
 	}
 
 	/**
-	 * Waits up to 5 seconds for a stream to appear as available on the server.
+	 * Set the strategy that determines how frequently, and for how long, the server is checked when waiting for
+	 * streams and modules.
+	 */
+	public void setWaitStrategy(WaitStrategy waitStrategy) {
+		this.waitStrategy = waitStrategy;
+	}
+
+	public WaitStrategy getWaitStrategy() {
+		return this.waitStrategy;
+	}
+
+	/**
+	 * Waits for a stream to appear as available on the server.
 	 *
 	 * @param streamName the name of the stream to wait for
 	 * @param desiredState if non null wait for the named stream to be in this state
 	 */
 	private boolean waitOnStreamExistence(String streamName, StreamState desiredState) {
-		long time = System.currentTimeMillis();
-		while ((System.currentTimeMillis() - time) < 5000) {
-			boolean exists = checkStreamExists(streamName, desiredState);
-			if (exists) {
+		return waitFor(() -> checkStreamExists(streamName, desiredState));
+	}
+
+	/**
+	 * Waits for a module to appear as available on the server.
+	 */
+	public boolean waitOnModuleExistence(String type, String moduleName) {
+		return waitFor(() -> checkModuleExists(type, moduleName));
+	}
+
+	/**
+	 * Waits for a stream to disappear from the server.
+	 */
+	private boolean waitOnStreamDisappearance(String streamName) {
+		return waitFor(() -> checkStreamDoesNotExist(streamName));
+	}
+
+	public CompletableFuture<Boolean> awaitStreamExistence(String streamName, StreamState desiredState) {
+		return await(() -> checkStreamExists(streamName, desiredState));
+	}
+
+	public CompletableFuture<Boolean> awaitModuleExistence(String type, String moduleName) {
+		return await(() -> checkModuleExists(type, moduleName));
+	}
+
+	public CompletableFuture<Boolean> awaitStreamDisappearance(String streamName) {
+		return await(() -> checkStreamDoesNotExist(streamName));
+	}
+
+	/**
+	 * Check the condition until it is true or the wait strategy gives up, blocking the calling thread.
+	 *
+	 * @return true if the condition became true
+	 */
+	public boolean waitFor(BooleanSupplier condition) {
+		WaitStrategy strategy = this.waitStrategy;
+		long deadline = System.currentTimeMillis() + strategy.getTimeout();
+		int attempt = 0;
+		while (true) {
+			if (condition.getAsBoolean()) {
 				return true;
 			}
-			Util.sleep(200);
+			attempt++;
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			try {
+				Thread.sleep(Math.min(strategy.nextDelay(attempt), remaining));
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
 		}
-		return false;
 	}
 
+	/**
+	 * Check the condition until it is true or the wait strategy gives up, without blocking the calling thread. This
+	 * allows a caller to wait on many resources at once.
+	 *
+	 * @return a future that completes with true if the condition became true, or false if it did not in time
+	 */
+	public CompletableFuture<Boolean> await(BooleanSupplier condition) {
+		WaitStrategy strategy = this.waitStrategy;
+		return await(condition, strategy, System.currentTimeMillis() + strategy.getTimeout(), checkExecutor);
+	}
+
+	private CompletableFuture<Boolean> await(BooleanSupplier condition, WaitStrategy strategy, long deadline,
+			Executor executor) {
+		CompletableFuture<Boolean> result = new CompletableFuture<>();
+		new Check(condition, strategy, deadline, executor, result).run();
+		return result;
+	}
 
 	/**
-	 * Waits up to 5 seconds for a module to appear as available on the server.
+	 * @return the timer shared by all clients. It only hands each check to the executor of its wait when it is due,
+	 *         the check itself never runs on the timer thread.
 	 */
-	public boolean waitOnModuleExistence(String type, String moduleName) {
-		long time = System.currentTimeMillis();
-		while ((System.currentTimeMillis() - time) < 5000) {
-			boolean exists = checkModuleExists(type, moduleName);
-			if (exists) {
-				return true;
+
+	private static ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			synchronized (XDRestClient.class) {
+				if (scheduler == null) {
+					ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+						Thread t = new Thread(r, "xd-rest-client-wait-timer");
+						t.setDaemon(true);
+						return t;
+					});
+					executor.setRemoveOnCancelPolicy(true);
+					scheduler = executor;
+				}
 			}
-			Util.sleep(200);
 		}
-		return false;
+		return scheduler;
 	}
 
 	/**
-	 * Waits up to 5 seconds for a stream to disappear from the server.
+	 * One check of an asynchronous wait, reschedules itself until the condition is met or time runs out. Checks run on
+	 * the executor of the wait, the shared scheduler only times the delay between them.
 	 */
-	private boolean waitOnStreamDisappearance(String streamName) {
-		long time = System.currentTimeMillis();
-		while ((System.currentTimeMillis() - time) < 5000) {
-			boolean exists = checkStreamExists(streamName, null);
-			if (!exists) {
-				return true;
+	private static class Check implements Runnable {
+
+		private final BooleanSupplier condition;
+
+		private final WaitStrategy strategy;
+
+		private final long deadline;
+
+		private final Executor executor;
+
+		private final CompletableFuture<Boolean> result;
+
+		private int attempt;
+
+		Check(BooleanSupplier condition, WaitStrategy strategy, long deadline, Executor executor,
+				CompletableFuture<Boolean> result) {
+			this.condition = condition;
+			this.strategy = strategy;
+			this.deadline = deadline;
+			this.executor = executor;
+			this.result = result;
+		}
+
+		@Override
+		public void run() {
+			if (result.isDone()) {
+				// cancelled by the caller
+				return;
 			}
-			Util.sleep(200);
+			if (attempt == 0) {
+				// Make the first check off the caller's thread too
+				attempt++;
+				submit();
+				return;
+			}
+			try {
+				if (condition.getAsBoolean()) {
+					result.complete(true);
+					return;
+				}
+			}
+			catch (RuntimeException re) {
+				result.completeExceptionally(re);
+				return;
+			}
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				result.complete(false);
+				return;
+			}
+			getScheduler().schedule(this::submit, Math.min(strategy.nextDelay(attempt++), remaining),
+					TimeUnit.MILLISECONDS);
+		}
+
+		private void submit() {
+			try {
+				executor.execute(this);
+			}
+			catch (RejectedExecutionException ree) {
+				result.completeExceptionally(ree);
+			}
+		}
+	}
+
+	/**
+	 * A module jar held in memory. It has a file name so that it is posted with the same headers as a file resource.
+	 */
+	private static class ModuleJarResource extends ByteArrayResource {
+
+		private final String filename;
+
+		ModuleJarResource(byte[] contents, String filename) {
+			super(contents);
+			this.filename = filename;
+		}
+
+		@Override
+		public String getFilename() {
+			return filename;
+		}
+	}
+
+	/**
+	 * Builds clients. Clients for different admin servers can be used at the same time, and a single client can be
+	 * used from multiple threads.
+	 */
+	public static class Builder {
+
+		private String xdUrl = System.getProperty("xd.api", "http://localhost:9393");
+
+		private HttpTransport transport;
+
+		private long listingCacheTtl = Long.getLong("xd.dsl.listingCacheTtl", 0);
+
+		private WaitStrategy waitStrategy = new BackoffWaitStrategy();
+
+		private int teardownParallelism = Integer.getInteger("xd.dsl.teardown.parallelism", 8);
+
+		private long teardownTimeout = Long.getLong("xd.dsl.teardown.timeout", 60000);
+
+		Builder() {
+		}
+
+		/**
+		 * @param xdUrl the admin server to talk to, e.g. http://localhost:9393
+		 */
+		public Builder url(String xdUrl) {
+			this.xdUrl = xdUrl;
+			return this;
+		}
+
+		/**
+		 * @param transport the connections to use, may be shared with other clients. If not set, a transport
+		 *            configured by the system properties and shared by all such clients is used.
+		 */
+		public Builder transport(HttpTransport transport) {
+			this.transport = transport;
+			return this;
+		}
+
+		/**
+		 * @see XDRestClient#setListingCacheTtl(long)
+		 */
+		public Builder listingCacheTtl(long listingCacheTtl) {
+			this.listingCacheTtl = listingCacheTtl;
+			return this;
+		}
+
+		/**
+		 * @see XDRestClient#setWaitStrategy(WaitStrategy)
+		 */
+		public Builder waitStrategy(WaitStrategy waitStrategy) {
+			this.waitStrategy = waitStrategy;
+			return this;
+		}
+
+		/**
+		 * @see XDRestClient#setTeardownParallelism(int)
+		 */
+		public Builder teardownParallelism(int teardownParallelism) {
+			if (teardownParallelism < 1) {
+				throw new IllegalArgumentException("Teardown parallelism must be at least 1 but was "
+						+ teardownParallelism);
+			}
+			this.teardownParallelism = teardownParallelism;
+			return this;
+		}
+
+		/**
+		 * @see XDRestClient#setTeardownTimeout(long)
+		 */
+		public Builder teardownTimeout(long teardownTimeout) {
+			this.teardownTimeout = teardownTimeout;
+			return this;
+		}
+
+		public XDRestClient build() {
+			if (xdUrl == null) {
+				throw new IllegalStateException("No admin server url specified");
+			}
+			return new XDRestClient(this);
 		}
-		return false;
 	}
 
 	@FunctionalInterface
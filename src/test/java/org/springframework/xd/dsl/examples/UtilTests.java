@@ -17,9 +17,11 @@
 package org.springframework.xd.dsl.examples;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import org.junit.Test;
 
+import org.springframework.xd.dsl.domain.SerializableFunction;
 import org.springframework.xd.dsl.domain.Util;
 
 
@@ -44,4 +46,52 @@ public class UtilTests {
 		clazz = Util.getLambdaParameterType((String it) -> 35);
 		assertEquals(String.class, clazz);
 	}
+
+	@Test
+	public void methodReferenceTypes() {
+		// Static, returning a primitive
+		SerializableFunction<String, Integer> parse = Integer::parseInt;
+		assertEquals(String.class, Util.getLambdaParameterType(parse));
+		assertEquals(Integer.class, Util.getLambdaReturnType(parse));
+		// Unbound instance method, the parameter is the receiver
+		SerializableFunction<String, Integer> length = String::length;
+		assertEquals(String.class, Util.getLambdaParameterType(length));
+		assertEquals(Integer.class, Util.getLambdaReturnType(length));
+		// Constructor
+		SerializableFunction<String, StringBuilder> create = StringBuilder::new;
+		assertEquals(String.class, Util.getLambdaParameterType(create));
+		assertEquals(StringBuilder.class, Util.getLambdaReturnType(create));
+		// Arrays
+		SerializableFunction<String, String[]> split = it -> it.split(",");
+		assertEquals(String[].class, Util.getLambdaReturnType(split));
+	}
+
+	@Test
+	public void capturingLambdaTypes() {
+		int factor = 3;
+		assertEquals(Long.class, Util.getLambdaParameterType((Long it) -> it * factor));
+		assertEquals(Long.class, Util.getLambdaReturnType((Long it) -> it * factor));
+	}
+
+	@Test
+	public void genericLambdaTypes() {
+		assertEquals(Object.class, Util.getLambdaParameterType(identity()));
+		assertEquals(Object.class, Util.getLambdaReturnType(identity()));
+	}
+
+	@Test
+	public void notALambda() {
+		SerializableFunction<String, String> function = new SerializableFunction<String, String>() {
+
+			@Override
+			public String apply(String t) {
+				return t;
+			}
+		};
+		assertNull(Util.getLambdaReturnType(function));
+	}
+
+	private static <T> SerializableFunction<T, T> identity() {
+		return it -> it;
+	}
 }
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.dsl.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import org.springframework.xd.fluent.internal.BackoffWaitStrategy;
+
+
+/**
+ *
+ * @author aclement
+ */
+public class BackoffWaitStrategyTests {
+
+	@Test
+	public void backoff() {
+		BackoffWaitStrategy strategy = new BackoffWaitStrategy(10, 100, 2.0, 0, 1000);
+		assertEquals(10, strategy.nextDelay(1));
+		assertEquals(20, strategy.nextDelay(2));
+		assertEquals(40, strategy.nextDelay(3));
+		assertEquals(80, strategy.nextDelay(4));
+		assertEquals(100, strategy.nextDelay(5));
+		assertEquals(100, strategy.nextDelay(50));
+		assertEquals(1000, strategy.getTimeout());
+	}
+
+	@Test
+	public void jitter() {
+		BackoffWaitStrategy strategy = new BackoffWaitStrategy(100, 100, 2.0, 0.5, 1000);
+		for (int i = 0; i < 100; i++) {
+			long delay = strategy.nextDelay(1);
+			assertTrue(delay >= 50 && delay <= 100);
+		}
+	}
+
+	@Test
+	public void fixed() {
+		BackoffWaitStrategy strategy = BackoffWaitStrategy.fixed(200, 5000);
+		assertEquals(200, strategy.nextDelay(1));
+		assertEquals(200, strategy.nextDelay(10));
+		assertEquals(3000, strategy.withTimeout(3000).getTimeout());
+	}
+}
@@ -16,10 +16,18 @@
 
 package org.springframework.xd.dsl.tests;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
 import java.util.List;
 
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
+import org.springframework.xd.dsl.domain.ClassReference;
 import org.springframework.xd.dsl.examples.Examples;
 import org.springframework.xd.dsl.internal.ClassFileProcessor;
 import org.springframework.xd.dsl.internal.ClassFileProcessor.ClassMetaData;
@@ -31,6 +39,20 @@ import org.springframework.xd.dsl.internal.ClassFileProcessor.ClassMetaData;
  */
 public class ClassFileProcessorTests {
 
+	// The fixtures are in a Spring package, so they are only packaged if included like the domain types
+	static final List<String> FIXTURE_INCLUDED_PREFIXES = Arrays.asList("org/springframework/xd/dsl/domain/",
+			"org/springframework/xd/dsl/tests/");
+
+	@Before
+	public void includeFixtures() {
+		ClassFileProcessor.setIncludedPrefixes(FIXTURE_INCLUDED_PREFIXES);
+	}
+
+	@After
+	public void reset() {
+		ClassFileProcessor.setIncludedPrefixes(ClassFileProcessor.DEFAULT_INCLUDED_PREFIXES);
+	}
+
 	@Test
 	public void loadClass() {
 		//		ClassMetaData cmd = ClassFileProcessor.getInfo(TestFixture.class.getName());
@@ -38,13 +60,85 @@ public class ClassFileProcessorTests {
 		List<String> typeRefs = cmd.getTypeReferences();
 		System.out.println(typeRefs);
 	}
+
+	@Test
+	public void typeReferences() {
+		List<String> typeRefs = ClassFileProcessor.getInfo(TestFixture.class.getName()).getTypeReferences();
+		assertTrue(typeRefs.contains(slashed(FixtureField.class)));
+		assertTrue(typeRefs.contains(slashed(FixtureSuper.class)));
+		assertTrue(typeRefs.contains(slashed(FixtureCreated.class)));
+		// Excluded, or only referenced further along
+		assertFalse(typeRefs.contains("java/lang/Runnable"));
+		assertFalse(typeRefs.contains(slashed(FixtureIndirect.class)));
+		assertFalse(typeRefs.contains(slashed(TestFixture.class)));
+	}
+
+	@Test
+	public void prefixesApplyToCachedClasses() {
+		String fixture = TestFixture.class.getName();
+		assertTrue(ClassFileProcessor.getInfo(fixture).getTypeReferences().contains(slashed(FixtureField.class)));
+		assertTrue(ClassFileProcessor.getDependencies(fixture).contains(slashed(FixtureIndirect.class)));
+		try {
+			// Only some of the fixture classes escape the exclusion of Spring types now
+			ClassFileProcessor.setIncludedPrefixes(Arrays.asList(slashed(FixtureSuper.class),
+					slashed(FixtureCreated.class)));
+			// Already parsed (and cached), the new prefixes still apply
+			List<String> typeRefs = ClassFileProcessor.getInfo(fixture).getTypeReferences();
+			assertFalse(typeRefs.contains(slashed(FixtureField.class)));
+			assertTrue(typeRefs.contains(slashed(FixtureCreated.class)));
+			List<String> dependencies = ClassFileProcessor.getDependencies(fixture);
+			assertFalse(dependencies.contains(slashed(FixtureIndirect.class)));
+			assertTrue(dependencies.contains(slashed(FixtureCreated.class)));
+		}
+		finally {
+			ClassFileProcessor.setIncludedPrefixes(FIXTURE_INCLUDED_PREFIXES);
+		}
+		assertTrue(ClassFileProcessor.getInfo(fixture).getTypeReferences().contains(slashed(FixtureField.class)));
+	}
+
+	@Test
+	public void transitiveDependencies() {
+		List<String> dependencies = ClassFileProcessor.getDependencies(TestFixture.class.getName());
+		assertTrue(dependencies.contains(slashed(FixtureField.class)));
+		assertTrue(dependencies.contains(slashed(FixtureSuper.class)));
+		assertTrue(dependencies.contains(slashed(FixtureCreated.class)));
+		assertTrue(dependencies.contains(slashed(FixtureIndirect.class)));
+		assertFalse(dependencies.contains(slashed(TestFixture.class)));
+		for (String dependency : dependencies) {
+			assertFalse(dependency, dependency.startsWith("java/"));
+		}
+	}
+
+	@Test
+	public void scanFindsTypesOfFullAnalysis() throws Exception {
+		for (Class<?> clazz : new Class<?>[] { TestFixture.class, Examples.class, ClassFileProcessor.class }) {
+			ClassMetaData scanned = ClassFileProcessor.scan(new ClassReference(clazz.getName()).getBytes());
+			// Generic signatures and annotations are not scanned, so the scan may find fewer types but never others
+			List<String> full = ClassFileProcessor.getInfo(clazz.getName()).getTypeReferences();
+			for (String typeReference : scanned.getTypeReferences()) {
+				assertTrue(clazz.getName() + " " + typeReference, full.contains(typeReference));
+			}
+		}
+		List<String> typeRefs = ClassFileProcessor.scan(
+				new ClassReference(TestFixture.class.getName()).getBytes()).getTypeReferences();
+		assertTrue(typeRefs.contains(slashed(FixtureField.class)));
+		assertTrue(typeRefs.contains(slashed(FixtureSuper.class)));
+		assertTrue(typeRefs.contains(slashed(FixtureCreated.class)));
+		assertFalse(typeRefs.contains(slashed(FixtureIndirect.class)));
+	}
+
+	private static String slashed(Class<?> clazz) {
+		return clazz.getName().replace('.', '/');
+	}
 }
 
 
-class TestFixture {
+class TestFixture extends FixtureSuper {
 
 	String aaa;
 
+	FixtureField field;
+
 	public void m(Runnable r) {
 
 	}
@@ -54,4 +148,24 @@ class TestFixture {
 			System.out.println();
 		});
 	}
+
+	public Object o() {
+		return new FixtureCreated();
+	}
+}
+
+class FixtureSuper {
+}
+
+class FixtureField {
+}
+
+class FixtureCreated {
+
+	FixtureIndirect indirect() {
+		return null;
+	}
+}
+
+class FixtureIndirect {
 }
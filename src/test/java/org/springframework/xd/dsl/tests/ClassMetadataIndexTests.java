@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.dsl.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import org.springframework.xd.dsl.internal.ClassMetadataIndex;
+
+
+/**
+ *
+ * @author aclement
+ */
+public class ClassMetadataIndexTests {
+
+	@Test
+	public void parsedOnce() {
+		ClassLoader loader = getClass().getClassLoader();
+		String name = TestFixture.class.getName();
+		assertSame(ClassMetadataIndex.getBytes(loader, name), ClassMetadataIndex.getBytes(loader, name));
+		assertSame(ClassMetadataIndex.getClassMetaData(loader, name),
+				ClassMetadataIndex.getClassMetaData(loader, name));
+	}
+
+	@Test
+	public void changedClassIsReadAgain() throws Exception {
+		File dir = Files.createTempDirectory("index").toFile();
+		File classFile = new File(dir, "Foo.class");
+		try (URLClassLoader loader = new URLClassLoader(new URL[] { dir.toURI().toURL() }, null)) {
+			Files.write(classFile.toPath(), new byte[] { 1, 2, 3 });
+			classFile.setLastModified(1000000);
+			byte[] first = ClassMetadataIndex.getBytes(loader, "Foo");
+			assertArrayEquals(new byte[] { 1, 2, 3 }, first);
+			assertSame(first, ClassMetadataIndex.getBytes(loader, "Foo"));
+
+			Files.write(classFile.toPath(), new byte[] { 4, 5 });
+			classFile.setLastModified(2000000);
+			byte[] second = ClassMetadataIndex.getBytes(loader, "Foo");
+			assertNotSame(first, second);
+			assertArrayEquals(new byte[] { 4, 5 }, second);
+		}
+		finally {
+			classFile.delete();
+			dir.delete();
+		}
+	}
+}
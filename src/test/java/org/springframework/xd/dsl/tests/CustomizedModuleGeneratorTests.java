@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.dsl.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.invoke.MethodHandleInfo;
+import java.util.function.Function;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import org.springframework.xd.dsl.domain.LambdaTarget;
+import org.springframework.xd.dsl.domain.SerializableFunction;
+import org.springframework.xd.fluent.internal.CustomizedModuleGenerator;
+
+
+/**
+ * Runs generated Code classes against a stub of the CodeDrivenProcessor the module templates provide, which just
+ * takes the function from {@link #STUB_FN}.
+ *
+ * @author aclement
+ */
+public class CustomizedModuleGeneratorTests {
+
+	private static final String STUB_FN = "next";
+
+	@Test
+	public void directCallToInterfaceStaticMethod() throws Exception {
+		LambdaTarget target = new LambdaTarget(Ops.class.getName().replace('.', '/'), "shout",
+				"(Ljava/lang/String;)Ljava/lang/String;", MethodHandleInfo.REF_invokeStatic, true, 0);
+		SerializableFunction<String, String> fn = Ops::shout;
+		assertEquals("ABC!", transform(target, fn, "abc"));
+	}
+
+	@Test
+	public void directCallToClassStaticMethodWithCapture() throws Exception {
+		LambdaTarget target = new LambdaTarget(Helpers.class.getName().replace('.', '/'), "join",
+				"(Ljava/lang/String;Ljava/lang/String;)Ljava/lang/String;", MethodHandleInfo.REF_invokeStatic, false,
+				1);
+		String prefix = "p-";
+		// The captured prefix is recovered from the lambda, which is then not called
+		SerializableFunction<String, String> fn = s -> Helpers.join(prefix, s) + " via lambda";
+		assertEquals("p-abc", transform(target, fn, "abc"));
+	}
+
+	private Object transform(LambdaTarget target, Function<?, ?> fn, String input) throws Exception {
+		byte[] code = CustomizedModuleGenerator.generateCustomCode("Ljava/lang/String;", "Ljava/lang/String;",
+				target);
+		ModuleClassLoader loader = new ModuleClassLoader(getClass().getClassLoader());
+		Class<?> stub = loader.define("org.springframework.xd.code.CodeDrivenProcessor", stubProcessor());
+		stub.getField(STUB_FN).set(null, fn);
+		Class<?> codeClass = loader.define("org.springframework.xd.code.Code", code);
+		Object instance = codeClass.getDeclaredConstructor().newInstance();
+		return codeClass.getMethod("transform", String.class).invoke(instance, input);
+	}
+
+	/**
+	 * A CodeDrivenProcessor with the <tt>fn</tt> field the generated code uses, set from a static field rather than
+	 * a packaged lambda.
+	 */
+	private static byte[] stubProcessor() {
+		String name = "org/springframework/xd/code/CodeDrivenProcessor";
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT | Opcodes.ACC_SUPER, name, null,
+				"java/lang/Object", null);
+		cw.visitField(Opcodes.ACC_PROTECTED, "fn", "Ljava/util/function/Function;", null, null).visitEnd();
+		cw.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, STUB_FN, "Ljava/util/function/Function;", null, null)
+				.visitEnd();
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitFieldInsn(Opcodes.GETSTATIC, name, STUB_FN, "Ljava/util/function/Function;");
+		mv.visitFieldInsn(Opcodes.PUTFIELD, name, "fn", "Ljava/util/function/Function;");
+		mv.visitInsn(Opcodes.RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	public interface Ops {
+
+		static String shout(String s) {
+			return s.toUpperCase() + "!";
+		}
+	}
+
+	public static class Helpers {
+
+		public static String join(String prefix, String s) {
+			return prefix + s;
+		}
+	}
+
+	static class ModuleClassLoader extends ClassLoader {
+
+		ModuleClassLoader(ClassLoader parent) {
+			super(parent);
+		}
+
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.dsl.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import org.springframework.xd.fluent.internal.DeploymentManifest;
+
+
+/**
+ *
+ * @author aclement
+ */
+public class DeploymentManifestTests {
+
+	@Test
+	public void recordAndReload() throws Exception {
+		File file = File.createTempFile("manifest", ".properties");
+		file.delete();
+		try {
+			DeploymentManifest manifest = new DeploymentManifest(file);
+			assertNull(manifest.getDefinition("foo"));
+			assertTrue(manifest.getModuleFingerprints("foo").isEmpty());
+
+			Map<String, String> fingerprints = new LinkedHashMap<>();
+			fingerprints.put("foo-code-1", "abc");
+			fingerprints.put("foo-code-2", "def");
+			manifest.record("foo", "time | foo-code-1 | foo-code-2 | log", fingerprints);
+			manifest.record("bar", "time | log", new LinkedHashMap<>());
+
+			DeploymentManifest reloaded = new DeploymentManifest(file);
+			assertEquals("time | foo-code-1 | foo-code-2 | log", reloaded.getDefinition("foo"));
+			assertEquals(fingerprints, reloaded.getModuleFingerprints("foo"));
+			assertEquals("time | log", reloaded.getDefinition("bar"));
+
+			// Recording again replaces, rather than merges with, the previous record
+			fingerprints.remove("foo-code-2");
+			reloaded.record("foo", "time | foo-code-1 | log", fingerprints);
+			assertEquals(1, reloaded.getModuleFingerprints("foo").size());
+
+			reloaded.remove("foo");
+			reloaded = new DeploymentManifest(file);
+			assertNull(reloaded.getDefinition("foo"));
+			assertTrue(reloaded.getModuleFingerprints("foo").isEmpty());
+			assertEquals("time | log", reloaded.getDefinition("bar"));
+		}
+		finally {
+			file.delete();
+		}
+	}
+}
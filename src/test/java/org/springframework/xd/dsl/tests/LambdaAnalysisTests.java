@@ -0,0 +1,223 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.dsl.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.invoke.MethodHandleInfo;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import org.springframework.xd.dsl.PartialStream;
+import org.springframework.xd.dsl.XD;
+import org.springframework.xd.dsl.domain.BytesResource;
+import org.springframework.xd.dsl.domain.ClassReference;
+import org.springframework.xd.dsl.domain.LambdaTarget;
+import org.springframework.xd.dsl.domain.Resource;
+import org.springframework.xd.dsl.domain.SerializableFunction;
+import org.springframework.xd.dsl.domain.SerializableSupplier;
+import org.springframework.xd.dsl.internal.ClassFileProcessor;
+import org.springframework.xd.dsl.internal.LambdaAnalysis;
+
+
+/**
+ *
+ * @author aclement
+ */
+public class LambdaAnalysisTests {
+
+	@Before
+	public void includeFixtures() {
+		ClassFileProcessor.setIncludedPrefixes(ClassFileProcessorTests.FIXTURE_INCLUDED_PREFIXES);
+	}
+
+	@After
+	public void reset() {
+		LambdaAnalysis.setSlimCapturingClass(false);
+		ClassFileProcessor.setIncludedPrefixes(ClassFileProcessor.DEFAULT_INCLUDED_PREFIXES);
+	}
+
+	@Test
+	public void onlyReachableCode() {
+		LambdaAnalysis.setSlimCapturingClass(true);
+		LambdaAnalysis analysis = LambdaAnalysis.analyze(LambdaFixture.usesA());
+		assertEquals("org/springframework/xd/dsl/tests/LambdaFixture", analysis.getCapturingClass());
+		List<String> dependencies = analysis.getDependencies();
+		assertTrue(dependencies.contains("org/springframework/xd/dsl/tests/LambdaFixtureA"));
+		assertTrue(dependencies.contains("org/springframework/xd/dsl/tests/LambdaFixtureA2"));
+		assertFalse(dependencies.contains("org/springframework/xd/dsl/tests/LambdaFixtureB"));
+		assertFalse(dependencies.contains("org/springframework/xd/dsl/tests/LambdaFixtureC"));
+		assertFalse(dependencies.contains("org/springframework/xd/dsl/tests/LambdaFixture"));
+		assertTrue(analysis.getReachableMethods().contains(
+				"helper(Ljava/lang/String;)Ljava/lang/String;"));
+	}
+
+	@Test
+	public void wholeClassDependencies() {
+		// Not slimmed, so the unreachable methods are packaged and what they use must be too
+		LambdaAnalysis analysis = LambdaAnalysis.analyze(LambdaFixture.usesA());
+		List<String> dependencies = analysis.getDependencies();
+		assertTrue(dependencies.contains("org/springframework/xd/dsl/tests/LambdaFixtureA"));
+		assertTrue(dependencies.contains("org/springframework/xd/dsl/tests/LambdaFixtureB"));
+		assertTrue(dependencies.contains("org/springframework/xd/dsl/tests/LambdaFixtureC"));
+		assertFalse(dependencies.contains("org/springframework/xd/dsl/tests/LambdaFixture"));
+		assertFalse(analysis.getReachableMethods().contains("unusedC()V"));
+		assertTrue(analysis.getCapturingClassResource() instanceof ClassReference);
+	}
+
+	@Test
+	public void clientDslNotPackaged() {
+		// The capturing class also builds a stream, only the domain types the container needs come with the lambda
+		List<String> dependencies = LambdaAnalysis.analyze(LambdaStreamFixture.tick()).getDependencies();
+		assertTrue(dependencies.contains("org/springframework/xd/dsl/domain/SerializableSupplier"));
+		assertFalse(dependencies.contains("org/springframework/xd/dsl/XD"));
+		assertFalse(dependencies.contains("org/springframework/xd/dsl/PartialStream"));
+		assertFalse(dependencies.contains("org/springframework/xd/dsl/DeployableStream"));
+		assertFalse(dependencies.contains("org/springframework/xd/dsl/internal/ClassFileProcessor"));
+	}
+
+	@Test
+	public void slimmedCapturingClass() {
+		LambdaAnalysis.setSlimCapturingClass(true);
+		Resource resource = LambdaAnalysis.analyze(LambdaFixture.usesA()).getCapturingClassResource();
+		assertTrue(resource instanceof BytesResource);
+		assertEquals("org/springframework/xd/dsl/tests/LambdaFixture.class", resource.getName());
+		List<String> methods = methods(resource.getBytes());
+		assertTrue(methods.contains("helper"));
+		assertTrue(methods.contains("$deserializeLambda$"));
+		assertFalse(methods.contains("usesB"));
+		assertFalse(methods.contains("unused"));
+	}
+
+	@Test
+	public void directTargetOfLambda() {
+		LambdaAnalysis analysis = LambdaAnalysis.analyze(LambdaFixture.capturing("!"), true);
+		LambdaTarget target = analysis.getTarget();
+		assertEquals("org/springframework/xd/dsl/tests/LambdaFixture", target.getOwner());
+		assertTrue(target.getName().startsWith("direct$lambda$"));
+		assertEquals(MethodHandleInfo.REF_invokeStatic, target.getKind());
+		assertEquals(1, target.getCapturedArgCount());
+		// The packaged class is made public and given the accessor
+		Resource resource = analysis.getCapturingClassResource();
+		assertTrue(resource instanceof BytesResource);
+		assertTrue(methods(resource.getBytes()).contains(target.getName()));
+		assertTrue((new ClassReader(resource.getBytes()).getAccess() & Opcodes.ACC_PUBLIC) != 0);
+	}
+
+	@Test
+	public void directTargetOfMethodReference() {
+		SerializableFunction<String, Integer> length = String::length;
+		LambdaTarget target = LambdaAnalysis.analyze(length, true).getTarget();
+		assertEquals("java/lang/String", target.getOwner());
+		assertEquals("length", target.getName());
+		assertEquals(MethodHandleInfo.REF_invokeVirtual, target.getKind());
+		assertEquals(0, target.getCapturedArgCount());
+		// Not public, cannot be called from the generated module
+		assertNull(LambdaAnalysis.analyze(LambdaFixture.packagePrivateTarget(), true).getTarget());
+		// Not asked for
+		assertNull(LambdaAnalysis.analyze(length).getTarget());
+	}
+
+	private List<String> methods(byte[] bytes) {
+		List<String> methods = new ArrayList<>();
+		new ClassReader(bytes).accept(new ClassVisitor(Opcodes.ASM5) {
+
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+					String[] exceptions) {
+				methods.add(name);
+				return null;
+			}
+		}, 0);
+		return methods;
+	}
+}
+
+
+class LambdaFixture {
+
+	static SerializableFunction<String, String> usesA() {
+		return s -> helper(s);
+	}
+
+	static SerializableFunction<String, String> usesB() {
+		return s -> new LambdaFixtureB().toString() + s;
+	}
+
+	static SerializableFunction<String, String> capturing(String suffix) {
+		return s -> s + suffix;
+	}
+
+	static SerializableFunction<String, LambdaFixtureA2> packagePrivateTarget() {
+		return LambdaFixtureA2::new;
+	}
+
+	static String helper(String s) {
+		return new LambdaFixtureA().get() + s;
+	}
+
+	static void unused() {
+		new LambdaFixtureB();
+	}
+
+	static void unusedC() {
+		new LambdaFixtureC();
+	}
+}
+
+class LambdaStreamFixture {
+
+	static SerializableSupplier<String> tick() {
+		return () -> "tick";
+	}
+
+	static PartialStream<String> stream() {
+		return XD.source(tick());
+	}
+}
+
+class LambdaFixtureA {
+
+	LambdaFixtureA2 a2;
+
+	String get() {
+		return "a";
+	}
+}
+
+class LambdaFixtureA2 {
+
+	LambdaFixtureA2(String s) {
+	}
+}
+
+class LambdaFixtureB {
+}
+
+class LambdaFixtureC {
+}
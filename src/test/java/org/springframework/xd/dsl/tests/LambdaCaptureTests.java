@@ -0,0 +1,280 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.dsl.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.junit.After;
+import org.junit.Test;
+
+import org.springframework.xd.dsl.PartialStream;
+import org.springframework.xd.dsl.domain.ClassReference;
+import org.springframework.xd.dsl.domain.LambdaCapture;
+import org.springframework.xd.dsl.domain.Resource;
+import org.springframework.xd.dsl.domain.SerializableFunction;
+import org.springframework.xd.dsl.domain.SerializableSupplier;
+
+
+/**
+ *
+ * @author aclement
+ */
+public class LambdaCaptureTests {
+
+	@After
+	public void reset() {
+		System.clearProperty("xd.dsl.lambda.allowedClasses");
+		System.clearProperty(EvilCodec.INITIALIZED);
+	}
+
+	@Test
+	public void capturedValues() throws Exception {
+		String prefix = "p";
+		int count = 3;
+		TimeUnit unit = TimeUnit.SECONDS;
+		SerializableFunction<String, String> fn = s -> prefix + s + count + unit + String.class.getSimpleName();
+		assertEquals("pa3SECONDSString", roundTrip(fn).apply("a"));
+	}
+
+	@Test
+	public void nonCapturingAndMethodReference() throws Exception {
+		SerializableFunction<String, Integer> length = String::length;
+		assertEquals(Integer.valueOf(3), roundTrip(length).apply("abc"));
+		SerializableFunction<String, String> upper = s -> s.toUpperCase();
+		assertEquals("ABC", roundTrip(upper).apply("abc"));
+	}
+
+	@Test
+	public void nestedLambdaAndSerializableValue() throws Exception {
+		SerializableFunction<String, String> inner = s -> s + "!";
+		ArrayList<String> list = new ArrayList<>(Arrays.asList("x", "y"));
+		SerializableFunction<String, String> fn = s -> inner.apply(s) + list;
+		assertEquals("a![x, y]", roundTrip(fn).apply("a"));
+	}
+
+	@Test
+	public void allowList() throws Exception {
+		List<String> list = new ArrayList<>(Arrays.asList("x"));
+		SerializableSupplier<Integer> size = () -> list.size();
+		byte[] capture = LambdaCapture.write(size);
+		System.setProperty("xd.dsl.lambda.allowedClasses", "java.util.");
+		assertEquals(Integer.valueOf(1), read(capture, SerializableSupplier.class).get());
+		System.setProperty("xd.dsl.lambda.allowedClasses", "com.foo.");
+		try {
+			read(capture, SerializableSupplier.class);
+			fail("The captured list should not be allowed");
+		}
+		catch (IOException ioe) {
+			assertTrue(ioe instanceof InvalidClassException);
+		}
+	}
+
+	@Test
+	public void defaultAllowList() throws Exception {
+		// Fallback values may use JDK collections and classes packaged with the module by default, nothing else
+		ArrayList<Object> list = new ArrayList<>(Arrays.asList(new Holder("x")));
+		SerializableSupplier<Integer> size = () -> list.size();
+		assertEquals(Integer.valueOf(1), read(LambdaCapture.write(size), SerializableSupplier.class).get());
+		try {
+			read(LambdaCapture.write(size), SerializableSupplier.class, new IsolatedClassLoader(new HashMap<>()));
+			fail("Classes not packaged with the module should not be allowed");
+		}
+		catch (IOException ioe) {
+			assertTrue(ioe instanceof InvalidClassException);
+		}
+	}
+
+	@Test
+	public void proxyInterfacesAreChecked() throws Exception {
+		Runnable proxy = (Runnable) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Runnable.class },
+				(InvocationHandler & Serializable) (p, m, args) -> null);
+		SerializableSupplier<Runnable> supplier = () -> proxy;
+		byte[] capture = LambdaCapture.write(supplier);
+		System.setProperty("xd.dsl.lambda.allowedClasses", "java.util.");
+		try {
+			read(capture, SerializableSupplier.class);
+			fail("The proxy interface should not be allowed");
+		}
+		catch (IOException ioe) {
+			assertTrue(ioe instanceof InvalidClassException);
+			assertTrue(ioe.getMessage(), ioe.getMessage().contains("java.lang.Runnable"));
+		}
+	}
+
+	@Test
+	public void codecCheckedBeforeInitialization() throws Exception {
+		LambdaCapture.registerCodec(new GoodCodec());
+		Marker marker = new Marker();
+		SerializableSupplier<Marker> supplier = () -> marker;
+		byte[] capture = LambdaCapture.write(supplier);
+		assertTrue(read(capture, SerializableSupplier.class).get() instanceof Marker);
+		// Name a class that is not a codec, it must be rejected without running its static initializer
+		byte[] tampered = replace(capture, GoodCodec.class.getName(), EvilCodec.class.getName());
+		try {
+			read(tampered, SerializableSupplier.class);
+			fail("A class that is not a codec should not be used as one");
+		}
+		catch (IOException ioe) {
+			assertTrue(ioe instanceof InvalidClassException);
+		}
+		assertNull(System.getProperty(EvilCodec.INITIALIZED));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void readThroughPackagedResources() throws Exception {
+		// A loader that only has the classes a module is packaged with (those PartialStream adds for a capture
+		// and the class declaring the lambda), anything else comes from the JDK
+		Map<String, byte[]> classes = new HashMap<>();
+		List<Resource> resources = new ArrayList<>(PartialStream.getCaptureReaderResources());
+		resources.add(new ClassReference(IsolatedFixture.class.getName()));
+		for (Resource resource : resources) {
+			String name = resource.getName();
+			classes.put(name.substring(0, name.length() - ".class".length()).replace('/', '.'), resource.getBytes());
+		}
+		assertTrue(classes.containsKey(LambdaCapture.class.getName() + "$1"));
+		ClassLoader loader = new IsolatedClassLoader(classes);
+		byte[] capture = LambdaCapture.write(IsolatedFixture.greeter("hello ", TimeUnit.SECONDS));
+		Object lambda = loader.loadClass(LambdaCapture.class.getName())
+				.getMethod("read", InputStream.class, ClassLoader.class)
+				.invoke(null, new ByteArrayInputStream(capture), loader);
+		assertTrue(lambda.getClass().getClassLoader() == loader);
+		assertEquals("hello world SECONDS [a, b]", ((Function<String, String>) lambda).apply("world"));
+	}
+
+	private static byte[] replace(byte[] bytes, String from, String to) {
+		byte[] fromBytes = from.getBytes(StandardCharsets.UTF_8);
+		byte[] toBytes = to.getBytes(StandardCharsets.UTF_8);
+		byte[] result = bytes.clone();
+		for (int i = 0; i <= result.length - fromBytes.length; i++) {
+			if (Arrays.equals(Arrays.copyOfRange(result, i, i + fromBytes.length), fromBytes)) {
+				System.arraycopy(toBytes, 0, result, i, toBytes.length);
+				return result;
+			}
+		}
+		throw new IllegalStateException("No " + from);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T, R> SerializableFunction<T, R> roundTrip(SerializableFunction<T, R> fn) throws IOException {
+		return read(LambdaCapture.write(fn), SerializableFunction.class);
+	}
+
+	private <T> T read(byte[] capture, Class<T> type) throws IOException {
+		return read(capture, type, getClass().getClassLoader());
+	}
+
+	private <T> T read(byte[] capture, Class<T> type, ClassLoader classLoader) throws IOException {
+		return type.cast(LambdaCapture.read(new ByteArrayInputStream(capture), classLoader));
+	}
+
+	static class IsolatedFixture {
+
+		static SerializableFunction<String, String> greeter(String greeting, TimeUnit unit) {
+			List<String> list = new ArrayList<>(Arrays.asList("a", "b"));
+			return s -> greeting + s + " " + unit + " " + list;
+		}
+	}
+
+	/**
+	 * Defines the given classes itself, delegating only to the bootstrap loader otherwise.
+	 */
+	static class IsolatedClassLoader extends ClassLoader {
+
+		private final Map<String, byte[]> classes;
+
+		IsolatedClassLoader(Map<String, byte[]> classes) {
+			super(null);
+			this.classes = classes;
+		}
+
+		@Override
+		protected Class<?> findClass(String name) throws ClassNotFoundException {
+			byte[] bytes = classes.get(name);
+			if (bytes == null) {
+				throw new ClassNotFoundException(name);
+			}
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+
+	static class Holder implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		final String value;
+
+		Holder(String value) {
+			this.value = value;
+		}
+	}
+
+	static class Marker {
+	}
+
+	public static class GoodCodec implements LambdaCapture.Codec {
+
+		@Override
+		public String getId() {
+			return getClass().getName();
+		}
+
+		@Override
+		public boolean canEncode(Object value) {
+			return value instanceof Marker;
+		}
+
+		@Override
+		public void write(Object value, DataOutputStream out) throws IOException {
+		}
+
+		@Override
+		public Object read(DataInputStream in, ClassLoader classLoader) throws IOException {
+			return new Marker();
+		}
+	}
+
+	public static class EvilCodec {
+
+		static final String INITIALIZED = "lambdaCaptureTests.evilCodecInitialized";
+
+		static {
+			System.setProperty(INITIALIZED, "true");
+		}
+	}
+}
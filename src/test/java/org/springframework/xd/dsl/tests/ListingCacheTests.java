@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.dsl.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import org.springframework.xd.fluent.internal.ListingCache;
+
+
+/**
+ *
+ * @author aclement
+ */
+public class ListingCacheTests {
+
+	@Test
+	public void disabled() {
+		AtomicInteger loads = new AtomicInteger();
+		ListingCache<Integer> cache = new ListingCache<>(() -> loads.incrementAndGet(), 0);
+		assertEquals(1, (int) cache.get());
+		assertEquals(2, (int) cache.get());
+	}
+
+	@Test
+	public void cachedUntilInvalidated() {
+		AtomicInteger loads = new AtomicInteger();
+		ListingCache<Integer> cache = new ListingCache<>(() -> loads.incrementAndGet(), 60000);
+		assertEquals(1, (int) cache.get());
+		assertEquals(1, (int) cache.get());
+		cache.invalidate();
+		assertEquals(2, (int) cache.get());
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void concurrentMissesShareOneLoad() throws Exception {
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch release = new CountDownLatch(1);
+		ListingCache<Integer> cache = new ListingCache<>(() -> {
+			try {
+				release.await();
+			}
+			catch (InterruptedException ie) {
+				throw new IllegalStateException(ie);
+			}
+			return loads.incrementAndGet();
+		}, 60000);
+		List<Thread> threads = new ArrayList<>();
+		AtomicInteger total = new AtomicInteger();
+		for (int i = 0; i < 8; i++) {
+			Thread t = new Thread(() -> total.addAndGet(cache.get()));
+			threads.add(t);
+			t.start();
+		}
+		Thread.sleep(100);
+		release.countDown();
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(1, loads.get());
+		assertEquals(8, total.get());
+	}
+}
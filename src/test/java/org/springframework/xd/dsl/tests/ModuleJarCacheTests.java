@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.dsl.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import org.springframework.xd.dsl.domain.BytesResource;
+import org.springframework.xd.dsl.domain.Resource;
+import org.springframework.xd.fluent.internal.ModuleJarCache;
+
+
+/**
+ *
+ * @author aclement
+ */
+public class ModuleJarCacheTests {
+
+	@Test
+	public void keys() {
+		Set<Resource> resources = new LinkedHashSet<>();
+		resources.add(new BytesResource("a", new byte[] { 1, 2, 3 }));
+		resources.add(new BytesResource("b", new byte[] { 4 }));
+		Set<Resource> reordered = new LinkedHashSet<>();
+		reordered.add(new BytesResource("b", new byte[] { 4 }));
+		reordered.add(new BytesResource("a", new byte[] { 1, 2, 3 }));
+		Set<Resource> changed = new LinkedHashSet<>();
+		changed.add(new BytesResource("a", new byte[] { 1, 2, 3 }));
+		changed.add(new BytesResource("b", new byte[] { 5 }));
+
+		String key = ModuleJarCache.computeKey("template", resources, "Ljava/lang/String;", null);
+		assertEquals(key, ModuleJarCache.computeKey("template", reordered, "Ljava/lang/String;", null));
+		assertFalse(key.equals(ModuleJarCache.computeKey("template", changed, "Ljava/lang/String;", null)));
+		assertFalse(key.equals(ModuleJarCache.computeKey("template2", resources, "Ljava/lang/String;", null)));
+		assertFalse(key.equals(ModuleJarCache.computeKey("template", resources, "Ljava/lang/Integer;", null)));
+	}
+
+	@Test
+	public void leastRecentlyUsedEviction() {
+		ModuleJarCache cache = new ModuleJarCache(2, null);
+		cache.put("one", new byte[] { 1 });
+		cache.put("two", new byte[] { 2 });
+		cache.get("one");
+		cache.put("three", new byte[] { 3 });
+		assertEquals(2, cache.size());
+		assertNull(cache.get("two"));
+		assertArrayEquals(new byte[] { 1 }, cache.get("one"));
+		assertArrayEquals(new byte[] { 3 }, cache.get("three"));
+	}
+
+	@Test
+	public void spillDirectory() throws Exception {
+		File dir = Files.createTempDirectory("modulejarcache").toFile();
+		ModuleJarCache cache = new ModuleJarCache(1, dir);
+		cache.put("one", new byte[] { 1 });
+		cache.put("two", new byte[] { 2 });
+		assertEquals(1, cache.size());
+		// Evicted from memory but still found on disk
+		assertArrayEquals(new byte[] { 1 }, cache.get("one"));
+		// A new cache over the same directory sees the earlier jars
+		assertArrayEquals(new byte[] { 2 }, new ModuleJarCache(1, dir).get("two"));
+	}
+}
@@ -17,14 +17,20 @@
 package org.springframework.xd.dsl.tests;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 import org.junit.Test;
 
 import org.springframework.xd.dsl.PartialStream;
 import org.springframework.xd.dsl.XD;
+import org.springframework.xd.dsl.domain.CodeProcessor;
+import org.springframework.xd.dsl.domain.Processor;
 import org.springframework.xd.dsl.domain.Source;
 import org.springframework.xd.dsl.domain.standard.Sources;
 
@@ -45,4 +51,47 @@ public class PartialStreamTests {
 		assertTrue(options.containsKey("url"));
 		assertEquals("http://wibble", options.get("url"));
 	}
+
+	@Test
+	public void primitiveProcessors() {
+		PartialStream<String> ps = XD.source(Sources.feed("http://wibble"));
+		List<Processor<?, ?>> processors = ps.processToInt(String::length).processInt(payload -> payload * 2)
+				.processToDouble(payload -> payload / 3d).getProcessors();
+		CodeProcessor toInt = (CodeProcessor) processors.get(0);
+		assertEquals(String.class, toInt.getInputType());
+		assertEquals(int.class, toInt.getOutputType());
+		CodeProcessor doubler = (CodeProcessor) processors.get(1);
+		assertEquals(int.class, doubler.getInputType());
+		assertEquals(int.class, doubler.getOutputType());
+		CodeProcessor toDouble = (CodeProcessor) processors.get(2);
+		assertEquals(Integer.class, toDouble.getInputType());
+		assertEquals(double.class, toDouble.getOutputType());
+	}
+
+	@Test
+	public void batchedProcessors() {
+		PartialStream<String> ps = XD.source(Sources.feed("http://wibble"));
+		List<Processor<?, ?>> processors = ps.process(String::trim, 50, 200)
+				.processBatch(batch -> batch.stream().map(String::length).collect(Collectors.toList()))
+				.getProcessors();
+		Map<String, String> options = processors.get(0).getOptions();
+		assertEquals("50", options.get("batchSize"));
+		assertEquals("200", options.get("batchTimeoutMs"));
+		assertFalse(options.containsKey("batchFunction"));
+		options = processors.get(1).getOptions();
+		assertEquals("100", options.get("batchSize"));
+		assertEquals("true", options.get("batchFunction"));
+		assertEquals(List.class, ((CodeProcessor) processors.get(1)).getInputType());
+	}
+
+	@Test
+	public void invalidBatchSize() {
+		try {
+			XD.source(Sources.feed("http://wibble")).process(String::trim, 0, 200);
+			fail("A batch size of 0 should be rejected");
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
 }
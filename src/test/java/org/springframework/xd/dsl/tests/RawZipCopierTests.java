@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.xd.dsl.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+import org.springframework.xd.dsl.domain.Util;
+import org.springframework.xd.fluent.internal.RawZipCopier;
+
+
+/**
+ *
+ * @author aclement
+ */
+public class RawZipCopierTests {
+
+	@Test
+	public void copyAndAdd() throws Exception {
+		byte[] text = "hello hello hello hello hello hello".getBytes();
+		byte[] nested = new byte[] { 1, 2, 3, 4, 5 };
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ZipOutputStream zos = new ZipOutputStream(baos);
+		zos.putNextEntry(new ZipEntry("a/Text.txt"));
+		zos.write(text);
+		ZipEntry stored = new ZipEntry("lib/nested.jar");
+		stored.setMethod(ZipEntry.STORED);
+		CRC32 crc = new CRC32();
+		crc.update(nested);
+		stored.setCrc(crc.getValue());
+		stored.setSize(nested.length);
+		zos.putNextEntry(stored);
+		zos.write(nested);
+		zos.putNextEntry(new ZipEntry("a/Replaced.class"));
+		zos.write(new byte[] { 9 });
+		zos.close();
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		RawZipCopier copier = new RawZipCopier(baos.toByteArray(), output);
+		assertEquals(3, copier.getEntries().size());
+		for (RawZipCopier.Entry entry : copier.getEntries()) {
+			if (entry.getName().equals("a/Replaced.class")) {
+				copier.add(entry.getName(), new byte[] { 10, 11 });
+			}
+			else {
+				copier.copy(entry);
+			}
+		}
+		copier.add("b/Added.class", new byte[] { 7, 7, 7 });
+		copier.finish();
+
+		Map<String, byte[]> expected = new LinkedHashMap<>();
+		expected.put("a/Text.txt", text);
+		expected.put("lib/nested.jar", nested);
+		expected.put("a/Replaced.class", new byte[] { 10, 11 });
+		expected.put("b/Added.class", new byte[] { 7, 7, 7 });
+
+		// Read it as a stream (local headers) ...
+		ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(output.toByteArray()));
+		ZipEntry ze;
+		int count = 0;
+		while ((ze = zis.getNextEntry()) != null) {
+			assertArrayEquals(expected.get(ze.getName()), readEntry(zis));
+			count++;
+		}
+		assertEquals(4, count);
+
+		// ... and via the central directory
+		File f = File.createTempFile("rawzip", ".jar");
+		Files.write(f.toPath(), output.toByteArray());
+		try (ZipFile zf = new ZipFile(f)) {
+			assertEquals(4, zf.size());
+			assertEquals(ZipEntry.STORED, zf.getEntry("lib/nested.jar").getMethod());
+			for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+				assertArrayEquals(entry.getValue(),
+						Util.loadBytesFromStream(zf.getInputStream(zf.getEntry(entry.getKey()))));
+			}
+		}
+		f.delete();
+	}
+
+	private byte[] readEntry(ZipInputStream zis) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int len;
+		while ((len = zis.read(buffer)) > 0) {
+			baos.write(buffer, 0, len);
+		}
+		return baos.toByteArray();
+	}
+}
@@ -54,5 +54,7 @@ public class XDRestClientTests {
 	public void moduleOperations() {
 		assertFalse(xdrc.checkModuleExists("processor", "foobar"));
 		assertTrue(xdrc.checkModuleExists("source", "mail"));
+		assertTrue(xdrc.checkModuleDoesNotExist("processor", "foobar"));
+		assertFalse(xdrc.checkModuleDoesNotExist("source", "mail"));
 	}
 }